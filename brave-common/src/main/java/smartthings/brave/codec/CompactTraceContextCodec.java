@@ -0,0 +1,210 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.codec;
+
+import brave.propagation.TraceContext;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes a trace context into a single value, for transports that limit the number of headers or attributes of a
+ * message, such as SQS and SNS message attributes.
+ *
+ * <p>The String form is lower hex:
+ * <pre>
+ *   [trace id high (16) | 'n'] trace id (16) span id (16) [parent id (16) | 'n'] [flags (1) | 'n']
+ * </pre>
+ * where flags is a single hex digit with bit 0 for debug and bit 1 for sampled, and 'n' stands for an absent field or
+ * for no sampling decision, so the value is 35 to 65 characters.
+ *
+ * <p>The Binary form is big endian:
+ * <pre>
+ *   [trace id high (8)] trace id (8) span id (8) parent id (8, zero when absent) flags (1)
+ * </pre>
+ * where the trace id high is only written for 128-bit trace ids, so the value is 25 or 33 bytes, and flags has bit 0
+ * set when a sampling decision was made, bit 1 for sampled, bit 2 for debug and bit 3 when the parent id is present.
+ */
+public final class CompactTraceContextCodec {
+
+  static final int STRING_FLAG_DEBUG = 1;
+  static final int STRING_FLAG_SAMPLED = 1 << 1;
+
+  static final int FLAG_SAMPLED_SET = 1;
+  static final int FLAG_SAMPLED = 1 << 1;
+  static final int FLAG_DEBUG = 1 << 2;
+  static final int FLAG_PARENT = 1 << 3;
+
+  /** Size of the Binary form of a context with a 64-bit trace id. */
+  public static final int BINARY_SIZE = 25;
+  /** Size of the Binary form of a context with a 128-bit trace id. */
+  public static final int BINARY_SIZE_128 = 33;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private CompactTraceContextCodec() {
+  }
+
+  public static String encodeString(TraceContext context) {
+    boolean high = context.traceIdHigh() != 0L;
+    boolean parent = context.parentId() != null;
+    char[] chars = new char[(high ? 16 : 1) + 32 + (parent ? 16 : 1) + 1];
+    int i = 0;
+    if (high) {
+      writeHex(chars, i, context.traceIdHigh());
+      i += 16;
+    } else {
+      chars[i++] = 'n';
+    }
+    writeHex(chars, i, context.traceId());
+    i += 16;
+    writeHex(chars, i, context.spanId());
+    i += 16;
+    if (parent) {
+      writeHex(chars, i, context.parentIdAsLong());
+      i += 16;
+    } else {
+      chars[i++] = 'n';
+    }
+    Boolean sampled = context.sampled();
+    if (sampled == null && !context.debug()) {
+      chars[i] = 'n';
+    } else {
+      int flags = 0;
+      if (context.debug()) flags |= STRING_FLAG_DEBUG;
+      if (Boolean.TRUE.equals(sampled)) flags |= STRING_FLAG_SAMPLED;
+      chars[i] = HEX[flags];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * @return the context, or null when the value isn't in the String form
+   */
+  public static TraceContext decodeString(String value) {
+    int length = value.length();
+    boolean high = length > 0 && value.charAt(0) != 'n';
+    int i = high ? 16 : 1;
+    if (length < i + 34) return null;
+    try {
+      TraceContext.Builder builder = TraceContext.newBuilder();
+      if (high) builder.traceIdHigh(readHex(value, 0));
+      long traceId = readHex(value, i);
+      long spanId = readHex(value, i + 16);
+      if (traceId == 0L || spanId == 0L) return null;
+      builder.traceId(traceId).spanId(spanId);
+      i += 32;
+      if (value.charAt(i) == 'n') {
+        i += 1;
+      } else {
+        if (length < i + 17) return null;
+        builder.parentId(readHex(value, i));
+        i += 16;
+      }
+      if (length != i + 1) return null;
+      char flags = value.charAt(i);
+      if (flags != 'n') {
+        int bits = digit(flags);
+        if (bits > (STRING_FLAG_DEBUG | STRING_FLAG_SAMPLED)) return null;
+        builder.sampled((bits & STRING_FLAG_SAMPLED) != 0);
+        if ((bits & STRING_FLAG_DEBUG) != 0) builder.debug(true);
+      }
+      return builder.build();
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  public static byte[] encodeBinary(TraceContext context) {
+    boolean high = context.traceIdHigh() != 0L;
+    byte[] bytes = new byte[high ? BINARY_SIZE_128 : BINARY_SIZE];
+    int i = 0;
+    if (high) {
+      writeLong(bytes, i, context.traceIdHigh());
+      i += 8;
+    }
+    writeLong(bytes, i, context.traceId());
+    writeLong(bytes, i + 8, context.spanId());
+    writeLong(bytes, i + 16, context.parentIdAsLong());
+
+    int flags = 0;
+    Boolean sampled = context.sampled();
+    if (sampled != null) {
+      flags |= FLAG_SAMPLED_SET;
+      if (sampled) flags |= FLAG_SAMPLED;
+    }
+    if (context.debug()) flags |= FLAG_DEBUG;
+    if (context.parentId() != null) flags |= FLAG_PARENT;
+    bytes[i + 24] = (byte) flags;
+    return bytes;
+  }
+
+  /**
+   * Reads the remaining bytes of the buffer without moving it.
+   * @return the context, or null when the value isn't in the Binary form
+   */
+  public static TraceContext decodeBinary(ByteBuffer buffer) {
+    int length = buffer.remaining();
+    if (length != BINARY_SIZE && length != BINARY_SIZE_128) return null;
+    int i = buffer.position();
+    TraceContext.Builder builder = TraceContext.newBuilder();
+    if (length == BINARY_SIZE_128) {
+      builder.traceIdHigh(buffer.getLong(i));
+      i += 8;
+    }
+    long traceId = buffer.getLong(i);
+    long spanId = buffer.getLong(i + 8);
+    if (traceId == 0L || spanId == 0L) return null;
+    builder.traceId(traceId).spanId(spanId);
+    int flags = buffer.get(i + 24);
+    if ((flags & FLAG_PARENT) != 0) {
+      builder.parentId(buffer.getLong(i + 16));
+    }
+    if ((flags & FLAG_SAMPLED_SET) != 0) {
+      builder.sampled((flags & FLAG_SAMPLED) != 0);
+    }
+    if ((flags & FLAG_DEBUG) != 0) {
+      builder.debug(true);
+    }
+    return builder.build();
+  }
+
+  static void writeHex(char[] chars, int offset, long v) {
+    for (int i = 15; i >= 0; i--) {
+      chars[offset + i] = HEX[(int) (v & 0xf)];
+      v >>>= 4;
+    }
+  }
+
+  /** Reads 16 lower hex characters. */
+  static long readHex(String value, int offset) {
+    long result = 0L;
+    for (int i = offset; i < offset + 16; i++) {
+      result = (result << 4) | digit(value.charAt(i));
+    }
+    return result;
+  }
+
+  private static int digit(char c) {
+    if (c >= '0' && c <= '9') return c - '0';
+    if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+    throw new NumberFormatException("not lower hex: " + c);
+  }
+
+  static void writeLong(byte[] bytes, int offset, long v) {
+    for (int i = 7; i >= 0; i--) {
+      bytes[offset + i] = (byte) v;
+      v >>>= 8;
+    }
+  }
+}
@@ -0,0 +1,92 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sampler;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Samples with a rate and a limit of samples per second, each kept separately per key such as a topic or a queue.
+ * The rate is applied with a thread local random and the limit with a single compare-and-set on a word holding the
+ * current second and its count, so deciding takes no lock and allocates nothing once a key has been seen.
+ *
+ * Subclasses resolve the rate and limit of a key the first time it is seen.
+ */
+public abstract class KeyedRateLimiter {
+
+  /** Limit of a key whose samples per second are not limited. */
+  public static final int UNLIMITED = -1;
+
+  private final ConcurrentMap<String, Limit> limits = new ConcurrentHashMap<>();
+
+  /**
+   * @return the fraction of decisions sampled for the key, 0.0 to 1.0
+   */
+  protected abstract float rate(String key);
+
+  /**
+   * @return the samples per second allowed for the key, or {@link #UNLIMITED}
+   */
+  protected abstract int limit(String key);
+
+  /**
+   * @return true when the rate of the key selects this decision and its limit for the current second isn't reached
+   */
+  public final boolean isSampled(String key) {
+    Limit limit = limits.get(key);
+    if (limit == null) {
+      Limit created = new Limit(rate(key), limit(key));
+      limit = limits.putIfAbsent(key, created);
+      if (limit == null) limit = created;
+    }
+    return limit.isSampled();
+  }
+
+  private static final class Limit {
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    final float rate;
+    final int limit;
+    /** current second in the high 32 bits, samples taken during it in the low 32 bits */
+    final AtomicLong window = new AtomicLong();
+
+    Limit(float rate, int limit) {
+      this.rate = rate;
+      this.limit = limit;
+    }
+
+    boolean isSampled() {
+      if (rate == 0.0f || limit == 0) return false;
+      if (rate < 1.0f && ThreadLocalRandom.current().nextFloat() >= rate) return false;
+      if (limit == UNLIMITED) return true;
+
+      long second = (System.nanoTime() / NANOS_PER_SECOND) & 0xFFFFFFFFL;
+      while (true) {
+        long current = window.get();
+        long next;
+        if (current >>> 32 == second) {
+          if ((current & 0xFFFFFFFFL) >= limit) return false;
+          next = current + 1;
+        } else {
+          next = (second << 32) | 1;
+        }
+        if (window.compareAndSet(current, next)) return true;
+      }
+    }
+  }
+}
@@ -0,0 +1,71 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.codec;
+
+import brave.propagation.TraceContext;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CompactTraceContextCodecTest {
+
+  private final TraceContext context = TraceContext.newBuilder()
+    .traceIdHigh(0xfedcba9876543210L)
+    .traceId(0x0123456789abcdefL)
+    .spanId(3L)
+    .parentId(4L)
+    .debug(true)
+    .build();
+
+  @Test
+  public void encodeString_flagsAreOneHexDigit() {
+    assertThat(CompactTraceContextCodec.encodeString(context))
+      .isEqualTo("fedcba9876543210" + "0123456789abcdef" + "0000000000000003" + "0000000000000004" + "1");
+  }
+
+  @Test
+  public void string_roundTrips() {
+    TraceContext decoded = CompactTraceContextCodec.decodeString(CompactTraceContextCodec.encodeString(context));
+
+    assertThat(decoded).isEqualTo(context);
+    assertThat(decoded.debug()).isTrue();
+  }
+
+  @Test
+  public void decodeString_malformed() {
+    String valid = CompactTraceContextCodec.encodeString(context);
+
+    assertThat(CompactTraceContextCodec.decodeString("")).isNull();
+    assertThat(CompactTraceContextCodec.decodeString(valid + "n")).isNull();
+    assertThat(CompactTraceContextCodec.decodeString(valid.toUpperCase())).isNull();
+    assertThat(CompactTraceContextCodec.decodeString(valid.substring(0, valid.length() - 1) + "4")).isNull();
+    assertThat(CompactTraceContextCodec.decodeString("n" + "0000000000000000" + "0000000000000003" + "nn"))
+      .isNull();
+  }
+
+  @Test
+  public void binary_roundTripsWithoutMovingTheBuffer() {
+    ByteBuffer buffer = ByteBuffer.wrap(CompactTraceContextCodec.encodeBinary(context));
+
+    assertThat(CompactTraceContextCodec.decodeBinary(buffer)).isEqualTo(context);
+    assertThat(buffer.remaining()).isEqualTo(CompactTraceContextCodec.BINARY_SIZE_128);
+  }
+
+  @Test
+  public void decodeBinary_wrongSize() {
+    assertThat(CompactTraceContextCodec.decodeBinary(ByteBuffer.allocate(24))).isNull();
+  }
+}
@@ -0,0 +1,64 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sampler;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class KeyedRateLimiterTest {
+
+  private final AtomicInteger resolved = new AtomicInteger();
+  private final KeyedRateLimiter limiter = new KeyedRateLimiter() {
+    @Override protected float rate(String key) {
+      resolved.incrementAndGet();
+      return key.equals("never") ? 0.0f : 1.0f;
+    }
+
+    @Override protected int limit(String key) {
+      return key.equals("limited") ? 10 : UNLIMITED;
+    }
+  };
+
+  @Test
+  public void isSampled_perKeyRate() {
+    for (int i = 0; i < 100; i++) {
+      assertThat(limiter.isSampled("never")).isFalse();
+      assertThat(limiter.isSampled("always")).isTrue();
+    }
+  }
+
+  @Test
+  public void isSampled_perKeyLimit() {
+    int sampled = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (limiter.isSampled("limited")) sampled++;
+      assertThat(limiter.isSampled("always")).isTrue();
+    }
+    // the loop may straddle a second boundary
+    assertThat(sampled).isBetween(10, 20);
+  }
+
+  @Test
+  public void isSampled_resolvesSettingsOncePerKey() {
+    limiter.isSampled("always");
+    limiter.isSampled("always");
+    limiter.isSampled("limited");
+
+    assertThat(resolved.get()).isEqualTo(2);
+  }
+}
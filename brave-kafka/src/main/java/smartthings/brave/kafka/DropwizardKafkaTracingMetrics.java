@@ -0,0 +1,136 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.apache.kafka.common.config.ConfigException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dropwizard implementation of {@link KafkaTracingMetrics}. Metrics are named
+ * "&lt;prefix&gt;.&lt;topic&gt;.&lt;partition&gt;.&lt;metric&gt;" and looked up in the registry once per partition,
+ * so recording a value is a map lookup followed by the update of a {@link Meter} or {@link Timer}. Meters count on
+ * striped adders, so the consumer and producer I/O threads don't contend on them.
+ *
+ * Requires io.dropwizard.metrics:metrics-core on the classpath. Optional: A {@link MetricRegistry} in config as
+ * "brave.metrics.registry" creates one with the default prefix when "brave.metrics" isn't set.
+ */
+public final class DropwizardKafkaTracingMetrics extends KafkaTracingMetrics {
+
+  private static final String PREFIX = "tracing.kafka";
+
+  private final MetricRegistry metricRegistry;
+  private final String prefix;
+  private final ConcurrentMap<String, TopicMetrics> topics = new ConcurrentHashMap<>();
+
+  public DropwizardKafkaTracingMetrics(MetricRegistry metricRegistry) {
+    this(metricRegistry, PREFIX);
+  }
+
+  public DropwizardKafkaTracingMetrics(MetricRegistry metricRegistry, String prefix) {
+    this.metricRegistry = metricRegistry;
+    this.prefix = prefix;
+  }
+
+  static KafkaTracingMetrics fromRegistry(Object registry) {
+    if (!(registry instanceof MetricRegistry)) {
+      throw new ConfigException("brave.metrics.registry", registry, "Must be an instance of com.codahale.metrics.MetricRegistry");
+    }
+    return new DropwizardKafkaTracingMetrics((MetricRegistry) registry);
+  }
+
+  @Override
+  public void incrementUntracedRecords(String topic, int quantity) {
+    topic(topic).untraced.mark(quantity);
+  }
+
+  @Override
+  public void recordAckLatency(String topic, int partition, long latencyNanos) {
+    topic(topic).partition(partition).ackLatency.update(latencyNanos, TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public void recordEndToEndLatency(String topic, int partition, long latencyMillis) {
+    topic(topic).partition(partition).endToEndLatency.update(latencyMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void incrementConsumedRecords(String topic, int partition, int records, long bytes) {
+    PartitionMetrics metrics = topic(topic).partition(partition);
+    metrics.records.mark(records);
+    metrics.bytes.mark(bytes);
+  }
+
+  @Override
+  public void recordProcessingLatency(String topic, int partition, long latencyMillis, long offsets) {
+    PartitionMetrics metrics = topic(topic).partition(partition);
+    metrics.processingLatency.update(latencyMillis, TimeUnit.MILLISECONDS);
+    metrics.committed.mark(offsets);
+  }
+
+  private TopicMetrics topic(String topic) {
+    TopicMetrics metrics = topics.get(topic);
+    if (metrics == null) {
+      TopicMetrics created = new TopicMetrics(prefix + "." + topic);
+      metrics = topics.putIfAbsent(topic, created);
+      if (metrics == null) metrics = created;
+    }
+    return metrics;
+  }
+
+  private final class TopicMetrics {
+    final String name;
+    final Meter untraced;
+    final ConcurrentMap<Integer, PartitionMetrics> partitions = new ConcurrentHashMap<>();
+
+    TopicMetrics(String name) {
+      this.name = name;
+      this.untraced = metricRegistry.meter(name + ".untraced");
+    }
+
+    PartitionMetrics partition(int partition) {
+      PartitionMetrics metrics = partitions.get(partition);
+      if (metrics == null) {
+        PartitionMetrics created = new PartitionMetrics(name + "." + partition);
+        metrics = partitions.putIfAbsent(partition, created);
+        if (metrics == null) metrics = created;
+      }
+      return metrics;
+    }
+  }
+
+  private final class PartitionMetrics {
+    final Timer ackLatency;
+    final Timer endToEndLatency;
+    final Timer processingLatency;
+    final Meter records;
+    final Meter bytes;
+    final Meter committed;
+
+    PartitionMetrics(String name) {
+      this.ackLatency = metricRegistry.timer(name + ".ack.latency");
+      this.endToEndLatency = metricRegistry.timer(name + ".e2e.latency");
+      this.processingLatency = metricRegistry.timer(name + ".processing.latency");
+      this.records = metricRegistry.meter(name + ".records");
+      this.bytes = metricRegistry.meter(name + ".bytes");
+      this.committed = metricRegistry.meter(name + ".committed");
+    }
+  }
+}
@@ -0,0 +1,50 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka;
+
+import brave.propagation.Propagation;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+
+import java.nio.charset.Charset;
+
+/**
+ * Reads and writes B3 keys as UTF-8 Kafka record headers.
+ */
+public final class KafkaHeadersB3Propagation {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private KafkaHeadersB3Propagation() {
+  }
+
+  public static final Propagation.Getter<Headers, String> EXTRACTOR =
+    (carrier, key) -> {
+      Header header = carrier.lastHeader(key);
+      if (header != null && header.value() != null) {
+        return new String(header.value(), UTF_8);
+      } else {
+        return null;
+      }
+    };
+
+  public static final Propagation.Setter<Headers, String> INJECTOR =
+    (carrier, key, v) -> {
+      carrier.remove(key);
+      if (v != null) {
+        carrier.add(key, v.getBytes(UTF_8));
+      }
+    };
+}
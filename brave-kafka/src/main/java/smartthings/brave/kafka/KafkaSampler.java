@@ -0,0 +1,74 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka;
+
+import org.apache.kafka.common.config.ConfigException;
+
+import java.util.Map;
+
+/**
+ * Decides whether a record starting a new trace is sampled, by topic. Records sent or received within an existing
+ * trace keep its decision.
+ *
+ * Optional: A {@link KafkaSampler} in config as "brave.sampler". Otherwise "brave.sampler.rate" (0.0 to 1.0) and
+ * "brave.sampler.limit" (spans per second), or "brave.sampler.rate.&lt;topic&gt;" and
+ * "brave.sampler.limit.&lt;topic&gt;" for a single topic, create a sampler that applies the rate and then caps
+ * the sampled records of each topic. Topics that neither setting applies to are left to the {@link brave.Tracing}
+ * sampler.
+ */
+public abstract class KafkaSampler {
+
+  public static final KafkaSampler TRACE_ID = new KafkaSampler() {
+    @Override public Boolean trySample(String topic) {
+      return null;
+    }
+
+    @Override public String toString() {
+      return "DeferDecision";
+    }
+  };
+
+  public static final KafkaSampler NEVER_SAMPLE = new KafkaSampler() {
+    @Override public Boolean trySample(String topic) {
+      return false;
+    }
+
+    @Override public String toString() {
+      return "NeverSample";
+    }
+  };
+
+  public static KafkaSampler fromConfig(Map<String, ?> configs) {
+    Object sampler = configs.get("brave.sampler");
+    if (sampler instanceof KafkaSampler) {
+      return (KafkaSampler) sampler;
+    } else if (sampler != null) {
+      throw new ConfigException("brave.sampler", sampler, "Must be an instance of KafkaSampler");
+    }
+    if (configs.get("brave.sampler.rate") == null && configs.get("brave.sampler.limit") == null
+      && TopicConfig.overrides(configs, "brave.sampler.rate").isEmpty()
+      && TopicConfig.overrides(configs, "brave.sampler.limit").isEmpty()) {
+      return TRACE_ID;
+    }
+    return new TopicRateSampler(configs);
+  }
+
+  /**
+   * Called on the producer and consumer threads for every record starting a trace, so implementations should not
+   * lock or allocate.
+   * @return true or false to force the decision, or null to leave it to the {@link brave.Tracing} sampler
+   */
+  public abstract Boolean trySample(String topic);
+}
@@ -0,0 +1,80 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka;
+
+import org.apache.kafka.common.config.ConfigException;
+
+import java.util.Map;
+
+/**
+ * Receives the counts and latencies recorded by the tracing interceptors. Every method is a no-op unless overridden, so
+ * implementations only pick the measurements they export.
+ *
+ * Optional: A {@link KafkaTracingMetrics} in config as "brave.metrics", or a Dropwizard MetricRegistry as
+ * "brave.metrics.registry" to use {@link DropwizardKafkaTracingMetrics}.
+ */
+public abstract class KafkaTracingMetrics {
+
+  public static final KafkaTracingMetrics NOOP = new KafkaTracingMetrics() {
+    @Override public String toString() {
+      return "NoopKafkaTracingMetrics";
+    }
+  };
+
+  public static KafkaTracingMetrics fromConfig(Map<String, ?> configs) {
+    Object metrics = configs.get("brave.metrics");
+    if (metrics == null) {
+      Object registry = configs.get("brave.metrics.registry");
+      // only touch the dropwizard classes when asked to, metrics-core is an optional dependency
+      return registry != null ? DropwizardKafkaTracingMetrics.fromRegistry(registry) : NOOP;
+    } else if (metrics instanceof KafkaTracingMetrics) {
+      return (KafkaTracingMetrics) metrics;
+    } else {
+      throw new ConfigException("brave.metrics", metrics, "Must be an instance of KafkaTracingMetrics");
+    }
+  }
+
+  /**
+   * Records consumed from the topic without a trace context.
+   */
+  public void incrementUntracedRecords(String topic, int quantity) {
+  }
+
+  /**
+   * Time between a record being handed to the producer and its acknowledgement, successful or not.
+   * @param partition the acknowledged partition, negative when the send failed before a partition was chosen
+   */
+  public void recordAckLatency(String topic, int partition, long latencyNanos) {
+  }
+
+  /**
+   * Time between the timestamp of a record and its consumption, as seen by the consumer's clock.
+   */
+  public void recordEndToEndLatency(String topic, int partition, long latencyMillis) {
+  }
+
+  /**
+   * Records returned by a poll for the partition, and the sum of their serialized key and value sizes.
+   */
+  public void incrementConsumedRecords(String topic, int partition, int records, long bytes) {
+  }
+
+  /**
+   * Time between records being returned by a poll and the commit of their offsets.
+   * @param offsets how many offsets the commit covered for that latency, one per record unless the topic is compacted
+   */
+  public void recordProcessingLatency(String topic, int partition, long latencyMillis, long offsets) {
+  }
+}
@@ -0,0 +1,50 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Resolves interceptor settings that can be overridden per topic by appending the topic name to the key,
+ * e.g. "brave.untraced.policy.my-topic" overrides "brave.untraced.policy" for records of "my-topic".
+ */
+public final class TopicConfig {
+
+  private TopicConfig() {
+  }
+
+  /**
+   * @return the topic specific value, the default value, or null when neither is configured
+   */
+  public static Object get(Map<String, ?> configs, String key, String topic) {
+    Object value = configs.get(key + "." + topic);
+    return value != null ? value : configs.get(key);
+  }
+
+  /**
+   * @return topic specific values of the key, by topic name
+   */
+  public static Map<String, Object> overrides(Map<String, ?> configs, String key) {
+    String prefix = key + ".";
+    Map<String, Object> overrides = new HashMap<>();
+    for (Map.Entry<String, ?> entry : configs.entrySet()) {
+      if (entry.getKey().startsWith(prefix) && entry.getKey().length() > prefix.length()) {
+        overrides.put(entry.getKey().substring(prefix.length()), entry.getValue());
+      }
+    }
+    return overrides;
+  }
+}
@@ -0,0 +1,92 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka;
+
+import org.apache.kafka.common.config.ConfigException;
+import smartthings.brave.sampler.KeyedRateLimiter;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link KafkaSampler} configured with "brave.sampler.rate" and "brave.sampler.limit", each of which can be overridden
+ * for a single topic with a ".&lt;topic&gt;" suffix. Topics are limited independently of each other by a
+ * {@link KeyedRateLimiter}. Without a default rate or limit, topics that aren't overridden are left to the
+ * {@link brave.Tracing} sampler.
+ */
+final class TopicRateSampler extends KafkaSampler {
+
+  private final float defaultRate;
+  private final int defaultLimit;
+  /** whether topics without an override are sampled here rather than left to the Tracing sampler */
+  private final boolean sampleAll;
+  private final Map<String, Float> topicRates = new HashMap<>();
+  private final Map<String, Integer> topicLimits = new HashMap<>();
+  private final KeyedRateLimiter topics = new KeyedRateLimiter() {
+    @Override protected float rate(String topic) {
+      Float rate = topicRates.get(topic);
+      return rate != null ? rate : defaultRate;
+    }
+
+    @Override protected int limit(String topic) {
+      Integer limit = topicLimits.get(topic);
+      return limit != null ? limit : defaultLimit;
+    }
+  };
+
+  TopicRateSampler(Map<String, ?> configs) {
+    Object rate = configs.get("brave.sampler.rate");
+    defaultRate = rate != null ? parseRate(rate) : 1.0f;
+    Object limit = configs.get("brave.sampler.limit");
+    defaultLimit = limit != null ? parseLimit(limit) : KeyedRateLimiter.UNLIMITED;
+    sampleAll = rate != null || limit != null;
+    for (Map.Entry<String, Object> entry : TopicConfig.overrides(configs, "brave.sampler.rate").entrySet()) {
+      topicRates.put(entry.getKey(), parseRate(entry.getValue()));
+    }
+    for (Map.Entry<String, Object> entry : TopicConfig.overrides(configs, "brave.sampler.limit").entrySet()) {
+      topicLimits.put(entry.getKey(), parseLimit(entry.getValue()));
+    }
+  }
+
+  @Override
+  public Boolean trySample(String topic) {
+    if (!sampleAll && !topicRates.containsKey(topic) && !topicLimits.containsKey(topic)) return null;
+    return topics.isSampled(topic) ? Boolean.TRUE : Boolean.FALSE;
+  }
+  @Override
+  public String toString() {
+    return "TopicRateSampler(rate=" + defaultRate + ", limit=" + defaultLimit + ")";
+  }
+
+  private static float parseRate(Object rate) {
+    try {
+      float value = Float.parseFloat(rate.toString());
+      if (value >= 0.0f && value <= 1.0f) return value;
+    } catch (NumberFormatException e) {
+      // rejected below
+    }
+    throw new ConfigException("brave.sampler.rate", rate, "Must be between 0.0 and 1.0");
+  }
+
+  private static int parseLimit(Object limit) {
+    try {
+      int value = Integer.parseInt(limit.toString());
+      if (value >= 0) return value;
+    } catch (NumberFormatException e) {
+      // rejected below
+    }
+    throw new ConfigException("brave.sampler.limit", limit, "Must be a positive number of spans per second");
+  }
+}
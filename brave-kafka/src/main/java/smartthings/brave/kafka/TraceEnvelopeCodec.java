@@ -0,0 +1,187 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka;
+
+import brave.propagation.SamplingFlags;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+
+/**
+ * Fixed layout binary codec that prefixes a payload with a trace context.
+ *
+ * <pre>
+ * offset  size  field
+ *      0     2  magic, 0x03 0xB3
+ *      2     1  version
+ *      3     1  flags (sampled set, sampled, debug, shared, parent present)
+ *      4     8  trace id high
+ *     12     8  trace id
+ *     20     8  span id
+ *     28     8  parent id, zero when absent
+ *     36     -  payload
+ * </pre>
+ *
+ * The first byte has a protobuf field number of zero, which is never a valid tag, so the format can
+ * not be mistaken for an {@link EnvelopeProtos.Envelope} and existing consumers reject it instead
+ * of reading garbage.
+ */
+public final class TraceEnvelopeCodec {
+
+  public static final byte VERSION_1 = 1;
+  public static final int HEADER_SIZE = 36;
+
+  static final byte MAGIC_0 = 0x03;
+  static final byte MAGIC_1 = (byte) 0xB3;
+
+  /** protobuf tags of {@link EnvelopeProtos.Envelope} fields 1 and 2, both varints */
+  static final byte TRACE_ID_HIGH_TAG = 0x08;
+  static final byte TRACE_ID_TAG = 0x10;
+
+  static final int FLAG_SAMPLED_SET = 1;
+  static final int FLAG_SAMPLED = 1 << 1;
+  static final int FLAG_DEBUG = 1 << 2;
+  static final int FLAG_SHARED = 1 << 3;
+  static final int FLAG_PARENT = 1 << 4;
+
+  private TraceEnvelopeCodec() {
+  }
+
+  /**
+   * Writes the trace context header and the payload into a single array sized up front.
+   */
+  public static byte[] encode(TraceContext context, byte[] payload) {
+    int length = payload != null ? payload.length : 0;
+    byte[] bytes = new byte[HEADER_SIZE + length];
+    writeHeader(context, bytes);
+    if (length > 0) {
+      System.arraycopy(payload, 0, bytes, HEADER_SIZE, length);
+    }
+    return bytes;
+  }
+
+  /**
+   * Writes the trace context header into the first {@link #HEADER_SIZE} bytes of the given array.
+   */
+  public static void writeHeader(TraceContext context, byte[] bytes) {
+    int flags = 0;
+    Boolean sampled = context.sampled();
+    if (sampled != null) {
+      flags |= FLAG_SAMPLED_SET;
+      if (sampled) flags |= FLAG_SAMPLED;
+    }
+    if (context.debug()) flags |= FLAG_DEBUG;
+    if (context.shared()) flags |= FLAG_SHARED;
+    if (context.parentId() != null) flags |= FLAG_PARENT;
+
+    bytes[0] = MAGIC_0;
+    bytes[1] = MAGIC_1;
+    bytes[2] = VERSION_1;
+    bytes[3] = (byte) flags;
+    writeLong(bytes, 4, context.traceIdHigh());
+    writeLong(bytes, 12, context.traceId());
+    writeLong(bytes, 20, context.spanId());
+    writeLong(bytes, 28, context.parentIdAsLong());
+  }
+
+  /**
+   * Returns true when the bytes start with a version this codec can read. Only the first three
+   * bytes are inspected.
+   */
+  public static boolean isEnvelope(byte[] bytes) {
+    return bytes != null
+      && bytes.length >= HEADER_SIZE
+      && bytes[0] == MAGIC_0
+      && bytes[1] == MAGIC_1
+      && bytes[2] == VERSION_1;
+  }
+
+  /**
+   * Returns true when the bytes start the way {@link EnvelopeProtos.Envelope} messages written by the tracing
+   * producers do: an optional trace_id_high field followed by the always present trace_id field. Only the first
+   * few bytes are inspected, so a true result still needs parsing to be confirmed.
+   */
+  public static boolean mayBeProtobufEnvelope(byte[] bytes) {
+    if (bytes == null || bytes.length < 2) return false;
+    if (bytes[0] == TRACE_ID_TAG) return true;
+    if (bytes[0] != TRACE_ID_HIGH_TAG) return false;
+    // skip the trace_id_high varint, at most 10 bytes
+    for (int i = 1; i < bytes.length && i <= 10; i++) {
+      if ((bytes[i] & 0x80) == 0) {
+        return i + 1 < bytes.length && bytes[i + 1] == TRACE_ID_TAG;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the trace context from the header without touching the payload.
+   * @throws IllegalArgumentException if {@link #isEnvelope(byte[])} is false
+   */
+  public static TraceContextOrSamplingFlags decodeContext(byte[] bytes) {
+    if (!isEnvelope(bytes)) {
+      throw new IllegalArgumentException("not a trace envelope");
+    }
+    int flags = bytes[3];
+    Boolean sampled = (flags & FLAG_SAMPLED_SET) != 0 ? (flags & FLAG_SAMPLED) != 0 : null;
+    boolean debug = (flags & FLAG_DEBUG) != 0;
+    long traceId = readLong(bytes, 12);
+    long spanId = readLong(bytes, 20);
+    if (traceId == 0L || spanId == 0L) {
+      // no ids to continue, only the sampling decision
+      return TraceContextOrSamplingFlags.create(new SamplingFlags.Builder().sampled(sampled).debug(debug).build());
+    }
+    TraceContext.Builder builder = TraceContext.newBuilder()
+      .traceIdHigh(readLong(bytes, 4))
+      .traceId(traceId)
+      .spanId(spanId)
+      .shared((flags & FLAG_SHARED) != 0)
+      .debug(debug);
+    if ((flags & FLAG_PARENT) != 0) {
+      builder.parentId(readLong(bytes, 28));
+    }
+    if (sampled != null) {
+      builder.sampled(sampled);
+    }
+    return TraceContextOrSamplingFlags.create(builder.build());
+  }
+
+  /**
+   * Returns a copy of the payload following the header. This is the only copy made on decode.
+   * @throws IllegalArgumentException if {@link #isEnvelope(byte[])} is false
+   */
+  public static byte[] decodePayload(byte[] bytes) {
+    if (!isEnvelope(bytes)) {
+      throw new IllegalArgumentException("not a trace envelope");
+    }
+    byte[] payload = new byte[bytes.length - HEADER_SIZE];
+    System.arraycopy(bytes, HEADER_SIZE, payload, 0, payload.length);
+    return payload;
+  }
+
+  static void writeLong(byte[] bytes, int offset, long v) {
+    for (int i = 7; i >= 0; i--) {
+      bytes[offset + i] = (byte) v;
+      v >>>= 8;
+    }
+  }
+
+  static long readLong(byte[] bytes, int offset) {
+    long v = 0;
+    for (int i = 0; i < 8; i++) {
+      v = (v << 8) | (bytes[offset + i] & 0xff);
+    }
+    return v;
+  }
+}
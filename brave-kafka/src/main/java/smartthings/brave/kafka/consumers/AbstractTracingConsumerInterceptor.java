@@ -0,0 +1,345 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.consumers;
+
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import brave.propagation.SamplingFlags;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import org.apache.kafka.clients.consumer.ConsumerInterceptor;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.config.ConfigException;
+import smartthings.brave.kafka.KafkaSampler;
+import smartthings.brave.kafka.KafkaTracingMetrics;
+import zipkin2.Endpoint;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An abstract interceptor that extracts any tracing context and the original record from the received record,
+ * annotates and flushes "wr" for each, and finally returns them to the consumer as {@link TracedConsumerRecord}.
+ * Extraction is left abstract to match the injection strategy used.
+ * Due to the batch nature of {@link ConsumerInterceptor#onConsume(org.apache.kafka.clients.consumer.ConsumerRecords)},
+ * this interceptor cannot propagate the trace context for each record.
+ * The consumer should be responsible for propagating the extracted context.
+ *
+ * Required: A {@link Tracer} in config as "brave.tracer".
+ * Optional: A {@link RecordSpanNameProvider} in config as "brave.span.name.provider" to customize span name.
+ * Interceptors of byte[] values also accept a {@link SpanNameProvider}.
+ * Optional: A {@link Endpoint} in config as "brave.span.remote.endpoint" to customize span remote endpoint.
+ * Optional: An {@link UntracedRecordPolicy} in config as "brave.untraced.policy", or as
+ * "brave.untraced.policy.&lt;topic&gt;" for a single topic, to choose how records without a trace context are handled.
+ * Optional: A {@link KafkaTracingMetrics} in config as "brave.metrics" to count untraced records and record
+ * end-to-end latency, throughput and consume-to-commit processing latency per partition.
+ * Optional: A {@link KafkaSampler}, or its per topic settings, in config to sample records received without a trace.
+ * Optional: "brave.consumer.commit.ranges.max" in config, how many uncommitted offset ranges are remembered per
+ * partition to measure processing latency (default 1000). Older ranges are merged beyond it.
+ * Optional: "brave.consumer.commit.span" in config, true to report a span with the offsets of each commit.
+ * Optional: A {@link ConsumerSpanMode} in config as "brave.consumer.span.mode" to report one span per partition or
+ * per poll instead of one span per record.
+ * Optional: "brave.consumer.poll.span.name" in config, the name of the span reported per poll in
+ * {@link ConsumerSpanMode#POLL} mode (default "Poll").
+ * @param <K> key type
+ * @param <V> value type
+ */
+public abstract class AbstractTracingConsumerInterceptor<K, V> implements ConsumerInterceptor<K, V> {
+  private Tracing tracing;
+  private RecordSpanNameProvider<K, V> nameProvider;
+  private Endpoint kafkaEndpoint;
+  private KafkaTracingMetrics metrics;
+  private KafkaSampler sampler;
+  private UntracedRecords untracedRecords;
+  private ConsumerSpanMode spanMode;
+  private ConsumerBatch batch;
+  private String pollSpanName;
+  private final Map<TopicPartition, String> partitionTags = new HashMap<>();
+  private final Map<TopicPartition, ConsumedRanges> consumedRanges = new HashMap<>();
+  private int maxConsumedRanges;
+  private boolean commitSpan;
+
+  /**
+   * Cheap check of whether a record carries a trace context, made before any extraction is attempted.
+   * Records it rejects are passed through according to the configured {@link UntracedRecordPolicy}.
+   * @param record received record
+   * @return false if the record certainly has no trace context
+   */
+  protected boolean isTraced(ConsumerRecord<K, V> record) {
+    return true;
+  }
+
+  /**
+   * Abstract method for extracting original consumer record and tracing context from a received consumer record,
+   * which was potentially mutated by a producer interceptor to have a tracing context injected
+   * @param record received records, may have trace context injected
+   * @return {@link TracedConsumerRecord}
+   * @throws ExtractException
+   */
+  protected abstract TracedConsumerRecord<K, V> getTracedConsumerRecord(ConsumerRecord<K, V> record)
+    throws ExtractException;
+
+  @Override
+  public ConsumerRecords<K, V> onConsume(ConsumerRecords<K, V> records) {
+    Set<TopicPartition> partitions = records.partitions();
+    Map<TopicPartition, List<ConsumerRecord<K, V>>> tracedRecords = new HashMap<>(capacity(partitions.size()));
+
+    long now = System.currentTimeMillis();
+    if (spanMode == ConsumerSpanMode.POLL) batch.start();
+    for (TopicPartition tp : partitions) {
+      List<ConsumerRecord<K, V>> partitionRecords = records.records(tp);
+      List<ConsumerRecord<K, V>> tracedPartitionRecords = new ArrayList<>(partitionRecords.size());
+      String partitionTag = partitionTag(tp);
+      if (spanMode == ConsumerSpanMode.RECORD) {
+        for (ConsumerRecord<K, V> record : partitionRecords) {
+          tracedPartitionRecords.add(trace(record, partitionTag));
+        }
+      } else {
+        if (spanMode == ConsumerSpanMode.PARTITION) batch.start();
+        for (ConsumerRecord<K, V> record : partitionRecords) {
+          tracedPartitionRecords.add(collect(record));
+        }
+        if (!partitionRecords.isEmpty()) {
+          batch.offsets(tp, partitionRecords.get(0).offset(), partitionRecords.get(partitionRecords.size() - 1).offset());
+        }
+        if (spanMode == ConsumerSpanMode.PARTITION && !partitionRecords.isEmpty()) {
+          batch.report(nameProvider.spanName(partitionRecords.get(0)), kafkaEndpoint, partitionTag);
+        }
+      }
+      recordConsumed(tp, partitionRecords, now);
+      tracedRecords.put(tp, tracedPartitionRecords);
+    }
+    if (spanMode == ConsumerSpanMode.POLL) batch.report(pollSpanName, kafkaEndpoint, null);
+    return new ConsumerRecords<>(tracedRecords);
+  }
+
+  private SamplingFlags samplingFlags(String topic, SamplingFlags extracted) {
+    if (extracted.sampled() != null) return extracted;
+    Boolean sampled = sampler.trySample(topic);
+    if (sampled == null) return extracted;
+    return sampled ? SamplingFlags.SAMPLED : SamplingFlags.NOT_SAMPLED;
+  }
+
+  /**
+   * Batch counterpart of {@link #trace(ConsumerRecord, String)}: extracts the context without starting a span and
+   * adds the record to the current batch.
+   */
+  private ConsumerRecord<K, V> collect(ConsumerRecord<K, V> record) {
+    if (!isTraced(record)) {
+      untracedRecords.record(record, null);
+      batch.untraced();
+      return record;
+    }
+    try {
+      TracedConsumerRecord<K, V> tracedConsumerRecord = getTracedConsumerRecord(record);
+      TraceContext ctx = tracedConsumerRecord.traceContextOrSamplingFlags.context();
+      if (ctx != null) {
+        batch.traced(ctx);
+      } else {
+        batch.untraced();
+      }
+      return tracedConsumerRecord;
+    } catch (ExtractException e) {
+      untracedRecords.record(record, e);
+      batch.untraced();
+      return record;
+    }
+  }
+
+  private ConsumerRecord<K, V> trace(ConsumerRecord<K, V> record, String partitionTag) {
+    if (!isTraced(record)) {
+      untracedRecords.record(record, null);
+      return record;
+    }
+    try {
+      // Try extracting trace context and original record from received record
+      TracedConsumerRecord<K, V> tracedConsumerRecord = getTracedConsumerRecord(record);
+      TraceContextOrSamplingFlags traceContextOrSamplingFlags =
+        tracedConsumerRecord.traceContextOrSamplingFlags;
+      TraceContext ctx = traceContextOrSamplingFlags.context();
+
+      Span span = (ctx != null)
+        ? tracing.tracer().joinSpan(ctx)
+        : tracing.tracer().newTrace(samplingFlags(record.topic(), traceContextOrSamplingFlags.samplingFlags()));
+
+      // unsampled records are the common case on busy topics, skip naming and tagging spans nobody reports
+      if (!span.isNoop()) {
+        span
+          .kind(Span.Kind.SERVER)
+          .name(nameProvider.spanName(record))
+          .remoteEndpoint(kafkaEndpoint)
+          .tag("kafka.partition", partitionTag)
+          .start()
+          .flush();
+      }
+      return tracedConsumerRecord;
+    } catch (ExtractException e) {
+      untracedRecords.record(record, e);
+      return record;
+    }
+  }
+
+  private void recordConsumed(TopicPartition tp, List<ConsumerRecord<K, V>> partitionRecords, long now) {
+    if (metrics == KafkaTracingMetrics.NOOP) return;
+    long bytes = 0;
+    for (ConsumerRecord<K, V> record : partitionRecords) {
+      // sizes are -1 for null keys and values
+      bytes += Math.max(record.serializedKeySize(), 0) + Math.max(record.serializedValueSize(), 0);
+      if (record.timestamp() >= 0) {
+        metrics.recordEndToEndLatency(tp.topic(), tp.partition(), now - record.timestamp());
+      }
+    }
+    metrics.incrementConsumedRecords(tp.topic(), tp.partition(), partitionRecords.size(), bytes);
+
+    if (!partitionRecords.isEmpty()) {
+      ConsumedRanges ranges = consumedRanges.get(tp);
+      if (ranges == null) {
+        ranges = new ConsumedRanges(tp, maxConsumedRanges);
+        consumedRanges.put(tp, ranges);
+      }
+      ranges.add(partitionRecords.get(0).offset(), partitionRecords.get(partitionRecords.size() - 1).offset(), now);
+    }
+  }
+
+  /**
+   * The partition tag value only depends on the partition, so it is built once per assigned partition rather than
+   * once per record. Only accessed from the consumer thread.
+   */
+  private String partitionTag(TopicPartition tp) {
+    String tag = partitionTags.get(tp);
+    if (tag == null) {
+      tag = String.valueOf(tp.partition());
+      partitionTags.put(tp, tag);
+    }
+    return tag;
+  }
+
+  private static int capacity(int expectedSize) {
+    return expectedSize < 3 ? expectedSize + 1 : (int) (expectedSize / 0.75f + 1.0f);
+  }
+
+  /**
+   * Reports the processing latency of the records covered by the commit and, when enabled, a span carrying the
+   * committed offsets.
+   */
+  @Override
+  public void onCommit(Map<TopicPartition, OffsetAndMetadata> offsets) {
+    if (metrics != KafkaTracingMetrics.NOOP) {
+      long now = System.currentTimeMillis();
+      for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : offsets.entrySet()) {
+        ConsumedRanges ranges = consumedRanges.get(entry.getKey());
+        if (ranges != null) {
+          ranges.commit(entry.getValue().offset(), now, metrics);
+        }
+      }
+    }
+
+    if (commitSpan) {
+      Span span = tracing.tracer().nextSpan();
+      if (span.isNoop()) return;
+      StringBuilder committed = new StringBuilder();
+      for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : offsets.entrySet()) {
+        if (committed.length() > 0) committed.append(',');
+        committed.append(entry.getKey().topic()).append('-').append(entry.getKey().partition())
+          .append(':').append(entry.getValue().offset());
+      }
+      span
+        .name("Commit")
+        .remoteEndpoint(kafkaEndpoint)
+        .tag("kafka.offsets", committed.toString())
+        .start()
+        .finish();
+    }
+  }
+
+  @Override
+  public void close() {
+    partitionTags.clear();
+    consumedRanges.clear();
+  }
+
+  /**
+   * Adapts a {@link SpanNameProvider} of byte[] values, only possible when the values are byte[].
+   * @return null when the provider does not apply to this interceptor's values
+   */
+  RecordSpanNameProvider<K, V> byteArrayNameProvider(SpanNameProvider<K> provider) {
+    return null;
+  }
+
+  @Override
+  public void configure(Map<String, ?> configs) {
+    if (configs.get("brave.tracing") == null
+      || !(configs.get("brave.tracing") instanceof Tracing)) {
+      throw new ConfigException("brave.tracing", configs.get("brave.tracing"), "Must an be instance of brave.Tracing");
+    } else {
+      tracing = (Tracing) configs.get("brave.tracing");
+    }
+
+    Object provider = configs.get("brave.span.name.provider");
+    nameProvider = null;
+    if (provider instanceof RecordSpanNameProvider) {
+      nameProvider = (RecordSpanNameProvider<K, V>) provider;
+    } else if (provider instanceof SpanNameProvider) {
+      nameProvider = byteArrayNameProvider((SpanNameProvider<K>) provider);
+    }
+    if (nameProvider == null) {
+      final DefaultSpanNameProvider<K> names = new DefaultSpanNameProvider<>();
+      nameProvider = record -> names.spanName(record.topic());
+    }
+
+    if (configs.get("brave.span.remote.endpoint") != null
+      && configs.get("brave.span.remote.endpoint") instanceof Endpoint) {
+      kafkaEndpoint = (Endpoint) configs.get("brave.span.remote.endpoint");
+    } else {
+      kafkaEndpoint = Endpoint.newBuilder().serviceName("Kafka").build();
+    }
+
+    metrics = KafkaTracingMetrics.fromConfig(configs);
+    sampler = KafkaSampler.fromConfig(configs);
+    untracedRecords = new UntracedRecords(configs, metrics);
+
+    Object mode = configs.get("brave.consumer.span.mode");
+    if (mode == null) {
+      spanMode = ConsumerSpanMode.RECORD;
+    } else if (mode instanceof ConsumerSpanMode) {
+      spanMode = (ConsumerSpanMode) mode;
+    } else {
+      try {
+        spanMode = ConsumerSpanMode.valueOf(mode.toString().toUpperCase());
+      } catch (IllegalArgumentException e) {
+        throw new ConfigException("brave.consumer.span.mode", mode, "Must be one of RECORD, PARTITION or POLL");
+      }
+    }
+    batch = new ConsumerBatch(tracing);
+    Object pollName = configs.get("brave.consumer.poll.span.name");
+    pollSpanName = pollName != null ? pollName.toString() : "Poll";
+
+    Object maxRanges = configs.get("brave.consumer.commit.ranges.max");
+    try {
+      maxConsumedRanges = maxRanges != null ? Integer.parseInt(maxRanges.toString()) : 1000;
+    } catch (NumberFormatException e) {
+      throw new ConfigException("brave.consumer.commit.ranges.max", maxRanges, "Must be a number of offset ranges");
+    }
+    Object span = configs.get("brave.consumer.commit.span");
+    commitSpan = span != null && Boolean.parseBoolean(span.toString());
+  }
+}
@@ -0,0 +1,80 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.consumers;
+
+import org.apache.kafka.common.TopicPartition;
+import smartthings.brave.kafka.KafkaTracingMetrics;
+
+/**
+ * When the offset ranges of a partition were returned by a poll, kept in a fixed size ring of primitive arrays until
+ * an offset commit covers them. When the ring is full the two oldest ranges are merged under the older consume time,
+ * so memory stays bounded and a consumer that never commits overestimates its latency rather than dropping records.
+ * Only used from the consumer thread.
+ */
+final class ConsumedRanges {
+  private final TopicPartition tp;
+  private final long[] firstOffsets;
+  private final long[] lastOffsets;
+  private final long[] consumedAt;
+  private int head;
+  private int size;
+
+  ConsumedRanges(TopicPartition tp, int capacity) {
+    this.tp = tp;
+    int length = Math.max(capacity, 2);
+    this.firstOffsets = new long[length];
+    this.lastOffsets = new long[length];
+    this.consumedAt = new long[length];
+  }
+
+  void add(long firstOffset, long lastOffset, long now) {
+    if (size == firstOffsets.length) {
+      int next = next(head);
+      firstOffsets[next] = firstOffsets[head];
+      consumedAt[next] = consumedAt[head];
+      head = next;
+      size--;
+    }
+    int tail = (head + size) % firstOffsets.length;
+    firstOffsets[tail] = firstOffset;
+    lastOffsets[tail] = lastOffset;
+    consumedAt[tail] = now;
+    size++;
+  }
+
+  /**
+   * Reports and forgets the offsets below the committed offset, which is the next offset the consumer will read.
+   */
+  void commit(long committedOffset, long now, KafkaTracingMetrics metrics) {
+    while (size > 0) {
+      long first = firstOffsets[head];
+      if (first >= committedOffset) return;
+      long last = lastOffsets[head];
+      if (last >= committedOffset) {
+        // partially committed, keep the rest of the range for the next commit
+        metrics.recordProcessingLatency(tp.topic(), tp.partition(), now - consumedAt[head], committedOffset - first);
+        firstOffsets[head] = committedOffset;
+        return;
+      }
+      metrics.recordProcessingLatency(tp.topic(), tp.partition(), now - consumedAt[head], last - first + 1);
+      head = next(head);
+      size--;
+    }
+  }
+
+  private int next(int index) {
+    return (index + 1) % firstOffsets.length;
+  }
+}
@@ -0,0 +1,110 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.consumers;
+
+import brave.Span;
+import brave.Tracing;
+import brave.propagation.SamplingFlags;
+import brave.propagation.TraceContext;
+import org.apache.kafka.common.TopicPartition;
+import zipkin2.Endpoint;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Accumulates the records of a partition or a poll into a single span, for the {@link ConsumerSpanMode#PARTITION}
+ * and {@link ConsumerSpanMode#POLL} modes. Reused across polls, only used from the consumer thread.
+ */
+final class ConsumerBatch {
+  /** Upper bound of trace ids tagged on a batch span, so a large poll doesn't produce an oversized span. */
+  static final int MAX_UPSTREAM_TRACE_IDS = 32;
+
+  private final Tracing tracing;
+  private final List<TraceContext> upstream = new ArrayList<>();
+  private final StringBuilder offsets = new StringBuilder();
+  private long startNanos;
+  private int records;
+  private int untraced;
+  private boolean sampled;
+
+  ConsumerBatch(Tracing tracing) {
+    this.tracing = tracing;
+  }
+
+  void start() {
+    upstream.clear();
+    offsets.setLength(0);
+    records = 0;
+    untraced = 0;
+    sampled = false;
+    startNanos = System.nanoTime();
+  }
+
+  void traced(TraceContext context) {
+    records++;
+    if (Boolean.TRUE.equals(context.sampled()) || context.debug()) {
+      sampled = true;
+    }
+    if (upstream.size() >= MAX_UPSTREAM_TRACE_IDS) return;
+    for (int i = 0; i < upstream.size(); i++) {
+      TraceContext other = upstream.get(i);
+      if (other.traceId() == context.traceId() && other.traceIdHigh() == context.traceIdHigh()) return;
+    }
+    upstream.add(context);
+  }
+
+  void untraced() {
+    records++;
+    untraced++;
+  }
+
+  void offsets(TopicPartition tp, long first, long last) {
+    if (offsets.length() > 0) offsets.append(',');
+    offsets.append(tp.topic()).append('-').append(tp.partition()).append(':').append(first).append('-').append(last);
+  }
+
+  /**
+   * Reports the batch as a new trace, sampled when any upstream trace is, otherwise left to the sampler.
+   * @param partitionTag the "kafka.partition" tag value, or null when the batch spans several partitions
+   */
+  void report(String name, Endpoint endpoint, String partitionTag) {
+    if (records == 0) return;
+    Span span = tracing.tracer().newTrace(sampled ? SamplingFlags.SAMPLED : SamplingFlags.EMPTY);
+    if (span.isNoop()) return;
+
+    span
+      .kind(Span.Kind.CONSUMER)
+      .name(name)
+      .remoteEndpoint(endpoint)
+      .tag("kafka.record.count", String.valueOf(records))
+      .tag("kafka.untraced.count", String.valueOf(untraced))
+      .tag("kafka.offsets", offsets.toString());
+    if (partitionTag != null) {
+      span.tag("kafka.partition", partitionTag);
+    }
+    if (!upstream.isEmpty()) {
+      StringBuilder traceIds = new StringBuilder(upstream.size() * 33);
+      for (TraceContext context : upstream) {
+        if (traceIds.length() > 0) traceIds.append(',');
+        traceIds.append(context.traceIdString());
+      }
+      span.tag("kafka.upstream.trace_ids", traceIds.toString());
+    }
+    // the span's clock only exists once the span does, so the start is derived from the elapsed time
+    long endMicros = tracing.clock(span.context()).currentTimeMicroseconds();
+    span.start(endMicros - (System.nanoTime() - startNanos) / 1000).finish(endMicros);
+  }
+}
@@ -0,0 +1,33 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.consumers;
+
+/**
+ * How many spans the consumer interceptors report for the records of a poll. Whatever the mode, the extracted
+ * context of each record is still exposed on {@link TracedConsumerRecord}.
+ *
+ * Configured in config as "brave.consumer.span.mode".
+ */
+public enum ConsumerSpanMode {
+  /** One span per record, joining the trace of the producer. Records without a context each start a new trace. */
+  RECORD,
+  /**
+   * One span per partition of a poll, carrying the record count, the offset range, the number of untraced records
+   * and the upstream trace ids.
+   */
+  PARTITION,
+  /** One span per poll, carrying the same details as {@link #PARTITION} for all the partitions of the poll. */
+  POLL
+}
@@ -16,9 +16,26 @@ package smartthings.brave.kafka.consumers;
 
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Names spans "Receive &lt;topic&gt;". Names are cached per topic, so naming a span does not build a new string.
+ */
 public class DefaultSpanNameProvider<K> implements SpanNameProvider<K> {
+  private final ConcurrentMap<String, String> names = new ConcurrentHashMap<>();
+
   @Override
   public String spanName(ConsumerRecord<K, byte[]> record) {
-    return "Receive " + record.topic();
+    return spanName(record.topic());
+  }
+
+  String spanName(String topic) {
+    String name = names.get(topic);
+    if (name == null) {
+      name = "Receive " + topic;
+      names.putIfAbsent(topic, name);
+    }
+    return name;
   }
 }
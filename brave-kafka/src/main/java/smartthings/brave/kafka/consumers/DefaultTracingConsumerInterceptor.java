@@ -16,23 +16,43 @@ package smartthings.brave.kafka.consumers;
 
 import brave.propagation.TraceContext;
 import brave.propagation.TraceContextOrSamplingFlags;
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.CodedInputStream;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.producer.ProducerInterceptor;
 import smartthings.brave.kafka.EnvelopeProtos;
+import smartthings.brave.kafka.TraceEnvelopeCodec;
 import smartthings.brave.kafka.producers.DefaultTracingProducerInterceptor;
 
+import java.io.IOException;
+
 /**
  * Default {@link BaseTracingConsumerInterceptor} that uses {@link EnvelopeProtos.Envelope} to extract tracing context.
+ * Records written with the fixed layout {@link TraceEnvelopeCodec} format are detected by their version prefix and
+ * decoded without parsing protobuf. Records in neither format are recognized from their first bytes and passed
+ * through without an attempt to parse them.
  * See {@link DefaultTracingProducerInterceptor} for the complementary {@link ProducerInterceptor}
  * @param <K> key type
  */
 public class DefaultTracingConsumerInterceptor<K> extends BaseTracingConsumerInterceptor<K> {
 
+  @Override
+  protected boolean isTraced(ConsumerRecord<K, byte[]> record) {
+    return TraceEnvelopeCodec.isEnvelope(record.value()) || TraceEnvelopeCodec.mayBeProtobufEnvelope(record.value());
+  }
+
   @Override
   protected TracedConsumerRecord<K, byte[]> getTracedConsumerRecord(ConsumerRecord<K, byte[]> record) throws ExtractException {
+    if (TraceEnvelopeCodec.isEnvelope(record.value())) {
+      return new TracedConsumerRecord<>(record,
+        TraceEnvelopeCodec.decodePayload(record.value()),
+        TraceEnvelopeCodec.decodeContext(record.value()));
+    }
+
     try {
-      EnvelopeProtos.Envelope envelope = EnvelopeProtos.Envelope.parseFrom(record.value());
+      // alias the payload to the received bytes so it is only copied once, by toByteArray below
+      CodedInputStream input = CodedInputStream.newInstance(record.value());
+      input.enableAliasing(true);
+      EnvelopeProtos.Envelope envelope = EnvelopeProtos.Envelope.parseFrom(input);
       TraceContext.Builder builder = TraceContext.newBuilder()
         .traceIdHigh(envelope.getTraceIdHigh())
         .traceId(envelope.getTraceId())
@@ -45,20 +65,8 @@ public class DefaultTracingConsumerInterceptor<K> extends BaseTracingConsumerInt
         builder.parentId(envelope.getParentId().getValue());
       }
       TraceContextOrSamplingFlags traceContextOrSamplingFlags = TraceContextOrSamplingFlags.create(builder);
-      ConsumerRecord<K, byte[]> originalRecord = new ConsumerRecord<>(
-        record.topic(),
-        record.partition(),
-        record.offset(),
-        record.timestamp(),
-        record.timestampType(),
-        record.checksum(),
-        record.serializedKeySize(),
-        record.serializedValueSize(),
-        record.key(),
-        envelope.getPayload().toByteArray()
-      );
-      return new TracedConsumerRecord<>(originalRecord, traceContextOrSamplingFlags);
-    } catch (InvalidProtocolBufferException e) {
+      return new TracedConsumerRecord<>(record, envelope.getPayload().toByteArray(), traceContextOrSamplingFlags);
+    } catch (IOException e) {
       throw new ExtractException(record, e);
     }
   }
@@ -19,7 +19,8 @@ import org.apache.kafka.clients.consumer.ConsumerRecord;
 public class ExtractException extends Exception {
 
   public ExtractException(ConsumerRecord record, Throwable cause) {
-    super("Error when extracting trace context and original record from received record - " + record, cause);
+    super("Error when extracting trace context and original record from received record at "
+      + record.topic() + "-" + record.partition() + "@" + record.offset(), cause);
   }
 
 }
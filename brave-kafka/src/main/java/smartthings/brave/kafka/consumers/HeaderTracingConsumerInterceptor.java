@@ -0,0 +1,62 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.consumers;
+
+import brave.Tracing;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerInterceptor;
+import org.apache.kafka.common.header.Headers;
+import smartthings.brave.kafka.KafkaHeadersB3Propagation;
+import smartthings.brave.kafka.producers.HeaderTracingProducerInterceptor;
+
+import java.util.Map;
+
+/**
+ * {@link AbstractTracingConsumerInterceptor} that extracts the tracing context from B3 record headers.
+ * The value is passed through as received. Records without any of the propagation's headers are untraced.
+ * See {@link HeaderTracingProducerInterceptor} for the complementary {@link ProducerInterceptor}
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class HeaderTracingConsumerInterceptor<K, V> extends AbstractTracingConsumerInterceptor<K, V> {
+
+  private TraceContext.Extractor<Headers> extractor;
+  /** header names of the propagation, one of which a traced record carries */
+  private String[] keys;
+
+  @Override
+  protected boolean isTraced(ConsumerRecord<K, V> record) {
+    Headers headers = record.headers();
+    for (String key : keys) {
+      if (headers.lastHeader(key) != null) return true;
+    }
+    return false;
+  }
+
+  @Override
+  protected TracedConsumerRecord<K, V> getTracedConsumerRecord(ConsumerRecord<K, V> record) {
+    return new TracedConsumerRecord<>(record, extractor.extract(record.headers()));
+  }
+
+  @Override
+  public void configure(Map<String, ?> configs) {
+    super.configure(configs);
+    Propagation<String> propagation = ((Tracing) configs.get("brave.tracing")).propagation();
+    extractor = propagation.extractor(KafkaHeadersB3Propagation.EXTRACTOR);
+    keys = propagation.keys().toArray(new String[0]);
+  }
+}
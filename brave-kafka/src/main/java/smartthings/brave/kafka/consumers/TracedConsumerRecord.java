@@ -31,7 +31,29 @@ public class TracedConsumerRecord<K, V> extends ConsumerRecord<K, V>{
       record.serializedKeySize(),
       record.serializedValueSize(),
       record.key(),
-      record.value()
+      record.value(),
+      record.headers()
+    );
+    this.traceContextOrSamplingFlags = traceContextOrSamplingFlags;
+  }
+
+  /**
+   * Copies the metadata of a received record but replaces its value, avoiding an intermediate record when the
+   * value had to be unwrapped.
+   */
+  public TracedConsumerRecord(ConsumerRecord<K, ?> record, V value,
+    TraceContextOrSamplingFlags traceContextOrSamplingFlags) {
+    super(record.topic(),
+      record.partition(),
+      record.offset(),
+      record.timestamp(),
+      record.timestampType(),
+      record.checksum(),
+      record.serializedKeySize(),
+      record.serializedValueSize(),
+      record.key(),
+      value,
+      record.headers()
     );
     this.traceContextOrSamplingFlags = traceContextOrSamplingFlags;
   }
@@ -0,0 +1,105 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.consumers;
+
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.serialization.ExtendedDeserializer;
+import org.apache.kafka.common.utils.Utils;
+import smartthings.brave.kafka.KafkaHeadersB3Propagation;
+import smartthings.brave.kafka.TraceEnvelopeCodec;
+import smartthings.brave.kafka.producers.TracingSerializer;
+
+import java.util.Map;
+
+/**
+ * Deserializer that strips the {@link TraceEnvelopeCodec} header written by {@link TracingSerializer} and hands the
+ * payload to a delegate deserializer. The trace context is copied into the record headers with the propagation of
+ * the {@link Tracing}, where {@link HeaderTracingConsumerInterceptor} picks it up. Values without the header go to the
+ * delegate unmodified. Like {@link TracingSerializer}, only values are supported.
+ *
+ * When created by the consumer from its config rather than passed in, requires a {@link Tracing} in config as
+ * "brave.tracing", and the delegate deserializer as an instance, class or class name in config as
+ * "brave.value.deserializer".
+ * @param <T> value type
+ */
+public class TracingDeserializer<T> implements ExtendedDeserializer<T> {
+
+  private TraceContext.Injector<Headers> injector;
+  private ExtendedDeserializer<T> delegate;
+
+  public TracingDeserializer() {
+  }
+
+  public TracingDeserializer(Tracing tracing, Deserializer<T> delegate) {
+    this.injector = tracing.propagation().injector(KafkaHeadersB3Propagation.INJECTOR);
+    this.delegate = ExtendedDeserializer.Wrapper.ensureExtended(delegate);
+  }
+
+  @Override
+  public void configure(Map<String, ?> configs, boolean isKey) {
+    if (isKey) {
+      throw new ConfigException("key.deserializer", getClass().getName(), "Only values can carry a trace header");
+    }
+    if (injector == null) {
+      if (!(configs.get("brave.tracing") instanceof Tracing)) {
+        throw new ConfigException("brave.tracing", configs.get("brave.tracing"), "Must an be instance of brave.Tracing");
+      }
+      injector = ((Tracing) configs.get("brave.tracing")).propagation().injector(KafkaHeadersB3Propagation.INJECTOR);
+    }
+    if (delegate == null) {
+      delegate = ExtendedDeserializer.Wrapper.ensureExtended(
+        newDelegate("brave.value.deserializer", configs.get("brave.value.deserializer")));
+    }
+    delegate.configure(configs, isKey);
+  }
+
+  @Override
+  public T deserialize(String topic, byte[] data) {
+    return deserialize(topic, null, data);
+  }
+
+  @Override
+  public T deserialize(String topic, Headers headers, byte[] data) {
+    if (!TraceEnvelopeCodec.isEnvelope(data)) {
+      return delegate.deserialize(topic, headers, data);
+    }
+    if (headers != null) {
+      TraceContext context = TraceEnvelopeCodec.decodeContext(data).context();
+      injector.inject(context, headers);
+    }
+    return delegate.deserialize(topic, headers, TraceEnvelopeCodec.decodePayload(data));
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> Deserializer<T> newDelegate(String key, Object delegate) {
+    if (delegate instanceof Deserializer) return (Deserializer<T>) delegate;
+    try {
+      if (delegate instanceof Class) return Utils.newInstance((Class<Deserializer<T>>) delegate);
+      if (delegate instanceof String) return Utils.newInstance((String) delegate, Deserializer.class);
+    } catch (ClassNotFoundException | RuntimeException e) {
+      throw new ConfigException(key, delegate, "Could not create deserializer: " + e.getMessage());
+    }
+    throw new ConfigException(key, delegate, "Must be a Deserializer instance, class or class name");
+  }
+}
@@ -0,0 +1,455 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.consumers;
+
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import brave.propagation.TraceContextOrSamplingFlags;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Processes the records of each poll on a worker pool, each handler call running in a child span of the record's
+ * trace context, as extracted by the consumer interceptors into {@link TracedConsumerRecord}.
+ *
+ * Records of a partition are handled in offset order, or with {@link Ordering#KEY} only records of a partition with
+ * the same key are, spreading keys over "key lanes" that run in parallel. Offsets are committable once every record
+ * before them has been handled, see {@link #committableOffsets()}.
+ *
+ * {@link #submit(ConsumerRecords)}, {@link #committableOffsets()} and {@link #revoke(Collection)} must be called from
+ * the poll loop thread. Handler failures are tagged on the span and logged, and by default hold back the committable
+ * offset of their partition at the failed record, so that it is redelivered once the consumer seeks back or the
+ * partition is reassigned. {@link Builder#skipFailures(boolean)} counts failed records as handled instead.
+ *
+ * Records of a partition are queued until they are committable, so the poll loop should pause the
+ * {@link #partitionsToPause()}: partitions blocked by a failed record, which never become committable again, and
+ * partitions with more than {@link Builder#maxQueuedRecords(int)} records queued.
+ * @param <K> key type
+ * @param <V> value type
+ */
+public final class TracingRecordProcessor<K, V> implements Closeable {
+  private final static Logger logger = Logger.getLogger(TracingRecordProcessor.class.getName());
+
+  public interface RecordHandler<K, V> {
+    void handle(ConsumerRecord<K, V> record) throws Exception;
+  }
+
+  public enum Ordering {
+    /** Records of a partition are handled one at a time in offset order. */
+    PARTITION,
+    /** Records of a partition with the same key are handled one at a time in offset order. */
+    KEY
+  }
+
+  public static <K, V> Builder<K, V> newBuilder(Tracing tracing, RecordHandler<K, V> handler) {
+    return new Builder<>(tracing, handler);
+  }
+
+  public static final class Builder<K, V> {
+    private final Tracing tracing;
+    private final RecordHandler<K, V> handler;
+    private ExecutorService executor;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private Ordering ordering = Ordering.PARTITION;
+    private int keyLanes = 16;
+    private String spanName = "Process";
+    private boolean skipFailures;
+    private int maxQueuedRecords = 10000;
+
+    Builder(Tracing tracing, RecordHandler<K, V> handler) {
+      this.tracing = tracing;
+      this.handler = handler;
+    }
+
+    /** Runs handlers on the given executor, which is left running on {@link #close()}. */
+    public Builder<K, V> executor(ExecutorService executor) {
+      this.executor = executor;
+      return this;
+    }
+
+    /**
+     * Without an {@link #executor(ExecutorService)}, runs handlers on a fixed pool of threads, by default one per
+     * processor, shut down on {@link #close()}.
+     */
+    public Builder<K, V> threads(int threads) {
+      if (threads < 1) throw new IllegalArgumentException("threads < 1");
+      this.threads = threads;
+      return this;
+    }
+
+    public Builder<K, V> ordering(Ordering ordering) {
+      this.ordering = ordering;
+      return this;
+    }
+
+    /** With {@link Ordering#KEY}, how many keys of a partition can be handled in parallel, default 16. */
+    public Builder<K, V> keyLanes(int keyLanes) {
+      if (keyLanes < 1) throw new IllegalArgumentException("keyLanes < 1");
+      this.keyLanes = keyLanes;
+      return this;
+    }
+
+    public Builder<K, V> spanName(String spanName) {
+      this.spanName = spanName;
+      return this;
+    }
+
+    /**
+     * When true, a record whose handler threw counts as handled and its offset becomes committable, default false:
+     * the committable offset of its partition stops at the failed record.
+     */
+    public Builder<K, V> skipFailures(boolean skipFailures) {
+      this.skipFailures = skipFailures;
+      return this;
+    }
+
+    /**
+     * Records of a partition queued until committable past which {@link #partitionsToPause()} returns the partition,
+     * default 10000.
+     */
+    public Builder<K, V> maxQueuedRecords(int maxQueuedRecords) {
+      if (maxQueuedRecords < 1) throw new IllegalArgumentException("maxQueuedRecords < 1");
+      this.maxQueuedRecords = maxQueuedRecords;
+      return this;
+    }
+
+    public TracingRecordProcessor<K, V> build() {
+      return new TracingRecordProcessor<>(this);
+    }
+  }
+
+  private final Tracer tracer;
+  private final RecordHandler<K, V> handler;
+  private final ExecutorService executor;
+  private final boolean ownsExecutor;
+  private final int lanesPerPartition;
+  private final String spanName;
+  private final boolean skipFailures;
+  private final int maxQueuedRecords;
+  private final Map<TopicPartition, PartitionState> partitions = new HashMap<>();
+  private final AtomicInteger pending = new AtomicInteger();
+  private final Object idle = new Object();
+
+  TracingRecordProcessor(Builder<K, V> builder) {
+    this.tracer = builder.tracing.tracer();
+    this.handler = builder.handler;
+    this.ownsExecutor = builder.executor == null;
+    this.executor = ownsExecutor ? Executors.newFixedThreadPool(builder.threads) : builder.executor;
+    this.lanesPerPartition = builder.ordering == Ordering.KEY ? builder.keyLanes : 1;
+    this.spanName = builder.spanName;
+    this.skipFailures = builder.skipFailures;
+    this.maxQueuedRecords = builder.maxQueuedRecords;
+  }
+
+  /**
+   * Queues the records of a poll and returns without waiting for them to be handled.
+   * @throws RejectedExecutionException if the executor rejects a record, which is then left unhandled and holds back
+   * the committable offset of its partition
+   */
+  public void submit(ConsumerRecords<K, V> records) {
+    for (TopicPartition tp : records.partitions()) {
+      List<ConsumerRecord<K, V>> partitionRecords = records.records(tp);
+      if (partitionRecords.isEmpty()) continue;
+      PartitionState state = partitions.get(tp);
+      if (state == null) {
+        state = new PartitionState(tp);
+        partitions.put(tp, state);
+      }
+      Batch batch = state.add(partitionRecords);
+      for (int i = 0; i < partitionRecords.size(); i++) {
+        ConsumerRecord<K, V> record = partitionRecords.get(i);
+        pending.incrementAndGet();
+        try {
+          state.lane(record).execute(new Task(record, state, batch, i));
+        } catch (RejectedExecutionException e) {
+          state.block();
+          done();
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return for each partition whose committable offset advanced since the last call, the offset to commit
+   */
+  public Map<TopicPartition, OffsetAndMetadata> committableOffsets() {
+    Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+    for (PartitionState state : partitions.values()) {
+      long offset = state.advance();
+      if (offset >= 0) offsets.put(state.tp, new OffsetAndMetadata(offset));
+    }
+    return offsets;
+  }
+
+  /**
+   * Partitions the poll loop should pause: those blocked by a record that failed or was rejected, whose committable
+   * offset won't move until the consumer seeks back to the committed offset, and those with more than
+   * {@link Builder#maxQueuedRecords(int)} records queued until committable. A blocked partition stays so until it is
+   * {@link #revoke(Collection) revoked}, for example after seeking back.
+   */
+  public Set<TopicPartition> partitionsToPause() {
+    Set<TopicPartition> result = new HashSet<>();
+    for (PartitionState state : partitions.values()) {
+      if (state.shouldPause()) result.add(state.tp);
+    }
+    return result;
+  }
+
+  /**
+   * Forgets partitions that were revoked from the consumer, or that it seeks back to their committed offset. Records
+   * of them still queued are handled, but their offsets are no longer reported.
+   */
+  public void revoke(Collection<TopicPartition> revoked) {
+    for (TopicPartition tp : revoked) {
+      partitions.remove(tp);
+    }
+  }
+
+  /** Records submitted and not yet handled, to pause partitions when workers fall behind. */
+  public int pendingRecords() {
+    return pending.get();
+  }
+
+  /**
+   * Waits until every submitted record has been handled, e.g. before committing on a rebalance.
+   * @return false if records were still pending when the timeout elapsed
+   */
+  public boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    synchronized (idle) {
+      while (pending.get() > 0) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) return false;
+        TimeUnit.NANOSECONDS.timedWait(idle, remaining);
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void close() {
+    if (ownsExecutor) executor.shutdown();
+  }
+
+  private void done() {
+    if (pending.decrementAndGet() == 0) {
+      synchronized (idle) {
+        idle.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * @return false if the handler threw
+   */
+  private boolean handle(ConsumerRecord<K, V> record) {
+    TraceContextOrSamplingFlags extracted = record instanceof TracedConsumerRecord
+      ? ((TracedConsumerRecord<K, V>) record).traceContextOrSamplingFlags
+      : TraceContextOrSamplingFlags.EMPTY;
+    Span span = tracer.nextSpan(extracted);
+    if (!span.isNoop()) {
+      span
+        .name(spanName)
+        .tag("kafka.topic", record.topic())
+        .tag("kafka.partition", String.valueOf(record.partition()))
+        .tag("kafka.offset", String.valueOf(record.offset()));
+    }
+    span.start();
+    try (Tracer.SpanInScope ws = tracer.withSpanInScope(span)) {
+      handler.handle(record);
+      return true;
+    } catch (Exception e) {
+      String message = e.getMessage();
+      span.tag("error", message != null ? message : e.getClass().getSimpleName());
+      logger.log(Level.WARNING, "Failed to handle record at " + record.topic() + "-" + record.partition()
+        + "@" + record.offset(), e);
+      return false;
+    } finally {
+      span.finish();
+    }
+  }
+
+  private final class Task implements Runnable {
+    final ConsumerRecord<K, V> record;
+    final PartitionState state;
+    final Batch batch;
+    final int index;
+
+    Task(ConsumerRecord<K, V> record, PartitionState state, Batch batch, int index) {
+      this.record = record;
+      this.state = state;
+      this.batch = batch;
+      this.index = index;
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (handle(record) || skipFailures) {
+          state.complete(batch, index);
+        } else {
+          state.block();
+        }
+      } finally {
+        done();
+      }
+    }
+  }
+
+  /**
+   * Runs its tasks one at a time, in submission order, on the shared executor.
+   */
+  private final class Lane implements Runnable {
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private boolean running;
+
+    void execute(Runnable task) {
+      synchronized (this) {
+        tasks.add(task);
+        if (running) return;
+        running = true;
+      }
+      try {
+        executor.execute(this);
+      } catch (RejectedExecutionException e) {
+        // the lane was idle, so the rejected task is the only one queued: drop it so later tasks can start the lane
+        synchronized (this) {
+          tasks.clear();
+          running = false;
+        }
+        throw e;
+      }
+    }
+
+    @Override
+    public void run() {
+      while (true) {
+        Runnable task;
+        synchronized (this) {
+          task = tasks.poll();
+          if (task == null) {
+            running = false;
+            return;
+          }
+        }
+        task.run();
+      }
+    }
+  }
+
+  /** The offsets of one poll of a partition, and which of them were handled. */
+  private static final class Batch {
+    final long[] offsets;
+    final boolean[] done;
+    int next;
+
+    Batch(List<? extends ConsumerRecord<?, ?>> records) {
+      offsets = new long[records.size()];
+      done = new boolean[records.size()];
+      for (int i = 0; i < offsets.length; i++) {
+        offsets[i] = records.get(i).offset();
+      }
+    }
+  }
+
+  private final class PartitionState {
+    final TopicPartition tp;
+    final List<Lane> lanes;
+    /** guarded by this */
+    final Queue<Batch> batches = new ArrayDeque<>();
+    /** guarded by this, records in batches not yet committable */
+    int queued;
+    /** guarded by this, a record will never be committable */
+    boolean blocked;
+    long committed = -1;
+
+    PartitionState(TopicPartition tp) {
+      this.tp = tp;
+      this.lanes = new ArrayList<>(lanesPerPartition);
+      for (int i = 0; i < lanesPerPartition; i++) {
+        lanes.add(new Lane());
+      }
+    }
+
+    Lane lane(ConsumerRecord<K, V> record) {
+      if (lanes.size() == 1 || record.key() == null) return lanes.get(0);
+      return lanes.get((record.key().hashCode() & Integer.MAX_VALUE) % lanes.size());
+    }
+
+    synchronized Batch add(List<ConsumerRecord<K, V>> records) {
+      Batch batch = new Batch(records);
+      batches.add(batch);
+      queued += records.size();
+      return batch;
+    }
+
+    synchronized void block() {
+      blocked = true;
+    }
+
+    synchronized boolean shouldPause() {
+      return blocked || queued > maxQueuedRecords;
+    }
+
+    synchronized void complete(Batch batch, int index) {
+      batch.done[index] = true;
+    }
+
+    /**
+     * @return the offset after the last record handled in order, or -1 if it didn't move since the last call
+     */
+    synchronized long advance() {
+      long offset = committed;
+      Batch batch;
+      while ((batch = batches.peek()) != null) {
+        while (batch.next < batch.done.length && batch.done[batch.next]) {
+          batch.next++;
+          queued--;
+        }
+        if (batch.next < batch.done.length) {
+          if (batch.next > 0) offset = batch.offsets[batch.next];
+          break;
+        }
+        offset = batch.offsets[batch.offsets.length - 1] + 1;
+        batches.poll();
+      }
+      if (offset <= committed) return -1;
+      committed = offset;
+      return offset;
+    }
+  }
+}
@@ -0,0 +1,35 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.consumers;
+
+import smartthings.brave.kafka.KafkaTracingMetrics;
+
+/**
+ * What the consumer interceptors do with records that carry no trace context. Untraced records are always
+ * returned to the consumer unmodified.
+ *
+ * Configured in config as "brave.untraced.policy", and per topic as "brave.untraced.policy.&lt;topic&gt;".
+ */
+public enum UntracedRecordPolicy {
+  /** Pass the record through without any bookkeeping. */
+  PASS,
+  /** Count the record with {@link KafkaTracingMetrics#incrementUntracedRecords(String, int)}. */
+  COUNT,
+  /**
+   * Count the record and log a warning, at most once per "brave.untraced.warn.interval.ms" (default one minute)
+   * for each topic.
+   */
+  WARN
+}
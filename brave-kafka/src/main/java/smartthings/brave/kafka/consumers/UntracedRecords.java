@@ -0,0 +1,100 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.consumers;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.config.ConfigException;
+import smartthings.brave.kafka.KafkaTracingMetrics;
+import smartthings.brave.kafka.TopicConfig;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Applies the {@link UntracedRecordPolicy} of each topic. Only used from the consumer thread.
+ */
+final class UntracedRecords {
+  private final static Logger logger = Logger.getLogger(UntracedRecords.class.getName());
+
+  private final UntracedRecordPolicy defaultPolicy;
+  private final Map<String, UntracedRecordPolicy> topicPolicies = new HashMap<>();
+  private final KafkaTracingMetrics metrics;
+  private final long warnIntervalNanos;
+  private final Map<String, TopicState> topics = new HashMap<>();
+
+  UntracedRecords(Map<String, ?> configs, KafkaTracingMetrics metrics) {
+    this.metrics = metrics;
+    Object policy = configs.get("brave.untraced.policy");
+    this.defaultPolicy = policy != null ? parsePolicy(policy) : UntracedRecordPolicy.WARN;
+    for (Map.Entry<String, Object> entry : TopicConfig.overrides(configs, "brave.untraced.policy").entrySet()) {
+      topicPolicies.put(entry.getKey(), parsePolicy(entry.getValue()));
+    }
+    Object interval = configs.get("brave.untraced.warn.interval.ms");
+    try {
+      this.warnIntervalNanos = TimeUnit.MILLISECONDS.toNanos(
+        interval != null ? Long.parseLong(interval.toString()) : 60000L);
+    } catch (NumberFormatException e) {
+      throw new ConfigException("brave.untraced.warn.interval.ms", interval, "Must be a number of milliseconds");
+    }
+  }
+
+  /**
+   * @param cause why extraction failed, or null when the record was recognized as untraced up front
+   */
+  void record(ConsumerRecord<?, ?> record, Exception cause) {
+    TopicState state = topics.get(record.topic());
+    if (state == null) {
+      UntracedRecordPolicy policy = topicPolicies.get(record.topic());
+      state = new TopicState(policy != null ? policy : defaultPolicy);
+      topics.put(record.topic(), state);
+    }
+
+    if (state.policy == UntracedRecordPolicy.PASS) return;
+    metrics.incrementUntracedRecords(record.topic(), 1);
+    if (state.policy == UntracedRecordPolicy.WARN) {
+      state.suppressed++;
+      long now = System.nanoTime();
+      if (state.lastWarning == 0 || now - state.lastWarning >= warnIntervalNanos) {
+        // never log the record itself, values can be large
+        logger.log(Level.WARNING, state.suppressed + " untraced record(s) received from topic " + record.topic()
+          + ", latest at partition " + record.partition() + " offset " + record.offset(), cause);
+        state.lastWarning = now;
+        state.suppressed = 0;
+      }
+    }
+  }
+
+  private static UntracedRecordPolicy parsePolicy(Object policy) {
+    if (policy instanceof UntracedRecordPolicy) return (UntracedRecordPolicy) policy;
+    try {
+      return UntracedRecordPolicy.valueOf(policy.toString().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new ConfigException("brave.untraced.policy", policy, "Must be one of PASS, COUNT or WARN");
+    }
+  }
+
+  private static final class TopicState {
+    final UntracedRecordPolicy policy;
+    long lastWarning;
+    long suppressed;
+
+    TopicState(UntracedRecordPolicy policy) {
+      this.policy = policy;
+    }
+  }
+}
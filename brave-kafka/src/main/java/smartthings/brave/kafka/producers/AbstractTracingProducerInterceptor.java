@@ -0,0 +1,264 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.producers;
+
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import brave.propagation.SamplingFlags;
+import brave.propagation.TraceContext;
+import org.apache.kafka.clients.producer.ProducerInterceptor;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.config.ConfigException;
+import smartthings.brave.kafka.KafkaSampler;
+import smartthings.brave.kafka.KafkaTracingMetrics;
+import smartthings.brave.kafka.TopicConfig;
+import smartthings.brave.kafka.producers.InFlightSends.InFlightSend;
+import zipkin2.Endpoint;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An abstract interceptor that starts a CLIENT span for each producer record, and injects the tracing context by
+ * mutating {@link ProducerRecord} before it is sent. For records sent to an explicit partition, the span is finished
+ * when the broker acknowledges the record, tagged with the error if the send failed. Acknowledgements of records left
+ * to the partitioner can't be matched to their send, so those spans are reported one-way when the record is sent, and
+ * as their acknowledgements could then be taken for another record's, a topic stops being tracked after its first
+ * untracked send. Acknowledgements are matched in send order, which retries can break when the producer allows more
+ * than one request in flight per connection.
+ * Injection is left abstract to allow implementations for different strategies.
+ *
+ * Required: A {@link Tracer} in config as "brave.tracer".
+ * Optional: A {@link RecordSpanNameProvider} in config as "brave.span.name.provider" to customize span name.
+ * Interceptors of byte[] values also accept a {@link SpanNameProvider}.
+ * Optional: A {@link Endpoint} in config as "brave.span.remote.endpoint" to customize span remote endpoint.
+ * Optional: A {@link KafkaTracingMetrics} in config as "brave.metrics" to record acknowledgement latencies.
+ * Optional: A {@link KafkaSampler}, or its per topic settings, in config to sample records sent outside a trace.
+ * Optional: "brave.producer.inflight.max" in config, the number of unacknowledged sends tracked per topic (default
+ * 10000). Reaching it stops tracking the topic, and spans are reported without waiting for their acknowledgement.
+ * Optional: A {@link ProducerSpanMode} in config as "brave.producer.span.mode", or as
+ * "brave.producer.span.mode.&lt;topic&gt;" for a single topic, to only propagate the trace context without a span,
+ * or to report one span per topic and "brave.producer.batch.window.ms" of sends.
+ * @param <K> key type
+ * @param <V> value type
+ */
+public abstract class AbstractTracingProducerInterceptor<K, V> implements ProducerInterceptor<K, V> {
+
+  protected abstract ProducerRecord<K, V> getTracedProducerRecord(
+    TraceContext traceContext, ProducerRecord<K, V> originalRecord);
+
+  private Tracing tracing;
+  private RecordSpanNameProvider<K, V> nameProvider;
+  private Endpoint kafkaEndpoint;
+  private KafkaTracingMetrics metrics;
+  private KafkaSampler sampler;
+  private InFlightSends inFlightSends;
+  /** the tracked send of the last {@link #onSend} call of each thread, see {@link #onAcknowledgement} */
+  private final ThreadLocal<InFlightSend> sending = new ThreadLocal<>();
+  private ProducerSpanMode defaultSpanMode;
+  private ProducerBatches batches;
+  /** only written by configure */
+  private final Map<String, ProducerSpanMode> topicSpanModes = new HashMap<>();
+
+  @Override
+  public ProducerRecord<K, V> onSend(ProducerRecord<K, V> record) {
+    ProducerSpanMode mode = spanMode(record.topic());
+    if (mode == ProducerSpanMode.PROPAGATION) {
+      sending(null);
+      return getTracedProducerRecord(nextContext(record.topic()), record);
+    } else if (mode == ProducerSpanMode.BATCH) {
+      sending(null);
+      int bytes = record.value() instanceof byte[] ? ((byte[]) record.value()).length : -1;
+      TraceContext batch = batches.add(record.topic(), record.partition(), tracing.currentTraceContext().get(), bytes);
+      return getTracedProducerRecord(batch, record);
+    }
+
+    Span span = nextSpan(record.topic())
+      .kind(Span.Kind.CLIENT)
+      .name(nameProvider.spanName(record))
+      .remoteEndpoint(kafkaEndpoint);
+    if (record.partition() != null) {
+      span.tag("Partition", record.partition().toString());
+    }
+    TraceContext ctx = span.context();
+    span.start();
+    InFlightSend send = null;
+    if (record.partition() != null) {
+      send = new InFlightSend(span, record.partition(), System.nanoTime());
+      if (!inFlightSends.add(record.topic(), send)) send = null;
+    }
+    if (send == null) {
+      // left to the partitioner, or too many unacknowledged sends: the acknowledgement can't be matched to this span,
+      // and would be taken for the oldest tracked send to its partition
+      inFlightSends.untrack(record.topic());
+      span.flush();
+    }
+    sending(send);
+    return getTracedProducerRecord(ctx, record);
+  }
+
+  /** Remembers the send made by this thread, to recognize it when it fails before reaching the I/O thread. */
+  private void sending(InFlightSend send) {
+    if (send != null || sending.get() != null) sending.set(send);
+  }
+
+  private Span nextSpan(String topic) {
+    TraceContext parent = tracing.currentTraceContext().get();
+    if (parent != null) return tracing.tracer().newChild(parent);
+    Boolean sampled = sampler.trySample(topic);
+    if (sampled == null) return tracing.tracer().newTrace();
+    return tracing.tracer().newTrace(sampled ? SamplingFlags.SAMPLED : SamplingFlags.NOT_SAMPLED);
+  }
+
+  /**
+   * Propagation only counterpart of {@link #nextSpan(String)}: the context of a child of the current context is
+   * propagated, but the child is never started nor reported. Consumers joining the propagated context would otherwise
+   * share the caller's span id. Outside of a trace, a new root context is derived.
+   */
+  private TraceContext nextContext(String topic) {
+    TraceContext parent = tracing.currentTraceContext().get();
+    if (parent != null) return tracing.tracer().newChild(parent).context();
+    Boolean sampled = sampler.trySample(topic);
+    if (sampled != null) {
+      long id = nextId();
+      return TraceContext.newBuilder().traceId(id).spanId(id).sampled(sampled).build();
+    }
+    // the Tracing sampler is only reachable through the tracer, the span is never started so nothing is reported
+    return tracing.tracer().newTrace().context();
+  }
+
+  private static long nextId() {
+    long id;
+    do {
+      id = ThreadLocalRandom.current().nextLong();
+    } while (id == 0L);
+    return id;
+  }
+
+  private ProducerSpanMode spanMode(String topic) {
+    ProducerSpanMode mode = topicSpanModes.get(topic);
+    return mode != null ? mode : defaultSpanMode;
+  }
+
+  /**
+   * Finishes the span of the acknowledged send, when it can be told exactly which send it was. Sends failing before
+   * they are queued by the producer are acknowledged on the sending thread right after {@link #onSend}, without
+   * offset or timestamp and possibly ahead of older sends to the same partition. Every other acknowledgement arrives
+   * on the producer I/O thread in send order per partition.
+   */
+  @Override
+  public void onAcknowledgement(RecordMetadata metadata, Exception exception) {
+    if (metadata == null) return;
+    InFlightSend send;
+    if (metadata.offset() < 0 && metadata.timestamp() < 0) {
+      send = sending.get();
+      // otherwise the record wasn't tracked and its span was already reported one-way
+      if (send == null || send.partition != metadata.partition()) return;
+      sending.set(null);
+      if (!inFlightSends.remove(metadata.topic(), send)) return;
+    } else {
+      send = inFlightSends.poll(metadata.topic(), metadata.partition());
+      if (send == null) return;
+    }
+
+    metrics.recordAckLatency(metadata.topic(), metadata.partition(), System.nanoTime() - send.startNanos);
+    if (exception != null) {
+      String message = exception.getMessage();
+      send.span.tag("error", message != null ? message : exception.getClass().getSimpleName());
+    }
+    send.span.finish();
+  }
+
+  @Override
+  public void close() {
+    inFlightSends.flushAll();
+    batches.flushAll();
+  }
+
+  /**
+   * Adapts a {@link SpanNameProvider} of byte[] values, only possible when the values are byte[].
+   * @return null when the provider does not apply to this interceptor's values
+   */
+  RecordSpanNameProvider<K, V> byteArrayNameProvider(SpanNameProvider<K> provider) {
+    return null;
+  }
+
+  @Override
+  public void configure(Map<String, ?> configs) {
+    if (configs.get("brave.tracing") == null
+      || !(configs.get("brave.tracing") instanceof Tracing)) {
+      throw new ConfigException("brave.tracing", configs.get("brave.tracing"), "Must an be instance of brave.Tracing");
+    } else {
+      tracing = (Tracing) configs.get("brave.tracing");
+    }
+
+    Object provider = configs.get("brave.span.name.provider");
+    nameProvider = null;
+    if (provider instanceof RecordSpanNameProvider) {
+      nameProvider = (RecordSpanNameProvider<K, V>) provider;
+    } else if (provider instanceof SpanNameProvider) {
+      nameProvider = byteArrayNameProvider((SpanNameProvider<K>) provider);
+    }
+    if (nameProvider == null) {
+      final DefaultSpanNameProvider<K> names = new DefaultSpanNameProvider<>();
+      nameProvider = record -> names.spanName(record.topic());
+    }
+
+    if (configs.get("brave.span.remote.endpoint") != null
+      && configs.get("brave.span.remote.endpoint") instanceof Endpoint) {
+      kafkaEndpoint = (Endpoint) configs.get("brave.span.remote.endpoint");
+    } else {
+      kafkaEndpoint = Endpoint.newBuilder().serviceName("Kafka").build();
+    }
+
+    metrics = KafkaTracingMetrics.fromConfig(configs);
+    sampler = KafkaSampler.fromConfig(configs);
+
+    Object maxInFlight = configs.get("brave.producer.inflight.max");
+    try {
+      inFlightSends = new InFlightSends(maxInFlight != null ? Integer.parseInt(maxInFlight.toString()) : 10000);
+    } catch (NumberFormatException e) {
+      throw new ConfigException("brave.producer.inflight.max", maxInFlight, "Must be a number of records");
+    }
+
+    Object window = configs.get("brave.producer.batch.window.ms");
+    try {
+      batches = new ProducerBatches(tracing, sampler, kafkaEndpoint,
+        TimeUnit.MILLISECONDS.toNanos(window != null ? Long.parseLong(window.toString()) : 1000L));
+    } catch (NumberFormatException e) {
+      throw new ConfigException("brave.producer.batch.window.ms", window, "Must be a number of milliseconds");
+    }
+
+    Object mode = configs.get("brave.producer.span.mode");
+    defaultSpanMode = mode != null ? parseSpanMode(mode) : ProducerSpanMode.RECORD;
+    topicSpanModes.clear();
+    for (Map.Entry<String, Object> entry : TopicConfig.overrides(configs, "brave.producer.span.mode").entrySet()) {
+      topicSpanModes.put(entry.getKey(), parseSpanMode(entry.getValue()));
+    }
+  }
+
+  private static ProducerSpanMode parseSpanMode(Object mode) {
+    if (mode instanceof ProducerSpanMode) return (ProducerSpanMode) mode;
+    try {
+      return ProducerSpanMode.valueOf(mode.toString().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new ConfigException("brave.producer.span.mode", mode, "Must be one of RECORD, PROPAGATION or BATCH");
+    }
+  }
+}
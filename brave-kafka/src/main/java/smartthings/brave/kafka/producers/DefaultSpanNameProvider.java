@@ -16,9 +16,26 @@ package smartthings.brave.kafka.producers;
 
 import org.apache.kafka.clients.producer.ProducerRecord;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Names spans "Send &lt;topic&gt;". Names are cached per topic, so naming a span does not build a new string.
+ */
 public class DefaultSpanNameProvider<K> implements SpanNameProvider<K> {
+  private final ConcurrentMap<String, String> names = new ConcurrentHashMap<>();
+
   @Override
   public String spanName(ProducerRecord<K, byte[]> producerRecord) {
-   return "Send " + producerRecord.topic();
+    return spanName(producerRecord.topic());
+  }
+
+  String spanName(String topic) {
+    String name = names.get(topic);
+    if (name == null) {
+      name = "Send " + topic;
+      names.putIfAbsent(topic, name);
+    }
+    return name;
   }
 }
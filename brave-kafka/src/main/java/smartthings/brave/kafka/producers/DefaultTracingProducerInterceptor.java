@@ -16,29 +16,46 @@ package smartthings.brave.kafka.producers;
 
 import brave.propagation.TraceContext;
 import com.google.protobuf.BoolValue;
-import com.google.protobuf.ByteString;
 import com.google.protobuf.Int64Value;
+import com.google.protobuf.UnsafeByteOperations;
 import org.apache.kafka.clients.consumer.ConsumerInterceptor;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.config.ConfigException;
 import smartthings.brave.kafka.EnvelopeProtos;
+import smartthings.brave.kafka.TraceEnvelopeCodec;
 import smartthings.brave.kafka.consumers.DefaultTracingConsumerInterceptor;
 
+import java.nio.ByteBuffer;
+import java.util.Map;
+
 /**
  * Default {@link BaseTracingProducerInterceptor} that uses {@link EnvelopeProtos.Envelope} to inject tracing context.
  * see {@link DefaultTracingConsumerInterceptor} for the complementary {@link ConsumerInterceptor}.
+ *
+ * Optional: "brave.envelope.version" in config, 0 (default) for {@link EnvelopeProtos.Envelope} or
+ * {@link TraceEnvelopeCodec#VERSION_1} for the fixed layout {@link TraceEnvelopeCodec} format. Consumers must be
+ * upgraded to read the fixed layout format before producers switch to it.
  * @param <K>
  */
 public class DefaultTracingProducerInterceptor<K> extends BaseTracingProducerInterceptor<K> {
 
+  private int envelopeVersion = 0;
+
   @Override
   protected ProducerRecord<K, byte[]> getTracedProducerRecord(TraceContext ctx, ProducerRecord<K, byte[]> record) {
+    if (envelopeVersion == TraceEnvelopeCodec.VERSION_1) {
+      return new ProducerRecord<>(record.topic(), record.partition(), record.timestamp(), record.key(),
+        TraceEnvelopeCodec.encode(ctx, record.value()));
+    }
+
     // Set trace context of the envelope
     EnvelopeProtos.Envelope.Builder builder = EnvelopeProtos.Envelope.newBuilder()
       .setTraceIdHigh(ctx.traceIdHigh())
       .setTraceId(ctx.traceId())
       .setSpanId(ctx.spanId())
       .setShared(ctx.shared())
-      .setPayload(ByteString.copyFrom(record.value()));
+      // wrap instead of copy, the payload is copied once when the envelope is serialized
+      .setPayload(UnsafeByteOperations.unsafeWrap(ByteBuffer.wrap(record.value())));
     if (ctx.parentId() != null) {
       builder.setParentId(Int64Value.newBuilder().setValue(ctx.parentId()).build());
     }
@@ -48,4 +65,21 @@ public class DefaultTracingProducerInterceptor<K> extends BaseTracingProducerInt
     EnvelopeProtos.Envelope envelope = builder.build();
     return new ProducerRecord<>(record.topic(), record.partition(), record.timestamp(), record.key(), envelope.toByteArray());
   }
+
+  @Override
+  public void configure(Map<String, ?> configs) {
+    super.configure(configs);
+
+    Object version = configs.get("brave.envelope.version");
+    if (version != null) {
+      try {
+        envelopeVersion = Integer.parseInt(version.toString());
+      } catch (NumberFormatException e) {
+        throw new ConfigException("brave.envelope.version", version, "Must be 0 or 1");
+      }
+      if (envelopeVersion != 0 && envelopeVersion != TraceEnvelopeCodec.VERSION_1) {
+        throw new ConfigException("brave.envelope.version", version, "Must be 0 or 1");
+      }
+    }
+  }
 }
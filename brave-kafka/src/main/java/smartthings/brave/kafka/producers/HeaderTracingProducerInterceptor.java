@@ -0,0 +1,58 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.producers;
+
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import org.apache.kafka.clients.consumer.ConsumerInterceptor;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import smartthings.brave.kafka.KafkaHeadersB3Propagation;
+import smartthings.brave.kafka.consumers.HeaderTracingConsumerInterceptor;
+
+import java.util.Map;
+
+/**
+ * {@link AbstractTracingProducerInterceptor} that injects the tracing context as B3 record headers, leaving the
+ * value untouched. Requires brokers and consumers on Kafka 0.11 or later.
+ * see {@link HeaderTracingConsumerInterceptor} for the complementary {@link ConsumerInterceptor}.
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class HeaderTracingProducerInterceptor<K, V> extends AbstractTracingProducerInterceptor<K, V> {
+
+  private TraceContext.Injector<Headers> injector;
+
+  @Override
+  protected ProducerRecord<K, V> getTracedProducerRecord(TraceContext ctx, ProducerRecord<K, V> record) {
+    try {
+      injector.inject(ctx, record.headers());
+      return record;
+    } catch (IllegalStateException e) {
+      // headers are made read-only once a record was sent, so a resent record needs a copy
+      ProducerRecord<K, V> copy = new ProducerRecord<>(record.topic(), record.partition(), record.timestamp(),
+        record.key(), record.value(), new RecordHeaders(record.headers().toArray()));
+      injector.inject(ctx, copy.headers());
+      return copy;
+    }
+  }
+
+  @Override
+  public void configure(Map<String, ?> configs) {
+    super.configure(configs);
+    injector = ((Tracing) configs.get("brave.tracing")).propagation().injector(KafkaHeadersB3Propagation.INJECTOR);
+  }
+}
@@ -0,0 +1,159 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.producers;
+
+import brave.Span;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Correlates acknowledgements with the sends they answer, without locks since sends happen on application threads
+ * while acknowledgements arrive on the producer I/O thread.
+ *
+ * Kafka acknowledges the records of a partition in the order they were sent, so only sends to an explicit partition
+ * are tracked. The partition chosen by the partitioner is unknown when the record is sent, and matching those
+ * acknowledgements by topic alone would finish the spans of other records.
+ *
+ * An acknowledgement only says which partition it is for, so matching in send order requires every send to the
+ * partition to be tracked: once a send to a topic goes untracked, its acknowledgement could be taken for the oldest
+ * tracked one. Such a topic is {@link #untrack(String) untracked} for good instead. Matching also assumes the producer
+ * doesn't reorder retried sends, as it may with retries and "max.in.flight.requests.per.connection" above 1.
+ */
+final class InFlightSends {
+
+  static final class InFlightSend {
+    final Span span;
+    final int partition;
+    final long startNanos;
+
+    InFlightSend(Span span, int partition, long startNanos) {
+      this.span = span;
+      this.partition = partition;
+      this.startNanos = startNanos;
+    }
+  }
+
+  private final int maxPerTopic;
+  private final ConcurrentMap<String, TopicSends> topics = new ConcurrentHashMap<>();
+
+  InFlightSends(int maxPerTopic) {
+    this.maxPerTopic = maxPerTopic;
+  }
+
+  /**
+   * @return false when the topic already has the maximum number of sends in flight, the send was not added
+   */
+  boolean add(String topic, InFlightSend send) {
+    TopicSends sends = sends(topic);
+    if (sends.untracked) return false;
+    if (sends.size.incrementAndGet() > maxPerTopic) {
+      sends.size.decrementAndGet();
+      return false;
+    }
+    Queue<InFlightSend> partitioned = sends.queue(send.partition);
+    partitioned.offer(send);
+    // untracked concurrently: either this takes the send back, or untrack flushed it
+    if (sends.untracked && partitioned.remove(send)) {
+      sends.size.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Stops tracking the topic after a send to it went untracked, flushing the spans of its sends still in flight.
+   */
+  void untrack(String topic) {
+    TopicSends sends = sends(topic);
+    if (sends.untracked) return;
+    sends.untracked = true;
+    sends.flush();
+  }
+
+  private TopicSends sends(String topic) {
+    TopicSends sends = topics.get(topic);
+    if (sends == null) {
+      TopicSends created = new TopicSends();
+      sends = topics.putIfAbsent(topic, created);
+      if (sends == null) sends = created;
+    }
+    return sends;
+  }
+
+  /**
+   * @return the oldest send to the acknowledged partition, or null when none is in flight
+   */
+  InFlightSend poll(String topic, int partition) {
+    TopicSends sends = topics.get(topic);
+    if (sends == null || sends.untracked) return null;
+    Queue<InFlightSend> partitioned = sends.partitioned.get(partition);
+    InFlightSend send = partitioned != null ? partitioned.poll() : null;
+    if (send != null) sends.size.decrementAndGet();
+    return send;
+  }
+
+  /**
+   * Removes a send that failed before it was queued by the producer, which is acknowledged ahead of older sends.
+   * @return false when the send is no longer in flight
+   */
+  boolean remove(String topic, InFlightSend send) {
+    TopicSends sends = topics.get(topic);
+    if (sends == null) return false;
+    Queue<InFlightSend> partitioned = sends.partitioned.get(send.partition);
+    if (partitioned == null || !partitioned.remove(send)) return false;
+    sends.size.decrementAndGet();
+    return true;
+  }
+
+  /**
+   * Flushes the spans of every send still in flight, as they will never be acknowledged.
+   */
+  void flushAll() {
+    for (TopicSends sends : topics.values()) {
+      sends.flush();
+    }
+    topics.clear();
+  }
+
+  private static final class TopicSends {
+    final AtomicInteger size = new AtomicInteger();
+    final ConcurrentMap<Integer, Queue<InFlightSend>> partitioned = new ConcurrentHashMap<>();
+    volatile boolean untracked;
+
+    void flush() {
+      for (Queue<InFlightSend> queue : partitioned.values()) {
+        InFlightSend send;
+        while ((send = queue.poll()) != null) {
+          size.decrementAndGet();
+          send.span.flush();
+        }
+      }
+    }
+
+    Queue<InFlightSend> queue(int partition) {
+      Queue<InFlightSend> queue = partitioned.get(partition);
+      if (queue == null) {
+        Queue<InFlightSend> created = new ConcurrentLinkedQueue<>();
+        queue = partitioned.putIfAbsent(partition, created);
+        if (queue == null) queue = created;
+      }
+      return queue;
+    }
+  }
+}
@@ -0,0 +1,220 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.producers;
+
+import brave.Span;
+import brave.Tracing;
+import brave.propagation.SamplingFlags;
+import brave.propagation.TraceContext;
+import smartthings.brave.kafka.KafkaSampler;
+import zipkin2.Endpoint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Groups the records sent to a topic partition within a time window under one span, for {@link ProducerSpanMode#BATCH}.
+ * Records left to the partitioner share a window per topic. The span is started by the first send of the window and
+ * its context is propagated with every record of the window, so consumers continue the batch trace.
+ *
+ * Sends happen on application threads: the current window of a partition is swapped with a compare-and-set, so the
+ * sampler and span creation run without a lock, and a send only locks its own window to count itself. Windows of
+ * partitions that stopped sending are ended by a timer thread.
+ */
+final class ProducerBatches {
+  /** Upper bound of trace ids tagged on a batch span, so a large batch doesn't produce an oversized span. */
+  static final int MAX_UPSTREAM_TRACE_IDS = 32;
+  /** Partition of records left to the partitioner. */
+  static final int ANY_PARTITION = -1;
+
+  private final Tracing tracing;
+  private final KafkaSampler sampler;
+  private final Endpoint endpoint;
+  private final long windowNanos;
+  private final ConcurrentMap<String, ConcurrentMap<Integer, AtomicReference<Window>>> topics =
+    new ConcurrentHashMap<>();
+  private final ScheduledThreadPoolExecutor timer;
+  private final AtomicBoolean sweeping = new AtomicBoolean();
+
+  ProducerBatches(Tracing tracing, KafkaSampler sampler, Endpoint endpoint, long windowNanos) {
+    this.tracing = tracing;
+    this.sampler = sampler;
+    this.endpoint = endpoint;
+    this.windowNanos = windowNanos;
+    this.timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "brave-kafka-producer-batches");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Adds a record sent to the topic to its current window, starting a new window when the last one is over.
+   * @param partition the record's partition, or null when left to the partitioner
+   * @param parent the context the record was sent in, or null
+   * @param bytes size of the record's payload, or -1 when unknown
+   * @return the context of the window's span, to propagate with the record
+   */
+  TraceContext add(String topic, Integer partition, TraceContext parent, int bytes) {
+    AtomicReference<Window> current = current(topic, partition != null ? partition : ANY_PARTITION);
+    while (true) {
+      long now = System.nanoTime();
+      Window window = current.get();
+      if (window != null && now - window.startNanos < windowNanos && window.add(parent, now, bytes)) {
+        return window.span.context();
+      }
+      Span span = newSpan(topic, parent);
+      if (!current.compareAndSet(window, null)) {
+        span.abandon();
+        continue;
+      }
+      if (window != null) window.end();
+      Window started = new Window(span.isNoop() ? span : start(span, topic, partition), now);
+      started.add(parent, now, bytes);
+      // the slot was emptied above, a concurrent send may have filled it since: that window ends right away
+      Window raced = current.getAndSet(started);
+      if (raced != null) raced.end();
+      return started.span.context();
+    }
+  }
+
+  void flushAll() {
+    timer.shutdownNow();
+    sweep(Long.MAX_VALUE);
+  }
+
+  private AtomicReference<Window> current(String topic, int partition) {
+    ConcurrentMap<Integer, AtomicReference<Window>> partitions = topics.get(topic);
+    if (partitions == null) {
+      ConcurrentMap<Integer, AtomicReference<Window>> created = new ConcurrentHashMap<>();
+      partitions = topics.putIfAbsent(topic, created);
+      if (partitions == null) partitions = created;
+    }
+    AtomicReference<Window> current = partitions.get(partition);
+    if (current == null) {
+      AtomicReference<Window> created = new AtomicReference<>();
+      current = partitions.putIfAbsent(partition, created);
+      if (current == null) current = created;
+    }
+    if (!sweeping.get() && sweeping.compareAndSet(false, true)) scheduleSweeps();
+    return current;
+  }
+
+  private void scheduleSweeps() {
+    long periodNanos = Math.max(windowNanos, TimeUnit.MILLISECONDS.toNanos(10));
+    try {
+      timer.scheduleWithFixedDelay(() -> sweep(System.nanoTime()), periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      // closed, flushAll ended the windows
+    }
+  }
+
+  /** Ends the windows that are over, so partitions that stopped sending still get their window reported. */
+  private void sweep(long now) {
+    for (ConcurrentMap<Integer, AtomicReference<Window>> partitions : topics.values()) {
+      for (AtomicReference<Window> current : partitions.values()) {
+        Window window = current.get();
+        if (window != null && (now == Long.MAX_VALUE || now - window.startNanos >= windowNanos)
+          && current.compareAndSet(window, null)) {
+          window.end();
+        }
+      }
+    }
+  }
+
+  /** The batch span is sampled when the first record of the window is, otherwise left to the sampler. */
+  private Span newSpan(String topic, TraceContext parent) {
+    Boolean sampled = parent != null && Boolean.TRUE.equals(parent.sampled()) ? Boolean.TRUE : sampler.trySample(topic);
+    return sampled == null
+      ? tracing.tracer().newTrace()
+      : tracing.tracer().newTrace(sampled ? SamplingFlags.SAMPLED : SamplingFlags.NOT_SAMPLED);
+  }
+
+  private Span start(Span span, String topic, Integer partition) {
+    span
+      .kind(Span.Kind.CLIENT)
+      .name("Send batch")
+      .remoteEndpoint(endpoint)
+      .tag("kafka.topic", topic);
+    if (partition != null) span.tag("kafka.partition", partition.toString());
+    return span;
+  }
+
+  private final class Window {
+    final Span span;
+    final long startNanos;
+    final long startMicros;
+    /** guarded by this */
+    final List<TraceContext> upstream = new ArrayList<>();
+    /** guarded by this */
+    long lastNanos;
+    /** guarded by this */
+    int records;
+    /** guarded by this, -1 once a record of unknown size was added */
+    long bytes;
+    /** guarded by this */
+    boolean ended;
+
+    Window(Span span, long startNanos) {
+      this.span = span;
+      this.startNanos = startNanos;
+      this.startMicros = span.isNoop() ? 0L : tracing.clock(span.context()).currentTimeMicroseconds();
+      span.start(startMicros);
+    }
+
+    /** @return false when the window already ended */
+    synchronized boolean add(TraceContext parent, long nowNanos, int recordBytes) {
+      if (ended) return false;
+      records++;
+      lastNanos = nowNanos;
+      if (span.isNoop()) return true;
+      bytes = recordBytes < 0 || bytes < 0 ? -1 : bytes + recordBytes;
+      if (parent == null || upstream.size() >= MAX_UPSTREAM_TRACE_IDS) return true;
+      for (int i = 0; i < upstream.size(); i++) {
+        TraceContext other = upstream.get(i);
+        if (other.traceId() == parent.traceId() && other.traceIdHigh() == parent.traceIdHigh()) return true;
+      }
+      upstream.add(parent);
+      return true;
+    }
+
+    /** Finishes the span at the last send of the window rather than when the window was noticed to be over. */
+    void end() {
+      synchronized (this) {
+        if (ended) return;
+        ended = true;
+      }
+      if (span.isNoop()) return;
+      span.tag("kafka.record.count", String.valueOf(records));
+      if (bytes >= 0) span.tag("kafka.batch.bytes", String.valueOf(bytes));
+      if (!upstream.isEmpty()) {
+        StringBuilder traceIds = new StringBuilder(upstream.size() * 33);
+        for (TraceContext context : upstream) {
+          if (traceIds.length() > 0) traceIds.append(',');
+          traceIds.append(context.traceIdString());
+        }
+        span.tag("kafka.upstream.trace_ids", traceIds.toString());
+      }
+      span.finish(startMicros + (lastNanos - startNanos) / 1000);
+    }
+  }
+}
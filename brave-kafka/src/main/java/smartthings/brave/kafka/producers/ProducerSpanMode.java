@@ -0,0 +1,37 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.producers;
+
+/**
+ * What the producer interceptors report for the records of a topic.
+ *
+ * Configured in config as "brave.producer.span.mode", and per topic as "brave.producer.span.mode.&lt;topic&gt;".
+ */
+public enum ProducerSpanMode {
+  /** One CLIENT span per record, finished when the record is acknowledged. */
+  RECORD,
+  /**
+   * No span, the context of an unreported child of the current context is propagated with the record so consumers
+   * continue the caller's trace.
+   * Nothing is reported and acknowledgements are not tracked.
+   */
+  PROPAGATION,
+  /**
+   * One CLIENT span per topic partition and "brave.producer.batch.window.ms" (default one second) of sends, carrying
+   * the record count. The batch span's context is propagated with each record of the window and acknowledgements are not
+   * tracked.
+   */
+  BATCH
+}
@@ -0,0 +1,27 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.producers;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+
+/**
+ * Names spans of records with any value type, as sent through {@link HeaderTracingProducerInterceptor}.
+ * {@link SpanNameProvider} is still accepted by interceptors of byte[] values.
+ * @param <K> key type
+ * @param <V> value type
+ */
+public interface RecordSpanNameProvider<K, V> {
+  String spanName(ProducerRecord<K, V> producerRecord);
+}
@@ -0,0 +1,142 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.producers;
+
+import brave.Span;
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.ExtendedSerializer;
+import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.common.utils.Utils;
+import smartthings.brave.kafka.TraceEnvelopeCodec;
+import smartthings.brave.kafka.consumers.TracingDeserializer;
+import zipkin2.Endpoint;
+
+import java.util.Map;
+
+/**
+ * Serializer that reports a one-way CLIENT span as a child of the current trace context, and prefixes the output of a
+ * delegate serializer with the {@link TraceEnvelopeCodec} header of that span, so any value type can carry a trace
+ * without a byte[] only interceptor. The header and the delegate's output are written into a single array sized up
+ * front. Values serialized outside of a trace context are left as the delegate wrote them.
+ * see {@link TracingDeserializer} for the complementary deserializer.
+ *
+ * Only values can be traced: a header that changes on every send would change how keys are partitioned and compacted,
+ * so configuring it as a key serializer fails.
+ *
+ * When created by the producer from its config rather than passed in, requires a {@link Tracing} in config as
+ * "brave.tracing", and the delegate serializer as an instance, class or class name in config as
+ * "brave.value.serializer".
+ * Optional: A {@link Endpoint} in config as "brave.span.remote.endpoint" to customize span remote endpoint.
+ * Optional: A {@link RecordSpanNameProvider} or {@link SpanNameProvider} in config as "brave.span.name.provider", as
+ * for the interceptors, given a record of the topic and value only.
+ * @param <T> value type
+ */
+public class TracingSerializer<T> implements ExtendedSerializer<T> {
+
+  private Tracing tracing;
+  private ExtendedSerializer<T> delegate;
+  private Endpoint kafkaEndpoint = Endpoint.newBuilder().serviceName("Kafka").build();
+  private final DefaultSpanNameProvider<Object> names = new DefaultSpanNameProvider<>();
+  private RecordSpanNameProvider<Object, T> nameProvider;
+  private SpanNameProvider<Object> byteArrayNameProvider;
+
+  public TracingSerializer() {
+  }
+
+  public TracingSerializer(Tracing tracing, Serializer<T> delegate) {
+    this.tracing = tracing;
+    this.delegate = ExtendedSerializer.Wrapper.ensureExtended(delegate);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void configure(Map<String, ?> configs, boolean isKey) {
+    if (isKey) {
+      throw new ConfigException("key.serializer", getClass().getName(), "Only values can carry a trace header");
+    }
+    if (tracing == null) {
+      if (!(configs.get("brave.tracing") instanceof Tracing)) {
+        throw new ConfigException("brave.tracing", configs.get("brave.tracing"), "Must an be instance of brave.Tracing");
+      }
+      tracing = (Tracing) configs.get("brave.tracing");
+    }
+    if (delegate == null) {
+      delegate = ExtendedSerializer.Wrapper.ensureExtended(
+        newDelegate("brave.value.serializer", configs.get("brave.value.serializer")));
+    }
+    if (configs.get("brave.span.remote.endpoint") instanceof Endpoint) {
+      kafkaEndpoint = (Endpoint) configs.get("brave.span.remote.endpoint");
+    }
+    Object provider = configs.get("brave.span.name.provider");
+    if (provider instanceof RecordSpanNameProvider) {
+      nameProvider = (RecordSpanNameProvider<Object, T>) provider;
+    } else if (provider instanceof SpanNameProvider && !(provider instanceof DefaultSpanNameProvider)) {
+      byteArrayNameProvider = (SpanNameProvider<Object>) provider;
+    }
+    delegate.configure(configs, isKey);
+  }
+
+  @Override
+  public byte[] serialize(String topic, T data) {
+    return serialize(topic, null, data);
+  }
+
+  @Override
+  public byte[] serialize(String topic, Headers headers, T data) {
+    byte[] payload = delegate.serialize(topic, headers, data);
+    TraceContext parent = tracing.currentTraceContext().get();
+    if (parent == null || payload == null) return payload;
+    Span span = tracing.tracer().newChild(parent);
+    if (!span.isNoop()) {
+      span
+        .kind(Span.Kind.CLIENT)
+        .name(spanName(topic, data, payload))
+        .remoteEndpoint(kafkaEndpoint)
+        .start()
+        .flush();
+    }
+    return TraceEnvelopeCodec.encode(span.context(), payload);
+  }
+
+  /** Only custom providers get a record, the default names are cached per topic. */
+  private String spanName(String topic, T data, byte[] payload) {
+    if (nameProvider != null) return nameProvider.spanName(new ProducerRecord<Object, T>(topic, data));
+    if (byteArrayNameProvider != null) {
+      return byteArrayNameProvider.spanName(new ProducerRecord<Object, byte[]>(topic, payload));
+    }
+    return names.spanName(topic);
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> Serializer<T> newDelegate(String key, Object delegate) {
+    if (delegate instanceof Serializer) return (Serializer<T>) delegate;
+    try {
+      if (delegate instanceof Class) return Utils.newInstance((Class<Serializer<T>>) delegate);
+      if (delegate instanceof String) return Utils.newInstance((String) delegate, Serializer.class);
+    } catch (ClassNotFoundException | RuntimeException e) {
+      throw new ConfigException(key, delegate, "Could not create serializer: " + e.getMessage());
+    }
+    throw new ConfigException(key, delegate, "Must be a Serializer instance, class or class name");
+  }
+}
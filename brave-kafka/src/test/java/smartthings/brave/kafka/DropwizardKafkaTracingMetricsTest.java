@@ -0,0 +1,61 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import org.apache.kafka.common.config.ConfigException;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DropwizardKafkaTracingMetricsTest {
+
+  private final MetricRegistry registry = new MetricRegistry();
+
+  @Test
+  public void testFromConfig_registry() {
+    KafkaTracingMetrics metrics = KafkaTracingMetrics.fromConfig(ImmutableMap.of("brave.metrics.registry", registry));
+
+    assertTrue(metrics instanceof DropwizardKafkaTracingMetrics);
+  }
+
+  @Test(expected = ConfigException.class)
+  public void testFromConfig_invalidRegistry() {
+    KafkaTracingMetrics.fromConfig(ImmutableMap.of("brave.metrics.registry", "registry"));
+  }
+
+  @Test
+  public void testMetricNames() {
+    DropwizardKafkaTracingMetrics metrics = new DropwizardKafkaTracingMetrics(registry);
+
+    metrics.incrementUntracedRecords("my-topic", 2);
+    metrics.incrementConsumedRecords("my-topic", 1, 3, 42);
+    metrics.incrementConsumedRecords("my-topic", 1, 1, 8);
+    metrics.recordEndToEndLatency("my-topic", 1, 15);
+    metrics.recordAckLatency("my-topic", 0, TimeUnit.MILLISECONDS.toNanos(4));
+
+    assertEquals(2, registry.meter("tracing.kafka.my-topic.untraced").getCount());
+    assertEquals(4, registry.meter("tracing.kafka.my-topic.1.records").getCount());
+    assertEquals(50, registry.meter("tracing.kafka.my-topic.1.bytes").getCount());
+    assertEquals(1, registry.timer("tracing.kafka.my-topic.1.e2e.latency").getCount());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(15),
+      registry.timer("tracing.kafka.my-topic.1.e2e.latency").getSnapshot().getMax());
+    assertEquals(1, registry.timer("tracing.kafka.my-topic.0.ack.latency").getCount());
+  }
+}
@@ -0,0 +1,83 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.kafka.common.config.ConfigException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class KafkaSamplerTest {
+
+  @Test
+  public void testFromConfig_defersWithoutSettings() {
+    KafkaSampler sampler = KafkaSampler.fromConfig(ImmutableMap.<String, Object>of());
+
+    assertSame(KafkaSampler.TRACE_ID, sampler);
+    assertNull(sampler.trySample("my-topic"));
+  }
+
+  @Test
+  public void testFromConfig_instance() {
+    assertSame(KafkaSampler.NEVER_SAMPLE,
+      KafkaSampler.fromConfig(ImmutableMap.of("brave.sampler", KafkaSampler.NEVER_SAMPLE)));
+  }
+
+  @Test
+  public void testTrySample_perTopicRate() {
+    KafkaSampler sampler = KafkaSampler.fromConfig(ImmutableMap.of(
+      "brave.sampler.rate", "0.0",
+      "brave.sampler.rate.commands", "1.0"
+    ));
+
+    for (int i = 0; i < 100; i++) {
+      assertFalse(sampler.trySample("telemetry"));
+      assertTrue(sampler.trySample("commands"));
+    }
+  }
+
+  @Test
+  public void testTrySample_perTopicLimit() {
+    KafkaSampler sampler = KafkaSampler.fromConfig(ImmutableMap.of(
+      "brave.sampler.limit.telemetry", 10
+    ));
+
+    int sampled = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (sampler.trySample("telemetry")) sampled++;
+      // no default rate nor limit, other topics are left to the Tracing sampler
+      assertNull(sampler.trySample("commands"));
+    }
+    // the loop may straddle a second boundary
+    assertTrue("sampled " + sampled, sampled >= 10 && sampled <= 20);
+  }
+
+  @Test
+  public void testTrySample_zeroLimit() {
+    KafkaSampler sampler = KafkaSampler.fromConfig(ImmutableMap.of("brave.sampler.limit", 0));
+
+    assertEquals(Boolean.FALSE, sampler.trySample("telemetry"));
+  }
+
+  @Test(expected = ConfigException.class)
+  public void testFromConfig_invalidRate() {
+    KafkaSampler.fromConfig(ImmutableMap.of("brave.sampler.rate.telemetry", "1.5"));
+  }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka;
+
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TraceEnvelopeCodecTest {
+
+  private final TraceContext context = TraceContext.newBuilder()
+    .traceIdHigh(0x463ac35c9f6413adL)
+    .traceId(0x48485a3953bb6124L)
+    .parentId(-1L)
+    .spanId(0x7fffffffffffffffL)
+    .sampled(true)
+    .build();
+
+  @Test
+  public void roundTrip() {
+    byte[] payload = "lmao".getBytes();
+
+    byte[] encoded = TraceEnvelopeCodec.encode(context, payload);
+
+    assertEquals(TraceEnvelopeCodec.HEADER_SIZE + payload.length, encoded.length);
+    assertTrue(TraceEnvelopeCodec.isEnvelope(encoded));
+    assertEquals(context, TraceEnvelopeCodec.decodeContext(encoded).context());
+    assertArrayEquals(payload, TraceEnvelopeCodec.decodePayload(encoded));
+  }
+
+  @Test
+  public void roundTrip_rootUnsampled() {
+    TraceContext root = TraceContext.newBuilder().traceId(1L).spanId(1L).sampled(false).build();
+
+    TraceContextOrSamplingFlags decoded = TraceEnvelopeCodec.decodeContext(TraceEnvelopeCodec.encode(root, null));
+
+    assertEquals(root, decoded.context());
+    assertNull(decoded.context().parentId());
+  }
+
+  @Test
+  public void roundTrip_samplingDeferred() {
+    TraceContext deferred = context.toBuilder().sampled(null).build();
+
+    TraceContext decoded = TraceEnvelopeCodec.decodeContext(TraceEnvelopeCodec.encode(deferred, new byte[0])).context();
+
+    assertNull(decoded.sampled());
+  }
+
+  @Test
+  public void decodeContext_withoutIds() {
+    byte[] encoded = TraceEnvelopeCodec.encode(context, new byte[0]);
+    TraceEnvelopeCodec.writeLong(encoded, 12, 0L);
+
+    TraceContextOrSamplingFlags decoded = TraceEnvelopeCodec.decodeContext(encoded);
+
+    assertNull(decoded.context());
+    assertEquals(Boolean.TRUE, decoded.sampled());
+  }
+
+  @Test
+  public void isEnvelope_rejectsOtherPayloads() {
+    assertFalse(TraceEnvelopeCodec.isEnvelope(null));
+    assertFalse(TraceEnvelopeCodec.isEnvelope("{\"some\":\"json\"}".getBytes()));
+    assertFalse(TraceEnvelopeCodec.isEnvelope(EnvelopeProtos.Envelope.newBuilder()
+      .setTraceId(1L)
+      .setSpanId(1L)
+      .setPayload(ByteString.copyFrom(new byte[TraceEnvelopeCodec.HEADER_SIZE]))
+      .build()
+      .toByteArray()));
+  }
+
+  @Test(expected = InvalidProtocolBufferException.class)
+  public void protobufParserRejectsEnvelope() throws InvalidProtocolBufferException {
+    EnvelopeProtos.Envelope.parseFrom(TraceEnvelopeCodec.encode(context, "lmao".getBytes()));
+  }
+
+  @Test
+  public void mayBeProtobufEnvelope() {
+    EnvelopeProtos.Envelope.Builder builder = EnvelopeProtos.Envelope.newBuilder()
+      .setTraceId(context.traceId())
+      .setSpanId(context.spanId())
+      .setPayload(ByteString.copyFromUtf8("lmao"));
+
+    assertTrue(TraceEnvelopeCodec.mayBeProtobufEnvelope(builder.build().toByteArray()));
+    assertTrue(TraceEnvelopeCodec.mayBeProtobufEnvelope(
+      builder.setTraceIdHigh(context.traceIdHigh()).build().toByteArray()));
+    assertFalse(TraceEnvelopeCodec.mayBeProtobufEnvelope("{\"some\":\"json\"}".getBytes()));
+    assertFalse(TraceEnvelopeCodec.mayBeProtobufEnvelope(new byte[] {0x08, 0x01, 0x18}));
+    assertFalse(TraceEnvelopeCodec.mayBeProtobufEnvelope(TraceEnvelopeCodec.encode(context, null)));
+    assertFalse(TraceEnvelopeCodec.mayBeProtobufEnvelope(null));
+  }
+}
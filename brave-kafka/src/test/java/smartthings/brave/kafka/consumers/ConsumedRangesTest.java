@@ -0,0 +1,71 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.consumers;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+import smartthings.brave.kafka.KafkaTracingMetrics;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+public class ConsumedRangesTest {
+
+  private final KafkaTracingMetrics metrics = mock(KafkaTracingMetrics.class);
+  private final ConsumedRanges ranges = new ConsumedRanges(new TopicPartition("my-topic", 3), 2);
+
+  @Test
+  public void testCommit_partialRange() {
+    ranges.add(10, 19, 1000);
+
+    ranges.commit(15, 1200, metrics);
+    ranges.commit(20, 1500, metrics);
+
+    verify(metrics).recordProcessingLatency("my-topic", 3, 200, 5);
+    verify(metrics).recordProcessingLatency("my-topic", 3, 500, 5);
+    verifyNoMoreInteractions(metrics);
+  }
+
+  @Test
+  public void testCommit_uncoveredRangesKept() {
+    ranges.add(10, 19, 1000);
+    ranges.add(20, 29, 1100);
+
+    ranges.commit(10, 1200, metrics);
+    verifyNoMoreInteractions(metrics);
+
+    ranges.commit(30, 1300, metrics);
+    verify(metrics).recordProcessingLatency("my-topic", 3, 300, 10);
+    verify(metrics).recordProcessingLatency("my-topic", 3, 200, 10);
+  }
+
+  @Test
+  public void testAdd_full_mergesOldestRanges() {
+    ranges.add(10, 19, 1000);
+    ranges.add(20, 29, 1100);
+    ranges.add(30, 39, 1200);
+
+    ranges.commit(40, 1300, metrics);
+
+    // the first two ranges are merged under the first consume time
+    verify(metrics).recordProcessingLatency("my-topic", 3, 300, 20);
+    verify(metrics).recordProcessingLatency("my-topic", 3, 100, 10);
+    verify(metrics, times(2)).recordProcessingLatency(eq("my-topic"), eq(3), anyLong(), anyLong());
+  }
+}
@@ -0,0 +1,59 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.consumers;
+
+import brave.Tracing;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+/**
+ * Upper bounds of {@link ConsumerInterceptorAllocationBenchmark}, skipped on JVMs that don't count allocations per
+ * thread.
+ */
+public class ConsumerInterceptorAllocationTest {
+
+  private com.sun.management.ThreadMXBean allocations;
+  private Tracing tracing;
+
+  @Before
+  public void setUp() {
+    allocations = ConsumerInterceptorAllocationBenchmark.allocations();
+    assumeNotNull(allocations);
+    tracing = ConsumerInterceptorAllocationBenchmark.tracing();
+  }
+
+  @After
+  public void tearDown() {
+    if (tracing != null) tracing.close();
+  }
+
+  @Test
+  public void testOnConsume_envelopeBudget() {
+    long bytes = ConsumerInterceptorAllocationBenchmark.envelopeBytesPerRecord(allocations, tracing);
+
+    assertTrue(bytes + " bytes per record", bytes <= ConsumerInterceptorAllocationBenchmark.DEFAULT_BUDGET);
+  }
+
+  @Test
+  public void testOnConsume_headerBudget() {
+    long bytes = ConsumerInterceptorAllocationBenchmark.headerBytesPerRecord(allocations, tracing);
+
+    assertTrue(bytes + " bytes per record", bytes <= ConsumerInterceptorAllocationBenchmark.HEADER_BUDGET);
+  }
+}
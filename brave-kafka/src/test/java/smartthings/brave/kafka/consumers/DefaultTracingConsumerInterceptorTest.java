@@ -29,6 +29,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import smartthings.brave.kafka.EnvelopeProtos;
+import smartthings.brave.kafka.KafkaTracingMetrics;
+import smartthings.brave.kafka.TraceEnvelopeCodec;
 import zipkin2.Endpoint;
 import zipkin2.Span;
 import zipkin2.reporter.Reporter;
@@ -38,6 +40,8 @@ import java.util.UUID;
 import static brave.internal.HexCodec.toLowerHex;
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.*;
 
 
@@ -125,4 +129,62 @@ public class DefaultTracingConsumerInterceptorTest {
     assertEquals(toLowerHex(traceIdHigh, traceId), capturedSpan.traceId());
     assertEquals(Span.Kind.SERVER, capturedSpan.kind());
   }
+
+  @Test
+  public void testOnConsume_envelopeVersion1() {
+    String topic = "my-topic";
+    int partition = 1;
+    byte[] value = "lmao".getBytes();
+    TraceContext expectedTraceContext = TraceContext.newBuilder()
+      .traceIdHigh(UUID.randomUUID().getMostSignificantBits())
+      .traceId(UUID.randomUUID().getLeastSignificantBits())
+      .parentId(UUID.randomUUID().getLeastSignificantBits())
+      .spanId(UUID.randomUUID().getLeastSignificantBits())
+      .sampled(true)
+      .build();
+
+    when(nameProvider.spanName(any())).thenReturn("span-name");
+
+    // method under test
+    ConsumerRecords<String, byte[]> records = interceptor.onConsume(new ConsumerRecords<>(ImmutableMap.of(
+      new TopicPartition(topic, partition),
+      ImmutableList.of(new ConsumerRecord<>(topic, partition, 1337, "ayyy",
+        TraceEnvelopeCodec.encode(expectedTraceContext, value)))
+    )));
+
+    assertEquals(1, records.count());
+    ConsumerRecord<String, byte[]> record = records.iterator().next();
+    assertArrayEquals(value, record.value());
+    assertTrue("record is not a TracedConsumerRecord", record instanceof TracedConsumerRecord);
+    assertEquals(expectedTraceContext, ((TracedConsumerRecord) record).traceContextOrSamplingFlags.context());
+
+    verify(reporter).report(spanCaptor.capture());
+    assertEquals(toLowerHex(expectedTraceContext.spanId()), spanCaptor.getValue().id());
+  }
+
+  @Test
+  public void testOnConsume_untracedRecord() {
+    String topic = "my-topic";
+    byte[] value = "{\"not\":\"traced\"}".getBytes();
+    KafkaTracingMetrics metrics = mock(KafkaTracingMetrics.class);
+    interceptor.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.metrics", metrics,
+      "brave.untraced.policy", "pass",
+      "brave.untraced.policy.my-topic", "count"
+    ));
+    ConsumerRecord<String, byte[]> untraced = new ConsumerRecord<>(topic, 0, 1, "ayyy", value);
+
+    // method under test
+    ConsumerRecords<String, byte[]> records = interceptor.onConsume(new ConsumerRecords<>(ImmutableMap.of(
+      new TopicPartition(topic, 0), ImmutableList.of(untraced),
+      new TopicPartition("other-topic", 0), ImmutableList.of(new ConsumerRecord<>("other-topic", 0, 1, "ayyy", value))
+    )));
+
+    assertEquals(2, records.count());
+    assertSame(untraced, records.records(new TopicPartition(topic, 0)).get(0));
+    verify(metrics).incrementUntracedRecords(topic, 1);
+    verify(metrics, never()).incrementUntracedRecords(eq("other-topic"), anyInt());
+    verify(reporter, never()).report(any());
+  }
 }
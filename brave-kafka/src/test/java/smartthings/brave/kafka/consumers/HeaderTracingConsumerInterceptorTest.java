@@ -0,0 +1,230 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.consumers;
+
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.record.TimestampType;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import smartthings.brave.kafka.KafkaHeadersB3Propagation;
+import smartthings.brave.kafka.KafkaTracingMetrics;
+import zipkin2.Endpoint;
+import zipkin2.Span;
+import zipkin2.reporter.Reporter;
+
+import java.util.concurrent.TimeUnit;
+
+import static brave.internal.HexCodec.toLowerHex;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class HeaderTracingConsumerInterceptorTest {
+
+  private final Reporter<Span> reporter = mock(Reporter.class);
+  private final Tracing tracing = Tracing.newBuilder()
+    .localServiceName("test")
+    .sampler(Sampler.ALWAYS_SAMPLE)
+    .spanReporter(reporter)
+    .build();
+  private final Endpoint endpoint = Endpoint.newBuilder().serviceName("test-service").build();
+  private final ArgumentCaptor<Span> spanCaptor = ArgumentCaptor.forClass(Span.class);
+
+  private HeaderTracingConsumerInterceptor<String, String> interceptor;
+
+  @Before
+  public void setUp() {
+    interceptor = new HeaderTracingConsumerInterceptor<>();
+    interceptor.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.span.remote.endpoint", endpoint
+    ));
+  }
+
+  @Test
+  public void testOnConsume() {
+    String topic = "my-topic";
+    int partition = 1;
+    String value = "lmao";
+    TraceContext expectedTraceContext = TraceContext.newBuilder()
+      .traceId(1L)
+      .parentId(2L)
+      .spanId(3L)
+      .sampled(true)
+      .build();
+    ConsumerRecord<String, String> received = new ConsumerRecord<>(topic, partition, 1337, "ayyy", value);
+    tracing.propagation().injector(KafkaHeadersB3Propagation.INJECTOR).inject(expectedTraceContext, received.headers());
+
+    // method under test
+    ConsumerRecords<String, String> records = interceptor.onConsume(new ConsumerRecords<>(ImmutableMap.of(
+      new TopicPartition(topic, partition), ImmutableList.of(received)
+    )));
+
+    assertEquals(1, records.count());
+    ConsumerRecord<String, String> record = records.iterator().next();
+    assertSame(value, record.value());
+    assertSame(received.headers(), record.headers());
+    assertTrue("record is not a TracedConsumerRecord", record instanceof TracedConsumerRecord);
+    assertEquals(expectedTraceContext, ((TracedConsumerRecord) record).traceContextOrSamplingFlags.context());
+
+    verify(reporter).report(spanCaptor.capture());
+    assertEquals(toLowerHex(3L), spanCaptor.getValue().id());
+    assertEquals("receive my-topic", spanCaptor.getValue().name());
+  }
+
+  @Test
+  public void testOnConsume_noHeaders() {
+    ConsumerRecord<String, String> received = new ConsumerRecord<>("my-topic", 0, 1, "ayyy", "lmao");
+
+    // method under test
+    ConsumerRecords<String, String> records = interceptor.onConsume(new ConsumerRecords<>(ImmutableMap.of(
+      new TopicPartition("my-topic", 0), ImmutableList.of(received)
+    )));
+
+    // passed through without extraction
+    assertSame(received, records.iterator().next());
+    verify(reporter, never()).report(any());
+  }
+
+  @Test
+  public void testOnConsume_pollSpanMode() {
+    interceptor.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.span.remote.endpoint", endpoint,
+      "brave.consumer.span.mode", "poll",
+      "brave.consumer.poll.span.name", "Poll orders"
+    ));
+    TraceContext upstream = TraceContext.newBuilder().traceId(1L).spanId(3L).sampled(true).build();
+    ConsumerRecord<String, String> traced0 = new ConsumerRecord<>("my-topic", 0, 10, "ayyy", "lmao");
+    ConsumerRecord<String, String> traced1 = new ConsumerRecord<>("my-topic", 0, 11, "ayyy", "lmao");
+    ConsumerRecord<String, String> untraced = new ConsumerRecord<>("my-topic", 1, 5, "ayyy", "lmao");
+    tracing.propagation().injector(KafkaHeadersB3Propagation.INJECTOR).inject(upstream, traced0.headers());
+    tracing.propagation().injector(KafkaHeadersB3Propagation.INJECTOR).inject(upstream, traced1.headers());
+
+    // method under test
+    ConsumerRecords<String, String> records = interceptor.onConsume(new ConsumerRecords<>(ImmutableMap.of(
+      new TopicPartition("my-topic", 0), ImmutableList.of(traced0, traced1),
+      new TopicPartition("my-topic", 1), ImmutableList.of(untraced)
+    )));
+
+    assertEquals(3, records.count());
+    TracedConsumerRecord record = (TracedConsumerRecord) records.records(new TopicPartition("my-topic", 0)).get(0);
+    assertEquals(upstream, record.traceContextOrSamplingFlags.context());
+
+    verify(reporter).report(spanCaptor.capture());
+    Span span = spanCaptor.getValue();
+    assertEquals("poll orders", span.name());
+    assertEquals(Span.Kind.CONSUMER, span.kind());
+    assertNull(span.parentId());
+    assertNotNull(span.duration());
+    assertEquals("3", span.tags().get("kafka.record.count"));
+    assertEquals("1", span.tags().get("kafka.untraced.count"));
+    assertEquals("my-topic-0:10-11,my-topic-1:5-5", span.tags().get("kafka.offsets"));
+    assertEquals(toLowerHex(1L), span.tags().get("kafka.upstream.trace_ids"));
+  }
+
+  @Test
+  public void testOnConsume_partitionSpanMode() {
+    interceptor.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.consumer.span.mode", ConsumerSpanMode.PARTITION
+    ));
+
+    // method under test
+    interceptor.onConsume(new ConsumerRecords<>(ImmutableMap.of(
+      new TopicPartition("my-topic", 0), ImmutableList.of(new ConsumerRecord<>("my-topic", 0, 1, "ayyy", "lmao")),
+      new TopicPartition("my-topic", 1), ImmutableList.of(new ConsumerRecord<>("my-topic", 1, 2, "ayyy", "lmao"))
+    )));
+
+    verify(reporter, times(2)).report(spanCaptor.capture());
+    assertEquals("receive my-topic", spanCaptor.getAllValues().get(0).name());
+    assertEquals("0", spanCaptor.getAllValues().get(0).tags().get("kafka.partition"));
+    assertEquals("1", spanCaptor.getAllValues().get(1).tags().get("kafka.partition"));
+  }
+
+  @Test(expected = ConfigException.class)
+  public void testConfigure_invalidSpanMode() {
+    interceptor.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.consumer.span.mode", "topic"
+    ));
+  }
+
+  @Test
+  public void testOnConsume_metrics() {
+    MetricRegistry registry = new MetricRegistry();
+    interceptor.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.metrics.registry", registry
+    ));
+    ConsumerRecord<String, String> received = new ConsumerRecord<>("my-topic", 0, 1,
+      System.currentTimeMillis() - 100, TimestampType.CREATE_TIME, 0L, 4, 4, "ayyy", "lmao");
+
+    // method under test
+    interceptor.onConsume(new ConsumerRecords<>(ImmutableMap.of(
+      new TopicPartition("my-topic", 0), ImmutableList.of(received)
+    )));
+
+    assertEquals(1, registry.meter("tracing.kafka.my-topic.0.records").getCount());
+    assertEquals(8, registry.meter("tracing.kafka.my-topic.0.bytes").getCount());
+    assertTrue(registry.timer("tracing.kafka.my-topic.0.e2e.latency").getSnapshot().getMax()
+      >= TimeUnit.MILLISECONDS.toNanos(100));
+  }
+
+  @Test
+  public void testOnCommit() {
+    KafkaTracingMetrics metrics = mock(KafkaTracingMetrics.class);
+    interceptor.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.metrics", metrics,
+      "brave.consumer.commit.span", "true"
+    ));
+    interceptor.onConsume(new ConsumerRecords<>(ImmutableMap.of(
+      new TopicPartition("my-topic", 0), ImmutableList.of(
+        new ConsumerRecord<>("my-topic", 0, 10, "ayyy", "lmao"),
+        new ConsumerRecord<>("my-topic", 0, 11, "ayyy", "lmao"))
+    )));
+    reset(reporter);
+
+    // method under test
+    interceptor.onCommit(ImmutableMap.of(new TopicPartition("my-topic", 0), new OffsetAndMetadata(12)));
+
+    verify(metrics).recordProcessingLatency(eq("my-topic"), eq(0), anyLong(), eq(2L));
+    verify(reporter).report(spanCaptor.capture());
+    assertEquals("commit", spanCaptor.getValue().name());
+    assertEquals("my-topic-0:12", spanCaptor.getValue().tags().get("kafka.offsets"));
+  }
+}
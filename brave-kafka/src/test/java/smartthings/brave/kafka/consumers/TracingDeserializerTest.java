@@ -0,0 +1,110 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.consumers;
+
+import brave.Tracing;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import com.google.common.collect.ImmutableMap;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Test;
+import smartthings.brave.kafka.KafkaHeadersB3Propagation;
+import smartthings.brave.kafka.TraceEnvelopeCodec;
+import smartthings.brave.kafka.producers.TracingSerializer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TracingDeserializerTest {
+
+  private final Tracing tracing = Tracing.newBuilder().build();
+  private final TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build();
+
+  @Test
+  public void testRoundTrip() {
+    TracingSerializer<String> serializer = new TracingSerializer<>(tracing, new StringSerializer());
+    TracingDeserializer<String> deserializer = new TracingDeserializer<>(tracing, new StringDeserializer());
+    Headers headers = new RecordHeaders();
+
+    byte[] bytes;
+    try (CurrentTraceContext.Scope scope = tracing.currentTraceContext().newScope(context)) {
+      bytes = serializer.serialize("my-topic", "lmao");
+    }
+
+    assertTrue(TraceEnvelopeCodec.isEnvelope(bytes));
+    assertEquals(TraceEnvelopeCodec.HEADER_SIZE + 4, bytes.length);
+    assertEquals("lmao", deserializer.deserialize("my-topic", headers, bytes));
+    TraceContext extracted = tracing.propagation().extractor(KafkaHeadersB3Propagation.EXTRACTOR)
+      .extract(headers).context();
+    assertEquals(context.traceId(), extracted.traceId());
+    assertEquals(Long.valueOf(context.spanId()), extracted.parentId());
+  }
+
+  @Test
+  public void testDeserialize_configuredPropagation() {
+    Tracing configured = mock(Tracing.class);
+    Propagation<String> propagation = mock(Propagation.class);
+    TraceContext.Injector<Headers> injector = mock(TraceContext.Injector.class);
+    when(configured.propagation()).thenReturn(propagation);
+    when(propagation.injector(KafkaHeadersB3Propagation.INJECTOR)).thenReturn((TraceContext.Injector) injector);
+    TracingDeserializer<String> deserializer = new TracingDeserializer<>(configured, new StringDeserializer());
+    Headers headers = new RecordHeaders();
+
+    // method under test
+    deserializer.deserialize("my-topic", headers, TraceEnvelopeCodec.encode(context, "lmao".getBytes()));
+
+    verify(injector).inject(context, headers);
+  }
+
+  @Test
+  public void testSerialize_noCurrentContext() {
+    TracingSerializer<String> serializer = new TracingSerializer<>(tracing, new StringSerializer());
+    TracingDeserializer<String> deserializer = new TracingDeserializer<>(tracing, new StringDeserializer());
+    Headers headers = new RecordHeaders();
+
+    byte[] bytes = serializer.serialize("my-topic", "lmao");
+
+    assertArrayEquals("lmao".getBytes(), bytes);
+    assertEquals("lmao", deserializer.deserialize("my-topic", headers, bytes));
+    assertNull(headers.lastHeader("X-B3-TraceId"));
+  }
+
+  @Test
+  public void testConfigure() {
+    TracingSerializer<String> serializer = new TracingSerializer<>();
+    serializer.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.value.serializer", StringSerializer.class.getName()
+    ), false);
+    TracingDeserializer<String> deserializer = new TracingDeserializer<>();
+    deserializer.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.value.deserializer", StringDeserializer.class
+    ), false);
+
+    try (CurrentTraceContext.Scope scope = tracing.currentTraceContext().newScope(context)) {
+      assertEquals("lmao", deserializer.deserialize("my-topic", serializer.serialize("my-topic", "lmao")));
+    }
+  }
+}
@@ -0,0 +1,240 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.consumers;
+
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import brave.sampler.Sampler;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.After;
+import org.junit.Test;
+import zipkin2.Span;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TracingRecordProcessorTest {
+
+  private final ConcurrentLinkedQueue<Span> spans = new ConcurrentLinkedQueue<>();
+  private final Tracing tracing = Tracing.newBuilder()
+    .sampler(Sampler.ALWAYS_SAMPLE)
+    .spanReporter(spans::add)
+    .build();
+  private final TopicPartition tp = new TopicPartition("my-topic", 0);
+
+  private TracingRecordProcessor<String, String> processor;
+
+  @After
+  public void tearDown() {
+    processor.close();
+  }
+
+  @Test
+  public void testSubmit_handlesInTraceScopeInKeyOrder() throws Exception {
+    List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+    List<TraceContext> contexts = Collections.synchronizedList(new ArrayList<TraceContext>());
+    processor = TracingRecordProcessor.<String, String>newBuilder(tracing, record -> {
+      handled.add(record.key() + record.value());
+      contexts.add(tracing.currentTraceContext().get());
+    }).threads(4).ordering(TracingRecordProcessor.Ordering.KEY).build();
+
+    TraceContext upstream = TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build();
+    List<ConsumerRecord<String, String>> records = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      records.add(new TracedConsumerRecord<>(new ConsumerRecord<>("my-topic", 0, i, "key" + (i % 4), "-" + i),
+        TraceContextOrSamplingFlags.create(upstream)));
+    }
+
+    // method under test
+    processor.submit(new ConsumerRecords<>(ImmutableMap.of(tp, records)));
+
+    assertTrue(processor.awaitIdle(10, TimeUnit.SECONDS));
+    assertEquals(100, handled.size());
+    for (int key = 0; key < 4; key++) {
+      int last = -1;
+      for (String value : handled) {
+        if (!value.startsWith("key" + key + "-")) continue;
+        int offset = Integer.parseInt(value.substring(5));
+        assertTrue("out of order " + value, offset > last);
+        last = offset;
+      }
+    }
+    for (TraceContext context : contexts) {
+      assertEquals(upstream.traceId(), context.traceId());
+      assertEquals(Long.valueOf(upstream.spanId()), context.parentId());
+    }
+    assertEquals(100, spans.size());
+    assertEquals(Collections.singletonMap(tp, new OffsetAndMetadata(100)), processor.committableOffsets());
+    assertTrue(processor.committableOffsets().isEmpty());
+  }
+
+  @Test
+  public void testCommittableOffsets_stopsAtUnhandledRecord() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    processor = TracingRecordProcessor.<String, String>newBuilder(tracing, record -> {
+      if (record.offset() == 12) release.await();
+    }).threads(2).ordering(TracingRecordProcessor.Ordering.KEY).keyLanes(2).build();
+
+    processor.submit(new ConsumerRecords<>(ImmutableMap.of(tp, ImmutableList.of(
+      new ConsumerRecord<>("my-topic", 0, 10, "a", "lmao"),
+      new ConsumerRecord<>("my-topic", 0, 11, "a", "lmao"),
+      new ConsumerRecord<>("my-topic", 0, 12, "b", "lmao")
+    ))));
+    processor.submit(new ConsumerRecords<>(ImmutableMap.of(tp, ImmutableList.of(
+      new ConsumerRecord<>("my-topic", 0, 13, "a", "lmao")
+    ))));
+
+    // 10, 11 and 13 are handled, 12 holds back the committable offset
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    OffsetAndMetadata committable = null;
+    while (processor.pendingRecords() > 1 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    for (OffsetAndMetadata offset : processor.committableOffsets().values()) {
+      committable = offset;
+    }
+    assertEquals(new OffsetAndMetadata(12), committable);
+    assertEquals(1, processor.pendingRecords());
+
+    release.countDown();
+    assertTrue(processor.awaitIdle(10, TimeUnit.SECONDS));
+    assertEquals(new OffsetAndMetadata(14), processor.committableOffsets().get(tp));
+  }
+
+  @Test
+  public void testSubmit_handlerFailureHoldsBackOffset() throws Exception {
+    processor = TracingRecordProcessor.<String, String>newBuilder(tracing, record -> {
+      if (record.offset() == 11) throw new IllegalStateException("boom");
+    }).threads(1).build();
+
+    processor.submit(new ConsumerRecords<>(ImmutableMap.of(tp, ImmutableList.of(
+      new ConsumerRecord<>("my-topic", 0, 10, "a", "lmao"),
+      new ConsumerRecord<>("my-topic", 0, 11, "a", "lmao"),
+      new ConsumerRecord<>("my-topic", 0, 12, "a", "lmao")
+    ))));
+
+    assertTrue(processor.awaitIdle(10, TimeUnit.SECONDS));
+    assertEquals(3, spans.size());
+    assertEquals(1, spans.stream().filter(span -> "boom".equals(span.tags().get("error"))).count());
+    assertEquals(new OffsetAndMetadata(11), processor.committableOffsets().get(tp));
+    assertEquals(Collections.singleton(tp), processor.partitionsToPause());
+
+    // once the consumer seeks back, the partition is tracked afresh
+    processor.revoke(Collections.singleton(tp));
+    assertTrue(processor.partitionsToPause().isEmpty());
+  }
+
+  @Test
+  public void testPartitionsToPause_maxQueuedRecords() throws Exception {
+    CountDownLatch release = new CountDownLatch(1);
+    processor = TracingRecordProcessor.<String, String>newBuilder(tracing, record -> release.await())
+      .threads(1).maxQueuedRecords(2).build();
+
+    processor.submit(new ConsumerRecords<>(ImmutableMap.of(tp, ImmutableList.of(
+      new ConsumerRecord<>("my-topic", 0, 10, "a", "lmao"),
+      new ConsumerRecord<>("my-topic", 0, 11, "a", "lmao")
+    ))));
+    assertTrue(processor.partitionsToPause().isEmpty());
+    processor.submit(new ConsumerRecords<>(ImmutableMap.of(tp, ImmutableList.of(
+      new ConsumerRecord<>("my-topic", 0, 12, "a", "lmao")
+    ))));
+
+    // method under test
+    assertEquals(Collections.singleton(tp), processor.partitionsToPause());
+
+    release.countDown();
+    assertTrue(processor.awaitIdle(10, TimeUnit.SECONDS));
+    assertEquals(new OffsetAndMetadata(13), processor.committableOffsets().get(tp));
+    assertTrue(processor.partitionsToPause().isEmpty());
+  }
+
+  @Test
+  public void testSubmit_skipFailures() throws Exception {
+    processor = TracingRecordProcessor.<String, String>newBuilder(tracing, record -> {
+      throw new IllegalStateException("boom");
+    }).threads(1).skipFailures(true).build();
+
+    processor.submit(new ConsumerRecords<>(ImmutableMap.of(tp, ImmutableList.of(
+      new ConsumerRecord<>("my-topic", 0, 10, "a", "lmao")
+    ))));
+
+    assertTrue(processor.awaitIdle(10, TimeUnit.SECONDS));
+    assertEquals("boom", spans.peek().tags().get("error"));
+    assertEquals(new OffsetAndMetadata(11), processor.committableOffsets().get(tp));
+  }
+
+  @Test
+  public void testSubmit_rejectedExecutionDoesNotStallLane() throws Exception {
+    AtomicBoolean reject = new AtomicBoolean(true);
+    ExecutorService threads = Executors.newSingleThreadExecutor();
+    ExecutorService executor = new AbstractExecutorService() {
+      @Override public void execute(Runnable command) {
+        if (reject.get()) throw new RejectedExecutionException("full");
+        threads.execute(command);
+      }
+      @Override public void shutdown() { threads.shutdown(); }
+      @Override public List<Runnable> shutdownNow() { return threads.shutdownNow(); }
+      @Override public boolean isShutdown() { return threads.isShutdown(); }
+      @Override public boolean isTerminated() { return threads.isTerminated(); }
+      @Override public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return threads.awaitTermination(timeout, unit);
+      }
+    };
+    List<Long> handled = Collections.synchronizedList(new ArrayList<Long>());
+    processor = TracingRecordProcessor.<String, String>newBuilder(tracing, record -> handled.add(record.offset()))
+      .executor(executor).build();
+
+    try {
+      processor.submit(new ConsumerRecords<>(ImmutableMap.of(tp, ImmutableList.of(
+        new ConsumerRecord<>("my-topic", 0, 10, "a", "lmao")
+      ))));
+      fail("expected rejection");
+    } catch (RejectedExecutionException expected) {
+    }
+    assertEquals(0, processor.pendingRecords());
+
+    // method under test
+    reject.set(false);
+    processor.submit(new ConsumerRecords<>(ImmutableMap.of(tp, ImmutableList.of(
+      new ConsumerRecord<>("my-topic", 0, 11, "a", "lmao")
+    ))));
+
+    assertTrue(processor.awaitIdle(10, TimeUnit.SECONDS));
+    assertEquals(Collections.singletonList(11L), handled);
+    // the rejected record holds back the committable offset
+    assertTrue(processor.committableOffsets().isEmpty());
+    assertEquals(Collections.singleton(tp), processor.partitionsToPause());
+    threads.shutdown();
+  }
+}
@@ -23,12 +23,15 @@ import org.apache.kafka.clients.producer.ProducerRecord;
 import org.junit.Before;
 import org.junit.Test;
 import smartthings.brave.kafka.EnvelopeProtos;
+import smartthings.brave.kafka.TraceEnvelopeCodec;
 import zipkin2.Endpoint;
 import zipkin2.reporter.Reporter;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.reset;
@@ -83,4 +86,26 @@ public class DefaultTracingProducerInterceptorTest {
     assertNotNull(envelope.getSpanId());
     assertNotEquals(0, envelope.getSpanId());
   }
+
+  @Test
+  public void testOnSend_envelopeVersion1() {
+    interceptor.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.span.name.provider", nameProvider,
+      "brave.span.remote.endpoint", endpoint,
+      "brave.envelope.version", "1"
+    ));
+    byte[] value = "lmao".getBytes();
+
+    when(nameProvider.spanName(any())).thenReturn("span-name");
+
+    // method under test
+    ProducerRecord<String, byte[]> injectedRecord = interceptor
+      .onSend(new ProducerRecord<>("my-topic", null, null, "ayyy", value));
+
+    assertTrue(TraceEnvelopeCodec.isEnvelope(injectedRecord.value()));
+    assertEquals(TraceEnvelopeCodec.HEADER_SIZE + value.length, injectedRecord.value().length);
+    assertArrayEquals(value, TraceEnvelopeCodec.decodePayload(injectedRecord.value()));
+    assertNotEquals(0, TraceEnvelopeCodec.decodeContext(injectedRecord.value()).context().spanId());
+  }
 }
@@ -0,0 +1,386 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.producers;
+
+import brave.Tracing;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import com.google.common.collect.ImmutableMap;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.RecordTooLargeException;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import smartthings.brave.kafka.KafkaHeadersB3Propagation;
+import smartthings.brave.kafka.KafkaTracingMetrics;
+import zipkin2.Endpoint;
+import zipkin2.reporter.Reporter;
+
+import static brave.internal.HexCodec.toLowerHex;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class HeaderTracingProducerInterceptorTest {
+
+  private final Reporter<zipkin2.Span> reporter = mock(Reporter.class);
+  private final Tracing tracing = Tracing.newBuilder()
+    .localServiceName("test")
+    .sampler(Sampler.ALWAYS_SAMPLE)
+    .spanReporter(reporter)
+    .build();
+  private final Endpoint endpoint = Endpoint.newBuilder().serviceName("test-service").build();
+  private final ArgumentCaptor<zipkin2.Span> spanCaptor = ArgumentCaptor.forClass(zipkin2.Span.class);
+
+  private HeaderTracingProducerInterceptor<String, String> interceptor;
+
+  @Before
+  public void setUp() {
+    interceptor = new HeaderTracingProducerInterceptor<>();
+    interceptor.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.span.remote.endpoint", endpoint
+    ));
+  }
+
+  @Test
+  public void testOnSend() {
+    String value = "lmao";
+    ProducerRecord<String, String> record = new ProducerRecord<>("my-topic", "ayyy", value);
+
+    // method under test
+    ProducerRecord<String, String> injectedRecord = interceptor.onSend(record);
+
+    assertSame(record, injectedRecord);
+    assertSame(value, injectedRecord.value());
+    assertNotNull(injectedRecord.headers().lastHeader("X-B3-TraceId"));
+    assertNotNull(injectedRecord.headers().lastHeader("X-B3-SpanId"));
+  }
+
+  @Test
+  public void testOnSend_readOnlyHeaders() {
+    ProducerRecord<String, String> record = new ProducerRecord<>("my-topic", "ayyy", "lmao");
+    record.headers().add("custom", new byte[] {1});
+    ((RecordHeaders) record.headers()).setReadOnly();
+
+    // method under test
+    ProducerRecord<String, String> injectedRecord = interceptor.onSend(record);
+
+    assertNotSame(record, injectedRecord);
+    Headers headers = injectedRecord.headers();
+    assertNotNull(headers.lastHeader("custom"));
+    assertNotNull(headers.lastHeader("X-B3-TraceId"));
+  }
+
+  @Test
+  public void testOnAcknowledgement() {
+    KafkaTracingMetrics metrics = mock(KafkaTracingMetrics.class);
+    interceptor.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.metrics", metrics
+    ));
+    interceptor.onSend(new ProducerRecord<>("my-topic", 2, "ayyy", "lmao"));
+    verify(reporter, never()).report(any(zipkin2.Span.class));
+
+    // method under test
+    interceptor.onAcknowledgement(
+      new RecordMetadata(new TopicPartition("my-topic", 2), 0, 42, 0, 0L, 4, 4), null);
+
+    verify(reporter).report(spanCaptor.capture());
+    zipkin2.Span span = spanCaptor.getValue();
+    assertEquals(zipkin2.Span.Kind.CLIENT, span.kind());
+    assertNotNull(span.duration());
+    assertNull(span.tags().get("error"));
+    verify(metrics).recordAckLatency(eq("my-topic"), eq(2), anyLong());
+  }
+
+  @Test
+  public void testOnAcknowledgement_error() {
+    interceptor.onSend(new ProducerRecord<>("my-topic", 1, "ayyy", "lmao"));
+    interceptor.onSend(new ProducerRecord<>("my-topic", 2, "ayyy", "lmao"));
+
+    // method under test
+    interceptor.onAcknowledgement(new RecordMetadata(new TopicPartition("my-topic", 2), -1, -1, 1000L, 0L, 4, 4),
+      new TimeoutException("Expiring 1 record(s)"));
+
+    verify(reporter).report(spanCaptor.capture());
+    assertEquals("Expiring 1 record(s)", spanCaptor.getValue().tags().get("error"));
+    assertEquals("2", spanCaptor.getValue().tags().get("Partition"));
+  }
+
+  @Test
+  public void testOnAcknowledgement_failedBeforeQueued() {
+    interceptor.onSend(new ProducerRecord<>("my-topic", 0, "ayyy", "first"));
+    interceptor.onSend(new ProducerRecord<>("my-topic", 0, "ayyy", "second"));
+
+    // method under test: the second send fails on the sending thread, ahead of the first one's acknowledgement
+    interceptor.onAcknowledgement(new RecordMetadata(new TopicPartition("my-topic", 0), -1, -1, -1, -1L, -1, -1),
+      new RecordTooLargeException("too large"));
+    interceptor.onAcknowledgement(new RecordMetadata(new TopicPartition("my-topic", 0), 0, 42, 1000L, 0L, 4, 5), null);
+
+    verify(reporter, times(2)).report(spanCaptor.capture());
+    zipkin2.Span failed = spanCaptor.getAllValues().get(0);
+    zipkin2.Span acknowledged = spanCaptor.getAllValues().get(1);
+    assertEquals("too large", failed.tags().get("error"));
+    assertNull(acknowledged.tags().get("error"));
+    assertNotEquals(failed.id(), acknowledged.id());
+  }
+
+  @Test
+  public void testOnAcknowledgement_partitionerChosen() {
+    interceptor.onSend(new ProducerRecord<>("my-topic", 0, "ayyy", "lmao"));
+
+    // method under test: left to the partitioner, the span is reported one-way on send, and so is the one in flight
+    interceptor.onSend(new ProducerRecord<>("my-topic", "ayyy", "lmao"));
+    verify(reporter, times(2)).report(spanCaptor.capture());
+    for (zipkin2.Span span : spanCaptor.getAllValues()) {
+      assertNull(span.duration());
+    }
+    interceptor.onAcknowledgement(new RecordMetadata(new TopicPartition("my-topic", 3), 0, 7, 1000L, 0L, 4, 4), null);
+    interceptor.onAcknowledgement(new RecordMetadata(new TopicPartition("my-topic", -1), -1, -1, -1, -1L, -1, -1),
+      new TimeoutException("Failed to update metadata"));
+
+    verify(reporter, times(2)).report(any(zipkin2.Span.class));
+  }
+
+  @Test
+  public void testOnAcknowledgement_untrackedSendToTrackedPartition() {
+    interceptor.onSend(new ProducerRecord<>("my-topic", 0, "ayyy", "tracked"));
+    interceptor.onSend(new ProducerRecord<>("my-topic", "ayyy", "partitioned"));
+    interceptor.onSend(new ProducerRecord<>("my-topic", 0, "ayyy", "tracked"));
+
+    // method under test: the partitioner chose partition 0, which can't be told apart from the tracked sends' acks
+    interceptor.onAcknowledgement(new RecordMetadata(new TopicPartition("my-topic", 0), 0, 0, 1000L, 0L, 4, 4), null);
+    interceptor.onAcknowledgement(new RecordMetadata(new TopicPartition("my-topic", 0), 0, 1, 1000L, 0L, 4, 4), null);
+    interceptor.onAcknowledgement(new RecordMetadata(new TopicPartition("my-topic", 0), 0, 2, 1000L, 0L, 4, 4), null);
+
+    // every span is reported once, one-way, rather than finished by another record's acknowledgement
+    verify(reporter, times(3)).report(spanCaptor.capture());
+    for (zipkin2.Span span : spanCaptor.getAllValues()) {
+      assertNull(span.duration());
+    }
+  }
+
+  @Test
+  public void testOnSend_inFlightLimit() {
+    interceptor.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.producer.inflight.max", 1
+    ));
+    interceptor.onSend(new ProducerRecord<>("my-topic", 0, "ayyy", "lmao"));
+
+    // method under test
+    interceptor.onSend(new ProducerRecord<>("my-topic", 1, "ayyy", "lmao"));
+    interceptor.onAcknowledgement(new RecordMetadata(new TopicPartition("my-topic", 0), 0, 0, 1000L, 0L, 4, 4), null);
+
+    // the topic is no longer tracked, both spans are reported one-way
+    verify(reporter, times(2)).report(spanCaptor.capture());
+    for (zipkin2.Span span : spanCaptor.getAllValues()) {
+      assertNull(span.duration());
+    }
+  }
+
+  @Test
+  public void testOnSend_sampler() {
+    interceptor.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.sampler.rate.telemetry", "0.0"
+    ));
+
+    // method under test
+    interceptor.onSend(new ProducerRecord<>("telemetry", "ayyy", "lmao"));
+    interceptor.onSend(new ProducerRecord<>("commands", "ayyy", "lmao"));
+    interceptor.close();
+
+    verify(reporter).report(spanCaptor.capture());
+    assertEquals("send commands", spanCaptor.getValue().name());
+  }
+
+  @Test
+  public void testOnSend_recordSpanNameProvider() {
+    RecordSpanNameProvider<String, String> nameProvider = record -> "publish " + record.value();
+    interceptor.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.span.name.provider", nameProvider
+    ));
+
+    // method under test
+    interceptor.onSend(new ProducerRecord<>("my-topic", "ayyy", "lmao"));
+    interceptor.close();
+
+    verify(reporter).report(spanCaptor.capture());
+    assertEquals("publish lmao", spanCaptor.getValue().name());
+  }
+
+  @Test
+  public void testOnSend_propagationMode() {
+    interceptor.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.producer.span.mode.telemetry", "propagation"
+    ));
+    TraceContext parent = tracing.tracer().newTrace().context();
+
+    ProducerRecord<String, String> record;
+    try (CurrentTraceContext.Scope scope = tracing.currentTraceContext().newScope(parent)) {
+      // method under test
+      record = interceptor.onSend(new ProducerRecord<>("telemetry", "ayyy", "lmao"));
+    }
+    interceptor.onAcknowledgement(
+      new RecordMetadata(new TopicPartition("telemetry", 0), 0, 42, 0, 0L, 4, 4), null);
+    interceptor.close();
+
+    verify(reporter, never()).report(any(zipkin2.Span.class));
+    TraceContext propagated = tracing.propagation().extractor(KafkaHeadersB3Propagation.EXTRACTOR)
+      .extract(record.headers()).context();
+    // an unreported child, so a consumer joining it doesn't share the caller's span id
+    assertEquals(parent.traceId(), propagated.traceId());
+    assertEquals(Long.valueOf(parent.spanId()), propagated.parentId());
+    assertNotEquals(parent.spanId(), propagated.spanId());
+  }
+
+  @Test
+  public void testOnSend_batchMode() {
+    interceptor.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.producer.span.mode", "batch",
+      "brave.producer.batch.window.ms", 60000
+    ));
+    TraceContext caller = tracing.tracer().newTrace().context();
+    TraceContext.Extractor<Headers> extractor = tracing.propagation().extractor(KafkaHeadersB3Propagation.EXTRACTOR);
+
+    TraceContext[] propagated = new TraceContext[3];
+    try (CurrentTraceContext.Scope scope = tracing.currentTraceContext().newScope(caller)) {
+      for (int i = 0; i < propagated.length; i++) {
+        // method under test
+        ProducerRecord<String, String> record = interceptor.onSend(new ProducerRecord<>("my-topic", "ayyy", "lmao"));
+        propagated[i] = extractor.extract(record.headers()).context();
+      }
+    }
+    interceptor.onAcknowledgement(new RecordMetadata(new TopicPartition("my-topic", 0), -1, -1, -1, -1L, -1, -1),
+      new TimeoutException("Expiring 1 record(s)"));
+    verify(reporter, never()).report(any(zipkin2.Span.class));
+    interceptor.close();
+
+    verify(reporter).report(spanCaptor.capture());
+    zipkin2.Span span = spanCaptor.getValue();
+    assertEquals("send batch", span.name());
+    assertEquals(zipkin2.Span.Kind.CLIENT, span.kind());
+    assertNull(span.parentId());
+    assertNotNull(span.duration());
+    assertEquals("my-topic", span.tags().get("kafka.topic"));
+    assertEquals("3", span.tags().get("kafka.record.count"));
+    assertEquals(caller.traceIdString(), span.tags().get("kafka.upstream.trace_ids"));
+    assertNull(span.tags().get("error"));
+    // every record of the window carries the batch span's context
+    for (TraceContext context : propagated) {
+      assertEquals(span.id(), toLowerHex(context.spanId()));
+      assertEquals(span.traceId(), context.traceIdString());
+    }
+  }
+
+  @Test
+  public void testOnSend_batchWindowRollover() {
+    interceptor.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.producer.span.mode", ProducerSpanMode.BATCH,
+      "brave.producer.batch.window.ms", 0
+    ));
+
+    // method under test
+    interceptor.onSend(new ProducerRecord<>("my-topic", 0, "ayyy", "lmao"));
+    interceptor.onSend(new ProducerRecord<>("my-topic", 0, "ayyy", "lmao"));
+    interceptor.close();
+
+    // a zero window ends with every send
+    verify(reporter, times(2)).report(spanCaptor.capture());
+    for (zipkin2.Span span : spanCaptor.getAllValues()) {
+      assertEquals("1", span.tags().get("kafka.record.count"));
+    }
+  }
+
+  @Test
+  public void testOnSend_batchWindowPerPartition() {
+    HeaderTracingProducerInterceptor<String, byte[]> interceptor = new HeaderTracingProducerInterceptor<>();
+    interceptor.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.producer.span.mode", ProducerSpanMode.BATCH,
+      "brave.producer.batch.window.ms", 60000
+    ));
+
+    // method under test
+    TraceContext first = extract(interceptor.onSend(new ProducerRecord<>("my-topic", 0, "ayyy", new byte[3])));
+    TraceContext second = extract(interceptor.onSend(new ProducerRecord<>("my-topic", 0, "ayyy", new byte[4])));
+    TraceContext other = extract(interceptor.onSend(new ProducerRecord<>("my-topic", 1, "ayyy", new byte[5])));
+    interceptor.close();
+
+    assertEquals(first, second);
+    assertNotEquals(first.traceId(), other.traceId());
+    verify(reporter, times(2)).report(spanCaptor.capture());
+    zipkin2.Span partition0 = spanCaptor.getAllValues().get(0);
+    zipkin2.Span partition1 = spanCaptor.getAllValues().get(1);
+    if ("1".equals(partition0.tags().get("kafka.partition"))) {
+      zipkin2.Span swap = partition0;
+      partition0 = partition1;
+      partition1 = swap;
+    }
+    assertEquals("0", partition0.tags().get("kafka.partition"));
+    assertEquals("2", partition0.tags().get("kafka.record.count"));
+    assertEquals("7", partition0.tags().get("kafka.batch.bytes"));
+    assertEquals("1", partition1.tags().get("kafka.partition"));
+    assertEquals("1", partition1.tags().get("kafka.record.count"));
+    assertEquals("5", partition1.tags().get("kafka.batch.bytes"));
+  }
+
+  @Test
+  public void testOnSend_batchWindowReportedWhenIdle() {
+    interceptor.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.producer.span.mode", ProducerSpanMode.BATCH,
+      "brave.producer.batch.window.ms", 50
+    ));
+
+    // method under test
+    interceptor.onSend(new ProducerRecord<>("my-topic", "ayyy", "lmao"));
+
+    // no further send nor close, the timer ends the window
+    verify(reporter, timeout(5000)).report(spanCaptor.capture());
+    assertEquals("1", spanCaptor.getValue().tags().get("kafka.record.count"));
+    assertNull(spanCaptor.getValue().tags().get("kafka.batch.bytes"));
+    interceptor.close();
+    verify(reporter).report(any(zipkin2.Span.class));
+  }
+
+  private TraceContext extract(ProducerRecord<String, ?> record) {
+    return tracing.propagation().extractor(KafkaHeadersB3Propagation.EXTRACTOR)
+      .extract(record.headers()).context();
+  }
+}
@@ -0,0 +1,54 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.producers;
+
+import brave.Tracing;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeNotNull;
+
+/**
+ * Upper bounds of {@link ProducerInterceptorAllocationBenchmark}, skipped on JVMs that don't count allocations per
+ * thread.
+ */
+public class ProducerInterceptorAllocationTest {
+
+  private com.sun.management.ThreadMXBean allocations;
+  private Tracing tracing;
+
+  @Before
+  public void setUp() {
+    allocations = ProducerInterceptorAllocationBenchmark.allocations();
+    assumeNotNull(allocations);
+    tracing = ProducerInterceptorAllocationBenchmark.tracing();
+  }
+
+  @After
+  public void tearDown() {
+    if (tracing != null) tracing.close();
+  }
+
+  @Test
+  public void testOnSend_budgets() {
+    for (ProducerSpanMode mode : ProducerSpanMode.values()) {
+      long bytes = ProducerInterceptorAllocationBenchmark.bytesPerSend(allocations, tracing, mode);
+
+      assertTrue(mode + ": " + bytes + " bytes per send", bytes <= ProducerInterceptorAllocationBenchmark.budget(mode));
+    }
+  }
+}
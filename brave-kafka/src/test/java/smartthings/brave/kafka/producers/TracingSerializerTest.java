@@ -0,0 +1,137 @@
+
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.kafka.producers;
+
+import brave.Tracing;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import com.google.common.collect.ImmutableMap;
+import org.apache.kafka.common.config.ConfigException;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import smartthings.brave.kafka.TraceEnvelopeCodec;
+import zipkin2.Endpoint;
+import zipkin2.reporter.Reporter;
+
+import static brave.internal.HexCodec.toLowerHex;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class TracingSerializerTest {
+
+  private final Reporter<zipkin2.Span> reporter = mock(Reporter.class);
+  private final Tracing tracing = Tracing.newBuilder()
+    .localServiceName("test")
+    .sampler(Sampler.ALWAYS_SAMPLE)
+    .spanReporter(reporter)
+    .build();
+  private final TraceContext context = TraceContext.newBuilder().traceId(1L).spanId(2L).sampled(true).build();
+  private final ArgumentCaptor<zipkin2.Span> spanCaptor = ArgumentCaptor.forClass(zipkin2.Span.class);
+
+  @Test
+  public void testSerialize() {
+    TracingSerializer<String> serializer = new TracingSerializer<>(tracing, new StringSerializer());
+
+    byte[] bytes;
+    try (CurrentTraceContext.Scope scope = tracing.currentTraceContext().newScope(context)) {
+      // method under test
+      bytes = serializer.serialize("my-topic", "lmao");
+    }
+
+    verify(reporter).report(spanCaptor.capture());
+    zipkin2.Span span = spanCaptor.getValue();
+    assertEquals(zipkin2.Span.Kind.CLIENT, span.kind());
+    assertEquals("send my-topic", span.name());
+    assertEquals("kafka", span.remoteServiceName());
+    assertEquals(toLowerHex(2L), span.parentId());
+
+    // the consumer continues the producer span, not the caller's
+    TraceContext propagated = TraceEnvelopeCodec.decodeContext(bytes).context();
+    assertEquals(context.traceId(), propagated.traceId());
+    assertEquals(span.id(), toLowerHex(propagated.spanId()));
+    assertNotEquals(context.spanId(), propagated.spanId());
+    assertArrayEquals("lmao".getBytes(), TraceEnvelopeCodec.decodePayload(bytes));
+  }
+
+  @Test
+  public void testSerialize_noCurrentContext() {
+    TracingSerializer<String> serializer = new TracingSerializer<>(tracing, new StringSerializer());
+
+    // method under test
+    byte[] bytes = serializer.serialize("my-topic", "lmao");
+
+    assertArrayEquals("lmao".getBytes(), bytes);
+    verify(reporter, never()).report(any(zipkin2.Span.class));
+  }
+
+  @Test
+  public void testSerialize_nullValue() {
+    TracingSerializer<String> serializer = new TracingSerializer<>(tracing, new StringSerializer());
+
+    try (CurrentTraceContext.Scope scope = tracing.currentTraceContext().newScope(context)) {
+      // method under test
+      assertNull(serializer.serialize("my-topic", null));
+    }
+    verify(reporter, never()).report(any(zipkin2.Span.class));
+  }
+
+  @Test
+  public void testConfigure() {
+    TracingSerializer<String> serializer = new TracingSerializer<>();
+    serializer.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.value.serializer", StringSerializer.class.getName(),
+      "brave.span.remote.endpoint", Endpoint.newBuilder().serviceName("events").build()
+    ), false);
+
+    try (CurrentTraceContext.Scope scope = tracing.currentTraceContext().newScope(context)) {
+      serializer.serialize("my-topic", "lmao");
+    }
+
+    verify(reporter).report(spanCaptor.capture());
+    assertEquals("events", spanCaptor.getValue().remoteServiceName());
+  }
+
+  @Test(expected = ConfigException.class)
+  public void testConfigure_key() {
+    new TracingSerializer<>(tracing, new StringSerializer()).configure(ImmutableMap.of(), true);
+  }
+
+  @Test
+  public void testSerialize_spanNameProvider() {
+    TracingSerializer<String> serializer = new TracingSerializer<>();
+    RecordSpanNameProvider<Object, String> provider = record -> "Send " + record.value();
+    serializer.configure(ImmutableMap.of(
+      "brave.tracing", tracing,
+      "brave.value.serializer", new StringSerializer(),
+      "brave.span.name.provider", provider
+    ), false);
+
+    try (CurrentTraceContext.Scope scope = tracing.currentTraceContext().newScope(context)) {
+      serializer.serialize("my-topic", "lmao");
+    }
+
+    verify(reporter).report(spanCaptor.capture());
+    assertEquals("send lmao", spanCaptor.getValue().name());
+  }
+}
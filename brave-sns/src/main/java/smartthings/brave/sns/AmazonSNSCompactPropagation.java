@@ -0,0 +1,86 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sns;
+
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import com.amazonaws.services.sns.model.MessageAttributeValue;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import smartthings.brave.codec.CompactTraceContextCodec;
+
+/**
+ * Writes the trace context into a single message attribute instead of one attribute per B3 key.
+ * Raw delivery copies the attributes to SQS subscribers, which allow ten attributes per message,
+ * so this leaves more room for the application's own attributes. The format is the one read by
+ * {@code AmazonSQSCompactPropagation} in the SQS module.
+ *
+ * <p>The value is the String or Binary form of {@link CompactTraceContextCodec}, as the attribute's
+ * data type says.
+ *
+ * <p>The extractor reads either form and falls back to the B3 attributes when the compact one is
+ * missing or malformed, so messages published by older clients are still joined.
+ */
+public final class AmazonSNSCompactPropagation {
+
+  public static final String ATTRIBUTE_NAME = "b3";
+
+  private AmazonSNSCompactPropagation() {
+  }
+
+  /**
+   * Returns an injector writing the given format. {@link AmazonSNSPropagationFormat#B3} uses the
+   * propagation as is.
+   */
+  public static TraceContext.Injector<Map<String, MessageAttributeValue>> injector(
+    Propagation<String> propagation, AmazonSNSPropagationFormat format) {
+    switch (format) {
+      case COMPACT_STRING:
+        return (context, carrier) -> carrier.put(ATTRIBUTE_NAME, new MessageAttributeValue()
+          .withDataType("String")
+          .withStringValue(CompactTraceContextCodec.encodeString(context)));
+      case COMPACT_BINARY:
+        return (context, carrier) -> carrier.put(ATTRIBUTE_NAME, new MessageAttributeValue()
+          .withDataType("Binary")
+          .withBinaryValue(ByteBuffer.wrap(CompactTraceContextCodec.encodeBinary(context))));
+      default:
+        return propagation.injector(AmazonSNSB3Propagation.INJECTOR);
+    }
+  }
+
+  /**
+   * Returns an extractor that reads the compact attribute when present and otherwise delegates to
+   * the B3 attributes of the given propagation.
+   */
+  public static TraceContext.Extractor<Map<String, MessageAttributeValue>> extractor(
+    Propagation<String> propagation) {
+    TraceContext.Extractor<Map<String, MessageAttributeValue>> b3 =
+      propagation.extractor(AmazonSNSB3Propagation.EXTRACTOR);
+    return carrier -> {
+      MessageAttributeValue value = carrier.get(ATTRIBUTE_NAME);
+      TraceContext context = value != null ? decode(value) : null;
+      return context != null ? TraceContextOrSamplingFlags.create(context) : b3.extract(carrier);
+    };
+  }
+
+  static TraceContext decode(MessageAttributeValue value) {
+    if (value.getBinaryValue() != null) {
+      return CompactTraceContextCodec.decodeBinary(value.getBinaryValue());
+    } else if (value.getStringValue() != null) {
+      return CompactTraceContextCodec.decodeString(value.getStringValue());
+    }
+    return null;
+  }
+}
@@ -0,0 +1,117 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sns;
+
+import brave.SpanCustomizer;
+import com.amazonaws.services.sns.model.PublishRequest;
+import com.amazonaws.services.sns.model.PublishResult;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+
+/**
+ * Names and tags publish spans. Spans are named "publish &lt;topic name&gt;" rather than by arn,
+ * which keeps the account and region out of span names; override {@link #spanName(String)} to
+ * change that. The arn is always tagged, the region and account only when asked for.
+ */
+public class AmazonSNSPublishParser {
+
+  public static final int DEFAULT_MAX_CACHED_TOPICS = 1024;
+
+  static final String UNKNOWN_TOPIC = "unknown_topic";
+
+  private final int maxCachedTopics;
+  private final boolean tagRegionAndAccount;
+  private final ConcurrentMap<String, TopicMetadata> topics = new ConcurrentHashMap<>();
+
+  public AmazonSNSPublishParser() {
+    this(DEFAULT_MAX_CACHED_TOPICS, false);
+  }
+
+  /**
+   * @param maxCachedTopics how many topic arns to keep {@link TopicMetadata} for, beyond which it
+   * is derived again on every publish
+   * @param tagRegionAndAccount whether to tag the region and account of the topic
+   */
+  public AmazonSNSPublishParser(int maxCachedTopics, boolean tagRegionAndAccount) {
+    if (maxCachedTopics < 0) {
+      throw new IllegalArgumentException("maxCachedTopics < 0: " + maxCachedTopics);
+    }
+    this.maxCachedTopics = maxCachedTopics;
+    this.tagRegionAndAccount = tagRegionAndAccount;
+  }
+
+  public void request(PublishRequest request, SpanCustomizer customizer) {
+    TopicMetadata topic = topicMetadata(request.getTopicArn());
+    customizer.name(topic.spanName());
+    customizer.tag(AmazonSNSTraceKeys.SNS_TOPIC_ARN, topic.topicArn());
+    if (tagRegionAndAccount) {
+      if (topic.region() != null) customizer.tag(AmazonSNSTraceKeys.SNS_REGION, topic.region());
+      if (topic.accountId() != null) {
+        customizer.tag(AmazonSNSTraceKeys.SNS_ACCOUNT_ID, topic.accountId());
+      }
+    }
+  }
+
+  public void response(PublishResult result, SpanCustomizer customizer) {
+    if (result.getMessageId() != null) {
+      customizer.tag(AmazonSNSTraceKeys.SNS_MESSAGE_ID, result.getMessageId());
+    }
+  }
+
+  /**
+   * Returns the metadata of the topic, cached per arn up to the configured maximum. A null arn,
+   * as when publishing to a phone number or endpoint, gets the metadata of "unknown_topic".
+   */
+  public TopicMetadata topicMetadata(@Nullable String topicArn) {
+    if (topicArn == null) topicArn = UNKNOWN_TOPIC;
+    TopicMetadata metadata = topics.get(topicArn);
+    if (metadata == null) {
+      metadata = newTopicMetadata(topicArn);
+      if (topics.size() < maxCachedTopics) {
+        TopicMetadata existing = topics.putIfAbsent(topicArn, metadata);
+        if (existing != null) metadata = existing;
+      }
+    }
+    return metadata;
+  }
+
+  protected String spanName(String topicName) {
+    return "publish " + topicName;
+  }
+
+  /** "arn:aws:sns:us-west-2:123456789012:MyTopic" splits into six parts on colons */
+  private TopicMetadata newTopicMetadata(String topicArn) {
+    String region = null;
+    String accountId = null;
+    String topicName = topicArn;
+    if (topicArn.startsWith("arn:")) {
+      int[] colons = new int[5];
+      int found = 0;
+      for (int i = 0; i < topicArn.length() && found < colons.length; i++) {
+        if (topicArn.charAt(i) == ':') colons[found++] = i;
+      }
+      if (found == colons.length) {
+        region = emptyToNull(topicArn.substring(colons[2] + 1, colons[3]));
+        accountId = emptyToNull(topicArn.substring(colons[3] + 1, colons[4]));
+        topicName = topicArn.substring(colons[4] + 1);
+      }
+    }
+    return new TopicMetadata(topicArn, topicName, region, accountId, spanName(topicName));
+  }
+
+  @Nullable private static String emptyToNull(String value) {
+    return value.isEmpty() ? null : value;
+  }
+}
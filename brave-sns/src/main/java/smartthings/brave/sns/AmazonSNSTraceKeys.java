@@ -0,0 +1,25 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sns;
+
+public final class AmazonSNSTraceKeys {
+
+  public static final String SNS_TOPIC_ARN = "sns.topic_arn";
+  public static final String SNS_MESSAGE_ID = "sns.msg_id";
+  public static final String SNS_REGION = "sns.region";
+  public static final String SNS_ACCOUNT_ID = "sns.account_id";
+
+  private AmazonSNSTraceKeys() {
+  }
+}
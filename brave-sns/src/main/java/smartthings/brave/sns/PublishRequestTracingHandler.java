@@ -19,6 +19,7 @@ import brave.propagation.TraceContext;
 import com.amazonaws.AmazonWebServiceRequest;
 import com.amazonaws.Request;
 import com.amazonaws.Response;
+import com.amazonaws.handlers.HandlerContextKey;
 import com.amazonaws.handlers.RequestHandler2;
 import com.amazonaws.services.sns.model.MessageAttributeValue;
 import com.amazonaws.services.sns.model.PublishRequest;
@@ -28,41 +29,60 @@ import zipkin2.Endpoint;
 
 import javax.annotation.Nullable;
 import java.util.Map;
-import java.util.logging.Logger;
 
 /**
- * AWS RequestHandler2 that adds tracing around the afterError and afterResponse events
- * when calling the AWS SNS publish API.
+ * AWS RequestHandler2 that traces calls to the AWS SNS publish API with a CLIENT span, from the
+ * marshalling of the request to its response or error.
+ *
+ * The span travels with the request in its handler context rather than in scope, so nothing is
+ * left in thread locals and the handler works the same with AmazonSNSClient and
+ * AmazonSNSAsyncClient. The span is a child of the span current when the request is marshalled,
+ * which for AmazonSNSAsyncClient is on its executor: wrap that executor with
+ * {@code CurrentTraceContext.executorService} to parent publishes on the caller's span.
  */
 public class PublishRequestTracingHandler extends RequestHandler2 {
 
-  private static final String SNS_TOPIC_ARN = "sns.topic_arn";
-  private static final String SNS_MESSAGE_ID = "sns.msg_id";
-
   private static final String SERVICE_NAME = "AmazonSNS";
 
-  private static final Logger logger = Logger.getLogger(PublishRequestTracingHandler.class.getName());
+  private static final Endpoint ENDPOINT = Endpoint.newBuilder().serviceName(SERVICE_NAME).build();
+
+  static final HandlerContextKey<Span> SPAN = new HandlerContextKey<>(Span.class.getName());
 
   protected Tracing tracing;
+  protected final AmazonSNSPublishParser parser;
   protected final TraceContext.Injector<Map<String, MessageAttributeValue>> injector;
   protected final TraceContext.Extractor<Map<String, MessageAttributeValue>> extractor;
 
   public PublishRequestTracingHandler(Tracing tracing) {
+    this(tracing, AmazonSNSPropagationFormat.B3);
+  }
+
+  public PublishRequestTracingHandler(Tracing tracing, AmazonSNSPropagationFormat propagationFormat) {
+    this(tracing, propagationFormat, new AmazonSNSPublishParser());
+  }
+
+  public PublishRequestTracingHandler(Tracing tracing, AmazonSNSPropagationFormat propagationFormat,
+    AmazonSNSPublishParser parser) {
     this.tracing = tracing;
-    this.injector = tracing.propagation().injector(AmazonSNSB3Propagation.INJECTOR);
-    this.extractor = tracing.propagation().extractor(AmazonSNSB3Propagation.EXTRACTOR);
+    this.parser = parser;
+    this.injector = AmazonSNSCompactPropagation.injector(tracing.propagation(), propagationFormat);
+    this.extractor = AmazonSNSCompactPropagation.extractor(tracing.propagation());
   }
 
   @Override
   public void afterError(Request<?> request, Response<?> response, Exception e) {
     if (request.getOriginalRequestObject() instanceof PublishRequest) {
-      Span span =  tracing.tracer().nextSpan()
-        .remoteEndpoint(Endpoint.newBuilder().serviceName(SERVICE_NAME).build())
-        .kind(Span.Kind.CLIENT)
-        .start();
-
-      span.tag("error", e.getMessage());
-      span.flush();
+      Span span = span(request);
+      if (span == null) {
+        // failed before marshalling, so there is no span to finish yet
+        span = tracing.tracer().nextSpan()
+          .remoteEndpoint(ENDPOINT)
+          .kind(Span.Kind.CLIENT)
+          .start();
+      }
+      String message = e.getMessage();
+      span.tag("error", message != null ? message : e.getClass().getSimpleName());
+      span.finish();
     }
   }
 
@@ -71,21 +91,14 @@ public class PublishRequestTracingHandler extends RequestHandler2 {
     if (request instanceof PublishRequest) {
       PublishRequest publishRequest = (PublishRequest) request;
 
-      Span oneWay = tracing.tracer().nextSpan()
-        .remoteEndpoint(Endpoint.newBuilder().serviceName(SERVICE_NAME).build())
-        .kind(Span.Kind.CLIENT)
-        .start();
-
-      injector.inject(oneWay.context(), publishRequest.getMessageAttributes());
+      Span span = tracing.tracer().nextSpan()
+        .remoteEndpoint(ENDPOINT)
+        .kind(Span.Kind.CLIENT);
 
-      String name = "unknown_topic";
-      if (publishRequest.getTopicArn() != null) {
-        name = publishRequest.getTopicArn();
-      }
-      oneWay.name(name);
-      oneWay.tag(SNS_TOPIC_ARN, name);
+      injector.inject(span.context(), publishRequest.getMessageAttributes());
+      if (!span.isNoop()) parser.request(publishRequest, span);
 
-      tracing.tracer().withSpanInScope(oneWay);
+      publishRequest.addHandlerContext(SPAN, span.start());
     }
     return request;
   }
@@ -95,12 +108,23 @@ public class PublishRequestTracingHandler extends RequestHandler2 {
     if (response.getAwsResponse() instanceof PublishResult) {
       PublishResult publishResult = (PublishResult) response.getAwsResponse();
 
-      Span span = tracing.tracer().currentSpan();
+      Span span = span(request);
+      if (span == null) return;
 
-      if (publishResult != null && publishResult.getMessageId() != null) {
-        span.tag(SNS_MESSAGE_ID, publishResult.getMessageId());
-        span.flush();
-      }
+      parser.response(publishResult, span);
+      span.finish();
+    }
+  }
+
+  /**
+   * The request copies the handler context of the original request when it is created, which is
+   * after marshalling, but check the original too in case it was created before.
+   */
+  @Nullable private static Span span(Request<?> request) {
+    Span span = request.getHandlerContext(SPAN);
+    if (span == null && request.getOriginalRequest() != null) {
+      span = request.getOriginalRequest().getHandlerContext(SPAN);
     }
+    return span;
   }
 }
@@ -0,0 +1,66 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sns;
+
+import javax.annotation.Nullable;
+
+/**
+ * What {@link AmazonSNSPublishParser} derives from a topic arn: the topic name, region and account,
+ * and the span name of a publish. Built once per arn and cached by the parser, so naming spans
+ * doesn't parse arns or build strings.
+ */
+public final class TopicMetadata {
+
+  private final String topicArn;
+  private final String topicName;
+  @Nullable private final String region;
+  @Nullable private final String accountId;
+  private final String spanName;
+
+  TopicMetadata(String topicArn, String topicName, @Nullable String region,
+    @Nullable String accountId, String spanName) {
+    this.topicArn = topicArn;
+    this.topicName = topicName;
+    this.region = region;
+    this.accountId = accountId;
+    this.spanName = spanName;
+  }
+
+  public String topicArn() {
+    return topicArn;
+  }
+
+  /** The last part of the arn, or the whole value when it isn't an arn */
+  public String topicName() {
+    return topicName;
+  }
+
+  /** The region of the topic, or null when the value isn't an arn */
+  @Nullable public String region() {
+    return region;
+  }
+
+  /** The AWS account owning the topic, or null when the value isn't an arn */
+  @Nullable public String accountId() {
+    return accountId;
+  }
+
+  public String spanName() {
+    return spanName;
+  }
+
+  @Override public String toString() {
+    return "TopicMetadata(" + topicArn + ")";
+  }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sns;
+
+import brave.Span;
+import brave.Tracing;
+import com.amazonaws.services.sns.model.PublishRequest;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AmazonSNSPublishParserTest {
+
+  private static final String TOPIC_ARN = "arn:aws:sns:us-west-2:123456789012:orders";
+
+  private ConcurrentLinkedDeque<zipkin2.Span> spans = new ConcurrentLinkedDeque<>();
+
+  private Tracing tracing = Tracing.newBuilder().spanReporter(spans::add).build();
+
+  private AmazonSNSPublishParser parser = new AmazonSNSPublishParser();
+
+  @After
+  public void close() {
+    tracing.close();
+  }
+
+  @Test
+  public void derivesTopicMetadata() {
+    TopicMetadata metadata = parser.topicMetadata(TOPIC_ARN);
+
+    assertThat(metadata.topicName()).isEqualTo("orders");
+    assertThat(metadata.region()).isEqualTo("us-west-2");
+    assertThat(metadata.accountId()).isEqualTo("123456789012");
+    assertThat(metadata.spanName()).isEqualTo("publish orders");
+  }
+
+  @Test
+  public void keepsValuesThatArentArns() {
+    TopicMetadata metadata = parser.topicMetadata("topic");
+
+    assertThat(metadata.topicName()).isEqualTo("topic");
+    assertThat(metadata.region()).isNull();
+    assertThat(metadata.accountId()).isNull();
+    assertThat(parser.topicMetadata(null).spanName()).isEqualTo("publish unknown_topic");
+  }
+
+  @Test
+  public void cachesPerArnUpToMaximum() {
+    assertThat(parser.topicMetadata(TOPIC_ARN)).isSameAs(parser.topicMetadata(TOPIC_ARN));
+
+    parser = new AmazonSNSPublishParser(1, false);
+    parser.topicMetadata(TOPIC_ARN);
+    assertThat(parser.topicMetadata("topic")).isNotSameAs(parser.topicMetadata("topic"));
+    assertThat(parser.topicMetadata(TOPIC_ARN)).isSameAs(parser.topicMetadata(TOPIC_ARN));
+  }
+
+  @Test
+  public void tagsRegionAndAccountWhenAsked() {
+    parse(parser);
+    parse(new AmazonSNSPublishParser(10, true));
+
+    assertThat(spans.getFirst().tags())
+      .containsOnlyKeys(AmazonSNSTraceKeys.SNS_TOPIC_ARN);
+    assertThat(spans.getLast().tags())
+      .containsEntry(AmazonSNSTraceKeys.SNS_TOPIC_ARN, TOPIC_ARN)
+      .containsEntry(AmazonSNSTraceKeys.SNS_REGION, "us-west-2")
+      .containsEntry(AmazonSNSTraceKeys.SNS_ACCOUNT_ID, "123456789012");
+    assertThat(spans.getLast().name()).isEqualTo("publish orders");
+  }
+
+  @Test
+  public void usesOverriddenSpanName() {
+    parser = new AmazonSNSPublishParser() {
+      @Override protected String spanName(String topicName) {
+        return "sns:" + topicName;
+      }
+    };
+
+    assertThat(parser.topicMetadata(TOPIC_ARN).spanName()).isEqualTo("sns:orders");
+  }
+
+  private void parse(AmazonSNSPublishParser parser) {
+    Span span = tracing.tracer().newTrace().start();
+    parser.request(new PublishRequest(TOPIC_ARN, "message"), span);
+    span.finish();
+  }
+}
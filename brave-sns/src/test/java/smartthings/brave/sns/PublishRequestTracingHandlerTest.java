@@ -27,6 +27,7 @@ import zipkin2.Span;
 
 import java.util.concurrent.ConcurrentLinkedDeque;
 
+import static brave.internal.HexCodec.toLowerHex;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.*;
 
@@ -62,6 +63,63 @@ public class PublishRequestTracingHandlerTest {
     //do stuff
     handler.afterResponse(request, response);
     assertEquals( 1, spans.size() );
+    assertEquals(Span.Kind.CLIENT, spans.getFirst().kind());
+    assertEquals("54321", spans.getFirst().tags().get("sns.msg_id"));
+  }
+
+  @Test
+  public void leavesNoSpanInScope() {
+    PublishRequest publishRequest = new PublishRequest("topic", "1234");
+
+    handler.beforeMarshalling(publishRequest);
+
+    assertNull(currentTraceContext.get());
+  }
+
+  @Test
+  public void finishesPublishSpanFromMarshallingToResponse() {
+    PublishRequest publishRequest = new PublishRequest("topic", "1234");
+    handler.beforeMarshalling(publishRequest);
+    // the SDK creates the request after marshalling, copying the handler context
+    Request request = new DefaultRequest(publishRequest, "amazon-sns");
+    TraceContext injected = handler.extractor.extract(publishRequest.getMessageAttributes()).context();
+
+    handler.afterResponse(request, new Response(new PublishResult().withMessageId("54321"), null));
+
+    Span span = spans.getFirst();
+    assertEquals(toLowerHex(injected.spanId()), span.id());
+    assertNotNull(span.duration());
+    assertEquals("amazonsns", span.remoteEndpoint().serviceName());
+  }
+
+  @Test
+  public void finishesPublishSpanOnError() {
+    PublishRequest publishRequest = new PublishRequest("topic", "1234");
+    handler.beforeMarshalling(publishRequest);
+    Request request = new DefaultRequest(publishRequest, "amazon-sns");
+    TraceContext injected = handler.extractor.extract(publishRequest.getMessageAttributes()).context();
+
+    handler.afterError(request, null, new Exception("Aw, snap!"));
+
+    assertEquals(1, spans.size());
+    assertEquals(toLowerHex(injected.spanId()), spans.getFirst().id());
+    assertEquals("Aw, snap!", spans.getFirst().tags().get("error"));
+    assertEquals("topic", spans.getFirst().tags().get("sns.topic_arn"));
+    assertEquals("publish topic", spans.getFirst().name());
+  }
+
+  @Test
+  public void injectsSingleAttributeInCompactFormat() {
+    PublishRequest publishRequest = new PublishRequest("topic", "1234");
+    PublishRequestTracingHandler compact =
+      new PublishRequestTracingHandler(tracing, AmazonSNSPropagationFormat.COMPACT_STRING);
+
+    compact.beforeMarshalling(publishRequest);
+
+    assertThat(publishRequest.getMessageAttributes())
+      .containsOnlyKeys(AmazonSNSCompactPropagation.ATTRIBUTE_NAME);
+    TraceContext context = compact.extractor.extract(publishRequest.getMessageAttributes()).context();
+    assertEquals(publishRequest.getHandlerContext(PublishRequestTracingHandler.SPAN).context(), context);
   }
 
   @Test
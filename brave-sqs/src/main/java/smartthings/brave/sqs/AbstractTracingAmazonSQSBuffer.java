@@ -0,0 +1,222 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects entries per queue for a short window and hands each batch to
+ * {@link #sendBatch(String, List)} on a pool of sender threads, once it is full, once its window
+ * elapsed or on {@link #flush()}.
+ *
+ * Batches of an {@link #ordered(String)} queue are sent one at a time, in the order they were
+ * formed, as batches sent concurrently could reach the queue in any order.
+ * @param <E> entry type
+ */
+abstract class AbstractTracingAmazonSQSBuffer<E> implements Closeable {
+
+  static final int MAX_BATCH = 10;
+
+  private final int maxBatchSize;
+  private final int maxBatchBytes;
+  private final long maxDelayNanos;
+  private final ScheduledThreadPoolExecutor senders;
+  /** guarded by itself */
+  private final Map<String, Batch<E>> batches = new HashMap<>();
+  /** guarded by batches */
+  private final Map<String, OrderedSends> orderedSends = new HashMap<>();
+
+  AbstractTracingAmazonSQSBuffer(int maxBatchSize, int maxBatchBytes, long maxDelayNanos,
+    int threads) {
+    this.maxBatchSize = maxBatchSize;
+    this.maxBatchBytes = maxBatchBytes;
+    this.maxDelayNanos = maxDelayNanos;
+    this.senders = new ScheduledThreadPoolExecutor(threads);
+    // timers of batches already sent by close()
+    this.senders.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+  }
+
+  /** Sends the entries of one batch, on a sender thread unless the buffer is closed. */
+  abstract void sendBatch(String queueUrl, List<E> entries);
+
+  /** Whether batches of the queue must be sent in order, none by default. */
+  boolean ordered(String queueUrl) {
+    return false;
+  }
+
+  /** Bytes the entry counts against the batch size limit, none by default. */
+  int bytes(E entry) {
+    return 0;
+  }
+
+  /**
+   * Adds the entry to the batch of its queue, sending that batch when it is full. An entry that
+   * doesn't fit in the bytes left starts a new batch.
+   */
+  final void add(String queueUrl, E entry) {
+    int bytes = bytes(entry);
+    Runnable overflowed = null;
+    Runnable full = null;
+    Batch<E> started = null;
+    synchronized (batches) {
+      Batch<E> batch = batches.get(queueUrl);
+      if (batch != null && batch.bytes + bytes > maxBatchBytes) {
+        overflowed = ready(batch);
+        batch = null;
+      }
+      if (batch == null) {
+        batch = started = new Batch<>(queueUrl);
+        batches.put(queueUrl, batch);
+      }
+      batch.entries.add(entry);
+      batch.bytes += bytes;
+      if (batch.entries.size() >= maxBatchSize) {
+        batches.remove(queueUrl);
+        full = ready(batch);
+        started = null;
+      }
+    }
+    if (overflowed != null) execute(overflowed);
+    if (full != null) {
+      execute(full);
+    } else if (started != null) {
+      final Batch<E> timed = started;
+      schedule(() -> {
+        Runnable send;
+        synchronized (batches) {
+          if (batches.get(timed.queueUrl) != timed) return;
+          batches.remove(timed.queueUrl);
+          send = ready(timed);
+        }
+        // already on a sender thread
+        if (send != null) send.run();
+      });
+    }
+  }
+
+  /** Sends everything buffered without waiting for the batches to fill. */
+  public void flush() {
+    List<Runnable> pending = new ArrayList<>();
+    synchronized (batches) {
+      for (Batch<E> batch : batches.values()) {
+        Runnable send = ready(batch);
+        if (send != null) pending.add(send);
+      }
+      batches.clear();
+    }
+    for (Runnable send : pending) {
+      execute(send);
+    }
+  }
+
+  /** Sends everything buffered and waits for the batches in flight. */
+  @Override public void close() {
+    flush();
+    senders.shutdown();
+    try {
+      senders.awaitTermination(30, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void schedule(Runnable task) {
+    try {
+      senders.schedule(task, maxDelayNanos, TimeUnit.NANOSECONDS);
+    } catch (RejectedExecutionException e) {
+      // closing, flush sends it
+    }
+  }
+
+  /**
+   * Called with the lock held once the batch is complete, so batches of an ordered queue are
+   * queued in the order they were formed.
+   * @return the task sending the batch, or null when the queue's sends already run
+   */
+  private Runnable ready(Batch<E> batch) {
+    if (!ordered(batch.queueUrl)) return () -> sendBatch(batch.queueUrl, batch.entries);
+    OrderedSends sends = orderedSends.get(batch.queueUrl);
+    if (sends == null) {
+      sends = new OrderedSends(batch.queueUrl);
+      orderedSends.put(batch.queueUrl, sends);
+    }
+    return sends.add(batch.entries) ? sends : null;
+  }
+
+  private void execute(Runnable send) {
+    try {
+      senders.execute(send);
+    } catch (RejectedExecutionException e) {
+      send.run();
+    }
+  }
+
+  /** The batches of an ordered queue, sent one at a time by a single task. */
+  private final class OrderedSends implements Runnable {
+    final String queueUrl;
+    /** guarded by this */
+    final Deque<List<E>> ready = new ArrayDeque<>();
+    /** guarded by this */
+    boolean running;
+
+    OrderedSends(String queueUrl) {
+      this.queueUrl = queueUrl;
+    }
+
+    /** @return true when the sends were idle, and this should be executed */
+    synchronized boolean add(List<E> entries) {
+      ready.add(entries);
+      if (running) return false;
+      running = true;
+      return true;
+    }
+
+    /** Sends the next batch, then hands the rest to another task so one queue doesn't hold a thread. */
+    @Override public void run() {
+      List<E> entries;
+      synchronized (this) {
+        entries = ready.poll();
+      }
+      try {
+        sendBatch(queueUrl, entries);
+      } finally {
+        boolean more;
+        synchronized (this) {
+          more = !ready.isEmpty();
+          running = more;
+        }
+        if (more) execute(this);
+      }
+    }
+  }
+
+  private static final class Batch<E> {
+    final String queueUrl;
+    final List<E> entries = new ArrayList<>(MAX_BATCH);
+    int bytes;
+
+    Batch(String queueUrl) {
+      this.queueUrl = queueUrl;
+    }
+  }
+}
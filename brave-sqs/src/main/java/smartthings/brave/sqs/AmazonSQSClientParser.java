@@ -15,7 +15,7 @@ package smartthings.brave.sqs;
 
 import brave.SpanCustomizer;
 import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
-import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
 import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
 import com.amazonaws.services.sqs.model.DeleteMessageRequest;
 import com.amazonaws.services.sqs.model.DeleteMessageResult;
@@ -23,23 +23,51 @@ import com.amazonaws.services.sqs.model.Message;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
 import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
 import com.amazonaws.services.sqs.model.SendMessageBatchResult;
 import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
 import com.amazonaws.services.sqs.model.SendMessageResult;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class AmazonSQSClientParser {
 
+  public static final int DEFAULT_MAX_CACHED_QUEUES = 1024;
+
+  private final int maxCachedQueues;
+  private final ConcurrentMap<String, QueueMetadata> queues = new ConcurrentHashMap<>();
+
+  public AmazonSQSClientParser() {
+    this(DEFAULT_MAX_CACHED_QUEUES);
+  }
+
+  /**
+   * @param maxCachedQueues how many queue urls to keep {@link QueueMetadata} for, beyond which it
+   * is derived again on every call
+   */
+  public AmazonSQSClientParser(int maxCachedQueues) {
+    if (maxCachedQueues < 0) {
+      throw new IllegalArgumentException("maxCachedQueues < 0: " + maxCachedQueues);
+    }
+    this.maxCachedQueues = maxCachedQueues;
+  }
+
   public void request(SendMessageRequest request, SpanCustomizer customizer) {
     customizer.name(spanName(request));
     customizer.tag(AmazonSQSTraceKeys.SQS_QUEUE_URL, request.getQueueUrl());
   }
 
+  /** Called on the span of each entry, so this should not loop over the entries. */
   public void request(SendMessageBatchRequest request, SpanCustomizer customizer) {
     customizer.name(spanName(request));
     customizer.tag(AmazonSQSTraceKeys.SQS_QUEUE_URL, request.getQueueUrl());
+    customizer.tag(AmazonSQSTraceKeys.SQS_BATCH_SIZE, Integer.toString(request.getEntries().size()));
+  }
+
+  public void request(SendMessageBatchRequestEntry entry, SpanCustomizer customizer) {
   }
 
   public void request(ReceiveMessageRequest request, SpanCustomizer customizer) {
@@ -56,31 +84,37 @@ public class AmazonSQSClientParser {
   public void request(DeleteMessageBatchRequest request, SpanCustomizer customizer) {
     customizer.name(spanName(request));
     customizer.tag(AmazonSQSTraceKeys.SQS_QUEUE_URL, request.getQueueUrl());
-    for(DeleteMessageBatchRequestEntry entry : request.getEntries()) {
-      customizer.tag(AmazonSQSTraceKeys.SQS_RECEIPT_HANDLE, entry.getReceiptHandle());
-    }
+    customizer.tag(AmazonSQSTraceKeys.SQS_BATCH_SIZE, Integer.toString(request.getEntries().size()));
   }
 
   public void response(SendMessageResult result, SpanCustomizer customizer) {
     customizer.tag(AmazonSQSTraceKeys.SQS_MESSAGE_ID, result.getMessageId());
   }
 
+  /** Called on the span of each entry, so this should not loop over the entries. */
   public void response(SendMessageBatchResult result, SpanCustomizer customizer) {
-    for(SendMessageBatchResultEntry entry : result.getSuccessful()) {
-      customizer.tag(AmazonSQSTraceKeys.SQS_MESSAGE_ID, entry.getMessageId());
-    }
+    batchSummary(result.getSuccessful().size(), result.getFailed().size(), customizer);
+  }
+
+  /** Called on the span of the entry that was sent. */
+  public void response(SendMessageBatchResultEntry entry, SpanCustomizer customizer) {
+    customizer.tag(AmazonSQSTraceKeys.SQS_MESSAGE_ID, entry.getMessageId());
   }
 
   public void response(ReceiveMessageResult result, SpanCustomizer customizer) {
-    for (Message message : result.getMessages()) {
-      customizer.tag(AmazonSQSTraceKeys.SQS_MESSAGE_ID, message.getMessageId());
-    }
+    customizer.tag(AmazonSQSTraceKeys.SQS_MESSAGE_COUNT, Integer.toString(result.getMessages().size()));
+  }
+
+  /** Called on the span of each received message. */
+  public void response(Message message, SpanCustomizer customizer) {
+    customizer.tag(AmazonSQSTraceKeys.SQS_MESSAGE_ID, message.getMessageId());
   }
 
   public void response(DeleteMessageResult result, SpanCustomizer customizer) {
   }
 
   public void response(DeleteMessageBatchResult result, SpanCustomizer customizer) {
+    batchSummary(result.getSuccessful().size(), result.getFailed().size(), customizer);
   }
 
   public void error(Throwable throwable, SpanCustomizer customizer) {
@@ -88,24 +122,61 @@ public class AmazonSQSClientParser {
     customizer.tag("error", message);
   }
 
+  /** Called on the span of a batch entry that SQS rejected. */
+  public void error(BatchResultErrorEntry entry, SpanCustomizer customizer) {
+    customizer.tag("error", entry.getMessage() != null ? entry.getMessage() : entry.getCode());
+  }
+
+  protected void batchSummary(int successful, int failed, SpanCustomizer customizer) {
+    customizer.tag(AmazonSQSTraceKeys.SQS_BATCH_SUCCESSFUL, Integer.toString(successful));
+    customizer.tag(AmazonSQSTraceKeys.SQS_BATCH_FAILED, Integer.toString(failed));
+  }
+
   protected String spanName(SendMessageBatchRequest request) {
-    return "send_message_batch-" + spanName(request.getQueueUrl());
+    return queueMetadata(request.getQueueUrl()).sendMessageBatchSpanName();
   }
 
   protected String spanName(SendMessageRequest request) {
-    return "send_message-" + spanName(request.getQueueUrl());
+    return queueMetadata(request.getQueueUrl()).sendMessageSpanName();
   }
 
   protected String spanName(ReceiveMessageRequest request) {
-    return "receive_message-" + spanName(request.getQueueUrl());
+    return queueMetadata(request.getQueueUrl()).receiveMessageSpanName();
   }
 
   protected String spanName(DeleteMessageRequest request) {
-    return "delete_message-" + spanName(request.getQueueUrl());
+    return queueMetadata(request.getQueueUrl()).deleteMessageSpanName();
   }
 
   protected String spanName(DeleteMessageBatchRequest request) {
-    return "delete_message_batch-" + spanName(request.getQueueUrl());
+    return queueMetadata(request.getQueueUrl()).deleteMessageBatchSpanName();
+  }
+
+  /**
+   * Returns the metadata of the queue, cached per queue url up to the configured maximum. The queue
+   * name comes from {@link #spanName(String)}, so overriding that also changes the cached names.
+   */
+  public QueueMetadata queueMetadata(String queueUrl) {
+    if (queueUrl == null) return newQueueMetadata(null);
+    QueueMetadata metadata = queues.get(queueUrl);
+    if (metadata == null) {
+      metadata = newQueueMetadata(queueUrl);
+      if (queues.size() < maxCachedQueues) {
+        QueueMetadata existing = queues.putIfAbsent(queueUrl, metadata);
+        if (existing != null) metadata = existing;
+      }
+    }
+    return metadata;
+  }
+
+  private QueueMetadata newQueueMetadata(String queueUrl) {
+    URL url;
+    try {
+      url = new URL(queueUrl);
+    } catch (MalformedURLException e) {
+      url = null;
+    }
+    return new QueueMetadata(queueUrl, spanName(queueUrl), url);
   }
 
   protected String spanName(String queueUrl) {
@@ -13,14 +13,31 @@
  */
 package smartthings.brave.sqs;
 
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
 import javax.annotation.Nullable;
 
+/**
+ * Decides whether an operation that doesn't already belong to a trace starts a sampled one. Sends
+ * and deletes made within a trace, and received messages carrying a sampling decision, keep that
+ * decision and the sampler isn't consulted.
+ *
+ * <p>Every request type delegates to {@link #trySample(String)} by default, so a sampler keyed on
+ * the queue only needs to override that. Override a request typed method to treat one operation
+ * differently, for example to never trace deletes.
+ *
+ * <p>Called on the caller's thread for every traced request, so implementations should not lock.
+ *
+ * @see QueueRateSampler
+ */
 public abstract class AmazonSQSClientSampler {
 
   public static final AmazonSQSClientSampler TRACE_ID = new AmazonSQSClientSampler() {
 
-    @Override public Boolean trySample(SendMessageRequest request) {
+    @Override public Boolean trySample(String queueUrl) {
       return null;
     }
 
@@ -30,7 +47,7 @@ public abstract class AmazonSQSClientSampler {
   };
 
   public static final AmazonSQSClientSampler NEVER_SAMPLE = new AmazonSQSClientSampler() {
-    @Override public Boolean trySample(SendMessageRequest request) {
+    @Override public Boolean trySample(String queueUrl) {
       return false;
     }
 
@@ -39,6 +56,32 @@ public abstract class AmazonSQSClientSampler {
     }
   };
 
-  @Nullable public abstract Boolean trySample(SendMessageRequest request);
+  @Nullable public Boolean trySample(SendMessageRequest request) {
+    return trySample(request.getQueueUrl());
+  }
+
+  @Nullable public Boolean trySample(SendMessageBatchRequest request) {
+    return trySample(request.getQueueUrl());
+  }
+
+  @Nullable public Boolean trySample(ReceiveMessageRequest request) {
+    return trySample(request.getQueueUrl());
+  }
+
+  @Nullable public Boolean trySample(DeleteMessageRequest request) {
+    return trySample(request.getQueueUrl());
+  }
+
+  @Nullable public Boolean trySample(DeleteMessageBatchRequest request) {
+    return trySample(request.getQueueUrl());
+  }
+
+  /**
+   * @return true or false to force the decision, or null to leave it to the {@link brave.Tracing}
+   * sampler, which is also the default
+   */
+  @Nullable public Boolean trySample(String queueUrl) {
+    return null;
+  }
 
 }
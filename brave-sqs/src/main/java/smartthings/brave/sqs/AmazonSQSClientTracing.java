@@ -28,7 +28,10 @@ public abstract class AmazonSQSClientTracing {
     return new AutoValue_AmazonSQSClientTracing.Builder()
       .tracing(tracing)
       .parser(new AmazonSQSClientParser())
-      .sampler(AmazonSQSClientSampler.TRACE_ID);
+      .sampler(AmazonSQSClientSampler.TRACE_ID)
+      .propagationFormat(AmazonSQSPropagationFormat.B3)
+      .metrics(AmazonSQSTracingMetrics.NOOP)
+      .snsNotifications(false);
   }
 
   public abstract Tracing tracing();
@@ -39,6 +42,24 @@ public abstract class AmazonSQSClientTracing {
 
   @Nullable public abstract String remoteServiceName();
 
+  /** How sent messages carry the trace context, defaults to {@link AmazonSQSPropagationFormat#B3} */
+  public abstract AmazonSQSPropagationFormat propagationFormat();
+
+  /**
+   * Receives queue metrics, defaults to {@link AmazonSQSTracingMetrics#NOOP}. Unless it is the
+   * default, receives also ask for the system attributes the metrics are derived from.
+   */
+  public abstract AmazonSQSTracingMetrics metrics();
+
+  /**
+   * Whether a received message without trace attributes is read as an SNS notification, whose
+   * body holds the attributes of the publish when the queue is subscribed to a topic without raw
+   * message delivery. Defaults to false.
+   *
+   * @see AmazonSQSSnsNotificationPropagation
+   */
+  public abstract boolean snsNotifications();
+
   public AmazonSQSClientTracing clientOf(String remoteServiceName) {
     return toBuilder().remoteServiceName(remoteServiceName).build();
   }
@@ -60,6 +81,15 @@ public abstract class AmazonSQSClientTracing {
 
     public abstract Builder remoteServiceName(@Nullable String remoteServiceName);
 
+    /** @see AmazonSQSClientTracing#propagationFormat() */
+    public abstract Builder propagationFormat(AmazonSQSPropagationFormat propagationFormat);
+
+    /** @see AmazonSQSClientTracing#metrics() */
+    public abstract Builder metrics(AmazonSQSTracingMetrics metrics);
+
+    /** @see AmazonSQSClientTracing#snsNotifications() */
+    public abstract Builder snsNotifications(boolean snsNotifications);
+
     Builder() {}
   }
 
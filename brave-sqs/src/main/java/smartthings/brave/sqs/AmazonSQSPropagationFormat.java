@@ -0,0 +1,30 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+/**
+ * How {@link TracingAmazonSQSClient} writes the trace context into message attributes. Every format
+ * is accepted on receive, so producers and consumers can be switched over independently.
+ */
+public enum AmazonSQSPropagationFormat {
+
+  /** one String attribute per B3 key, as written by {@link brave.propagation.B3Propagation} */
+  B3,
+
+  /** a single String attribute named {@link AmazonSQSCompactPropagation#ATTRIBUTE_NAME} */
+  COMPACT_STRING,
+
+  /** a single Binary attribute named {@link AmazonSQSCompactPropagation#ATTRIBUTE_NAME} */
+  COMPACT_BINARY
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Reads the trace context of messages SNS delivers to a subscribed queue without raw message
+ * delivery. The attributes of the publish then only exist in the JSON notification body:
+ *
+ * <pre>
+ * {
+ *   "Type" : "Notification",
+ *   "Message" : "...",
+ *   ...
+ *   "MessageAttributes" : {
+ *     "X-B3-TraceId" : {"Type":"String","Value":"463ac35c9f6413ad"},
+ *     ...
+ *   }
+ * }
+ * </pre>
+ *
+ * Bodies can be as large as 256 KB, so the body isn't parsed as a whole. The body must be a
+ * notification: SNS writes "Type" first, so the top level fields are only streamed until that one.
+ * SNS writes "MessageAttributes" last, after the message, so the extractor then finds the last
+ * occurrence of the key outside of a string and streams only that object, keeping the values of
+ * the trace attributes.
+ * Those are then read as {@link AmazonSQSCompactPropagation#extractor(Propagation)} reads SQS
+ * attributes, so both B3 and the compact formats are supported.
+ */
+public final class AmazonSQSSnsNotificationPropagation {
+
+  static final String MESSAGE_ATTRIBUTES = "\"MessageAttributes\"";
+
+  private static final JsonFactory JSON = new JsonFactory();
+
+  private AmazonSQSSnsNotificationPropagation() {
+  }
+
+  /** Returns an extractor of the trace context in an SNS notification body. */
+  public static TraceContext.Extractor<String> extractor(Propagation<String> propagation) {
+    TraceContext.Extractor<Map<String, MessageAttributeValue>> attributes =
+      AmazonSQSCompactPropagation.extractor(propagation);
+    Set<String> names = new HashSet<>(propagation.keys());
+    names.add(AmazonSQSCompactPropagation.ATTRIBUTE_NAME);
+    return body -> {
+      Map<String, MessageAttributeValue> found = messageAttributes(body, names);
+      return found.isEmpty() ? TraceContextOrSamplingFlags.EMPTY : attributes.extract(found);
+    };
+  }
+
+  /**
+   * Returns the named attributes of the notification, or an empty map when the body isn't a
+   * notification or has none of them.
+   */
+  static Map<String, MessageAttributeValue> messageAttributes(@Nullable String body,
+    Set<String> names) {
+    int start = attributesStart(body);
+    if (start < 0) return Collections.emptyMap();
+
+    Map<String, MessageAttributeValue> found = new HashMap<>(8);
+    try (Reader reader = new StringReader(body)) {
+      if (!isNotification(body)) return Collections.emptyMap();
+      reader.skip(start);
+      try (JsonParser parser = JSON.createParser(reader)) {
+        if (parser.nextToken() != JsonToken.START_OBJECT) return Collections.emptyMap();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+          String name = parser.getCurrentName();
+          JsonToken value = parser.nextToken();
+          if (value == JsonToken.START_OBJECT && names.contains(name)) {
+            MessageAttributeValue attribute = attribute(parser);
+            if (attribute != null) found.put(name, attribute);
+          } else {
+            parser.skipChildren();
+          }
+        }
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      // malformed json or base64, so not a notification we can read
+      return Collections.emptyMap();
+    }
+    return found;
+  }
+
+  /** True when the top level "Type" field of the body is "Notification". */
+  static boolean isNotification(String body) throws IOException {
+    try (JsonParser parser = JSON.createParser(body)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) return false;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if ("Type".equals(name)) {
+          return value == JsonToken.VALUE_STRING && "Notification".equals(parser.getText());
+        }
+        parser.skipChildren();
+      }
+    }
+    return false;
+  }
+
+  /** Reads {"Type":"String","Value":"..."}, the parser being on its start. */
+  @Nullable static MessageAttributeValue attribute(JsonParser parser) throws IOException {
+    String type = null;
+    String stringValue = null;
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if (value != JsonToken.VALUE_STRING) {
+        parser.skipChildren();
+      } else if ("Type".equals(field)) {
+        type = parser.getText();
+      } else if ("Value".equals(field)) {
+        // the type may follow the value, so decode once it is known
+        stringValue = parser.getText();
+      }
+    }
+    if (type == null || stringValue == null) return null;
+    if (type.startsWith("Binary")) {
+      return new MessageAttributeValue().withDataType(type)
+        .withBinaryValue(ByteBuffer.wrap(Base64Variants.getDefaultVariant().decode(stringValue)));
+    }
+    return new MessageAttributeValue().withDataType(type).withStringValue(stringValue);
+  }
+
+  /**
+   * Returns the index of the object following the last "MessageAttributes" key, or -1 if there is
+   * none. A match inside a string value starts with an escaped quote, as a string can't contain
+   * an unescaped one, so those are skipped.
+   */
+  static int attributesStart(@Nullable String body) {
+    if (body == null || body.isEmpty()) return -1;
+    int first = skipWhitespace(body, 0);
+    if (first == body.length() || body.charAt(first) != '{') return -1;
+
+    int key = body.lastIndexOf(MESSAGE_ATTRIBUTES);
+    while (key > 0 && escaped(body, key)) {
+      key = body.lastIndexOf(MESSAGE_ATTRIBUTES, key - 1);
+    }
+    if (key <= first) return -1;
+
+    int i = skipWhitespace(body, key + MESSAGE_ATTRIBUTES.length());
+    if (i == body.length() || body.charAt(i) != ':') return -1;
+    i = skipWhitespace(body, i + 1);
+    if (i == body.length() || body.charAt(i) != '{') return -1;
+    return i;
+  }
+
+  /** True when an odd number of backslashes precede the index. */
+  static boolean escaped(String body, int index) {
+    int backslashes = 0;
+    for (int i = index - 1; i >= 0 && body.charAt(i) == '\\'; i--) {
+      backslashes++;
+    }
+    return (backslashes & 1) == 1;
+  }
+
+  private static int skipWhitespace(String body, int i) {
+    while (i < body.length()) {
+      char c = body.charAt(i);
+      if (c != ' ' && c != '\n' && c != '\r' && c != '\t') break;
+      i++;
+    }
+    return i;
+  }
+}
@@ -19,5 +19,11 @@ public final class AmazonSQSTraceKeys {
   public static final String SQS_QUEUE_URL = "sqs.queue_url";
   public static final String SQS_MESSAGE_ID = "sqs.msg_id";
   public static final String SQS_RECEIPT_HANDLE = "sqs.receipt_handle";
+  public static final String SQS_MESSAGE_COUNT = "sqs.msg_count";
+  public static final String SQS_BATCH_SIZE = "sqs.batch_size";
+  public static final String SQS_BATCH_SUCCESSFUL = "sqs.batch_successful";
+  public static final String SQS_BATCH_FAILED = "sqs.batch_failed";
+  public static final String SQS_BATCH_TRACE_ID = "sqs.batch_trace_id";
+  public static final String SQS_MESSAGE_TRACE_IDS = "sqs.msg_trace_ids";
 
 }
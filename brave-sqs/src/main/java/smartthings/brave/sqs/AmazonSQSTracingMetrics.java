@@ -0,0 +1,59 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+/**
+ * Receives the counts and latencies derived from the messages received by the traced clients.
+ * Every method is a no-op unless overridden, so implementations only pick the measurements they
+ * export. Nothing here makes extra API calls: the values come from the system attributes requested
+ * along with the messages.
+ *
+ * See {@link DropwizardAmazonSQSTracingMetrics} to export them to a Dropwizard MetricRegistry.
+ */
+public abstract class AmazonSQSTracingMetrics {
+
+  public static final AmazonSQSTracingMetrics NOOP = new AmazonSQSTracingMetrics() {
+    @Override public String toString() {
+      return "NoopAmazonSQSTracingMetrics";
+    }
+  };
+
+  /**
+   * A receive from the queue completed.
+   * @param messages how many it returned, zero for an empty receive
+   */
+  public void incrementReceives(String queueName, int messages) {
+  }
+
+  /**
+   * Time between a message being sent, per its "SentTimestamp", and its receive, as seen by the
+   * consumer's clock.
+   */
+  public void recordDwellTime(String queueName, long dwellMillis) {
+  }
+
+  /**
+   * Time between a message being sent and its first receive by any consumer, per its
+   * "ApproximateFirstReceiveTimestamp".
+   */
+  public void recordFirstReceiveLatency(String queueName, long latencyMillis) {
+  }
+
+  /**
+   * How many times the message was received, per its "ApproximateReceiveCount". More than one
+   * means it was redelivered.
+   */
+  public void recordReceiveCount(String queueName, int receiveCount) {
+  }
+}
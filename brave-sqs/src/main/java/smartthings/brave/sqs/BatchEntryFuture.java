@@ -0,0 +1,65 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/** Result of one entry of a buffered batch, completed once by the thread that sent the batch. */
+final class BatchEntryFuture<V> implements Future<V> {
+  private final CountDownLatch done = new CountDownLatch(1);
+  private volatile V result;
+  private volatile Exception error;
+
+  void succeed(V result) {
+    this.result = result;
+    done.countDown();
+  }
+
+  void fail(Exception error) {
+    this.error = error;
+    done.countDown();
+  }
+
+  @Override public boolean cancel(boolean mayInterruptIfRunning) {
+    return false;
+  }
+
+  @Override public boolean isCancelled() {
+    return false;
+  }
+
+  @Override public boolean isDone() {
+    return done.getCount() == 0;
+  }
+
+  @Override public V get() throws InterruptedException, ExecutionException {
+    done.await();
+    return result();
+  }
+
+  @Override public V get(long timeout, TimeUnit unit)
+    throws InterruptedException, ExecutionException, TimeoutException {
+    if (!done.await(timeout, unit)) throw new TimeoutException();
+    return result();
+  }
+
+  private V result() throws ExecutionException {
+    if (error != null) throw new ExecutionException(error);
+    return result;
+  }
+}
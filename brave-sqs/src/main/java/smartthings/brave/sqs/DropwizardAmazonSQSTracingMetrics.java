@@ -0,0 +1,114 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dropwizard implementation of {@link AmazonSQSTracingMetrics}. Metrics are named
+ * "&lt;prefix&gt;.&lt;queue&gt;.&lt;metric&gt;" and looked up in the registry once per queue:
+ *
+ * <ul>
+ *   <li>"receives" and "receives.empty" meters, whose ratio is the share of empty receives</li>
+ *   <li>"messages" meter and "messages.per_receive" histogram</li>
+ *   <li>"dwell" and "first_receive.latency" timers</li>
+ *   <li>"receive_count" histogram and "redelivered" meter of messages received more than once</li>
+ * </ul>
+ *
+ * Requires io.dropwizard.metrics:metrics-core on the classpath.
+ */
+public final class DropwizardAmazonSQSTracingMetrics extends AmazonSQSTracingMetrics {
+
+  private static final String PREFIX = "tracing.sqs";
+
+  private final MetricRegistry metricRegistry;
+  private final String prefix;
+  private final ConcurrentMap<String, QueueMetrics> queues = new ConcurrentHashMap<>();
+
+  public DropwizardAmazonSQSTracingMetrics(MetricRegistry metricRegistry) {
+    this(metricRegistry, PREFIX);
+  }
+
+  public DropwizardAmazonSQSTracingMetrics(MetricRegistry metricRegistry, String prefix) {
+    this.metricRegistry = metricRegistry;
+    this.prefix = prefix;
+  }
+
+  @Override
+  public void incrementReceives(String queueName, int messages) {
+    QueueMetrics metrics = queue(queueName);
+    metrics.receives.mark();
+    if (messages == 0) {
+      metrics.emptyReceives.mark();
+    } else {
+      metrics.messages.mark(messages);
+    }
+    metrics.messagesPerReceive.update(messages);
+  }
+
+  @Override
+  public void recordDwellTime(String queueName, long dwellMillis) {
+    queue(queueName).dwell.update(dwellMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void recordFirstReceiveLatency(String queueName, long latencyMillis) {
+    queue(queueName).firstReceiveLatency.update(latencyMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void recordReceiveCount(String queueName, int receiveCount) {
+    QueueMetrics metrics = queue(queueName);
+    metrics.receiveCount.update(receiveCount);
+    if (receiveCount > 1) metrics.redelivered.mark();
+  }
+
+  private QueueMetrics queue(String queueName) {
+    QueueMetrics metrics = queues.get(queueName);
+    if (metrics == null) {
+      QueueMetrics created = new QueueMetrics(prefix + "." + queueName);
+      metrics = queues.putIfAbsent(queueName, created);
+      if (metrics == null) metrics = created;
+    }
+    return metrics;
+  }
+
+  private final class QueueMetrics {
+    final Meter receives;
+    final Meter emptyReceives;
+    final Meter messages;
+    final Histogram messagesPerReceive;
+    final Timer dwell;
+    final Timer firstReceiveLatency;
+    final Histogram receiveCount;
+    final Meter redelivered;
+
+    QueueMetrics(String name) {
+      this.receives = metricRegistry.meter(name + ".receives");
+      this.emptyReceives = metricRegistry.meter(name + ".receives.empty");
+      this.messages = metricRegistry.meter(name + ".messages");
+      this.messagesPerReceive = metricRegistry.histogram(name + ".messages.per_receive");
+      this.dwell = metricRegistry.timer(name + ".dwell");
+      this.firstReceiveLatency = metricRegistry.timer(name + ".first_receive.latency");
+      this.receiveCount = metricRegistry.histogram(name + ".receive_count");
+      this.redelivered = metricRegistry.meter(name + ".redelivered");
+    }
+  }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+import java.net.URL;
+import javax.annotation.Nullable;
+
+/**
+ * What {@link AmazonSQSClientParser} derives from a queue url: the queue name, the account and
+ * region when the url is an AWS one, and the span names of each traced operation. Built once per
+ * queue url and cached by the parser, so naming spans doesn't parse urls or build strings.
+ */
+public final class QueueMetadata {
+
+  private final String queueUrl;
+  private final String queueName;
+  @Nullable private final String accountId;
+  @Nullable private final String region;
+  private final String sendMessageSpanName;
+  private final String sendMessageBatchSpanName;
+  private final String receiveMessageSpanName;
+  private final String deleteMessageSpanName;
+  private final String deleteMessageBatchSpanName;
+  private final String messageLifecycleSpanName;
+  private final String receiveAnnotation;
+
+  QueueMetadata(String queueUrl, String queueName, @Nullable URL url) {
+    this.queueUrl = queueUrl;
+    this.queueName = queueName;
+    this.accountId = url != null ? accountId(url.getPath()) : null;
+    this.region = url != null ? region(url.getHost()) : null;
+    this.sendMessageSpanName = "send_message-" + queueName;
+    this.sendMessageBatchSpanName = "send_message_batch-" + queueName;
+    this.receiveMessageSpanName = "receive_message-" + queueName;
+    this.deleteMessageSpanName = "delete_message-" + queueName;
+    this.deleteMessageBatchSpanName = "delete_message_batch-" + queueName;
+    this.messageLifecycleSpanName = "message_lifecycle-" + queueName;
+    this.receiveAnnotation = "receive-" + queueName;
+  }
+
+  public String queueUrl() {
+    return queueUrl;
+  }
+
+  public String queueName() {
+    return queueName;
+  }
+
+  /** The AWS account owning the queue, or null when the url doesn't start with one */
+  @Nullable public String accountId() {
+    return accountId;
+  }
+
+  /** The AWS region of the queue, or null when the host isn't an SQS endpoint */
+  @Nullable public String region() {
+    return region;
+  }
+
+  public String sendMessageSpanName() {
+    return sendMessageSpanName;
+  }
+
+  public String sendMessageBatchSpanName() {
+    return sendMessageBatchSpanName;
+  }
+
+  public String receiveMessageSpanName() {
+    return receiveMessageSpanName;
+  }
+
+  public String deleteMessageSpanName() {
+    return deleteMessageSpanName;
+  }
+
+  public String deleteMessageBatchSpanName() {
+    return deleteMessageBatchSpanName;
+  }
+
+  /** Span from the receive of a message to its delete */
+  public String messageLifecycleSpanName() {
+    return messageLifecycleSpanName;
+  }
+
+  /** Annotation added to the span of a received message */
+  public String receiveAnnotation() {
+    return receiveAnnotation;
+  }
+
+  @Override public String toString() {
+    return "QueueMetadata(" + queueUrl + ")";
+  }
+
+  /** "/123456789012/queue-name" has the account as its first segment */
+  static String accountId(String path) {
+    int start = path.startsWith("/") ? 1 : 0;
+    int end = path.indexOf('/', start);
+    if (end < 0) end = path.length();
+    if (end == start) return null;
+    for (int i = start; i < end; i++) {
+      if (!Character.isDigit(path.charAt(i))) return null;
+    }
+    return path.substring(start, end);
+  }
+
+  /**
+   * Handles "sqs.us-west-2.amazonaws.com", the legacy "us-west-2.queue.amazonaws.com" and
+   * "queue.amazonaws.com", which is us-east-1.
+   */
+  static String region(String host) {
+    if (host.equals("queue.amazonaws.com")) return "us-east-1";
+    if (host.startsWith("sqs.") && host.contains(".amazonaws.com")) {
+      int end = host.indexOf('.', 4);
+      return end > 4 ? host.substring(4, end) : null;
+    }
+    if (host.contains(".queue.amazonaws.com")) {
+      int end = host.indexOf('.');
+      return end > 0 ? host.substring(0, end) : null;
+    }
+    return null;
+  }
+}
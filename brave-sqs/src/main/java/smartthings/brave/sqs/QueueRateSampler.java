@@ -0,0 +1,128 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+import java.util.HashMap;
+import java.util.Map;
+import smartthings.brave.sampler.KeyedRateLimiter;
+
+/**
+ * {@link AmazonSQSClientSampler} with a sampling rate and a spans per second limit per queue.
+ * Requests carry the queue url, so each url is limited on its own by a {@link KeyedRateLimiter},
+ * with the settings of its queue name as configured on the builder.
+ *
+ * <pre>
+ * QueueRateSampler.newBuilder()
+ *   .rate(0.1f)
+ *   .queueLimit("high-volume-queue", 10)
+ *   .build();
+ * </pre>
+ */
+public final class QueueRateSampler extends AmazonSQSClientSampler {
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  private final float defaultRate;
+  private final int defaultLimit;
+  private final Map<String, Float> queueRates;
+  private final Map<String, Integer> queueLimits;
+  private final KeyedRateLimiter queues = new KeyedRateLimiter() {
+    @Override protected float rate(String queueUrl) {
+      Float rate = queueRates.get(queueName(queueUrl));
+      return rate != null ? rate : defaultRate;
+    }
+
+    @Override protected int limit(String queueUrl) {
+      Integer limit = queueLimits.get(queueName(queueUrl));
+      return limit != null ? limit : defaultLimit;
+    }
+  };
+
+  private QueueRateSampler(Builder builder) {
+    this.defaultRate = builder.rate;
+    this.defaultLimit = builder.limit;
+    this.queueRates = new HashMap<>(builder.queueRates);
+    this.queueLimits = new HashMap<>(builder.queueLimits);
+  }
+
+  @Override public Boolean trySample(String queueUrl) {
+    if (queueUrl == null) return null;
+    return queues.isSampled(queueUrl) ? Boolean.TRUE : Boolean.FALSE;
+  }
+
+  @Override public String toString() {
+    return "QueueRateSampler(rate=" + defaultRate + ", limit=" + defaultLimit + ")";
+  }
+
+  static String queueName(String queueUrl) {
+    int end = queueUrl.length();
+    while (end > 0 && queueUrl.charAt(end - 1) == '/') end--;
+    return queueUrl.substring(queueUrl.lastIndexOf('/', end - 1) + 1, end);
+  }
+
+  public static final class Builder {
+
+    private float rate = 1.0f;
+    private int limit = KeyedRateLimiter.UNLIMITED;
+    private final Map<String, Float> queueRates = new HashMap<>();
+    private final Map<String, Integer> queueLimits = new HashMap<>();
+
+    private Builder() {
+    }
+
+    /** Fraction of new traces sampled, 0.0 to 1.0, for queues without their own rate. Defaults to 1.0. */
+    public Builder rate(float rate) {
+      this.rate = checkRate(rate);
+      return this;
+    }
+
+    /** Sampled new traces per second, for queues without their own limit. Defaults to unlimited. */
+    public Builder limit(int limit) {
+      this.limit = checkLimit(limit);
+      return this;
+    }
+
+    /** Overrides the rate for the queue with the given name. */
+    public Builder queueRate(String queueName, float rate) {
+      queueRates.put(queueName, checkRate(rate));
+      return this;
+    }
+
+    /** Overrides the limit for the queue with the given name. */
+    public Builder queueLimit(String queueName, int limit) {
+      queueLimits.put(queueName, checkLimit(limit));
+      return this;
+    }
+
+    public QueueRateSampler build() {
+      return new QueueRateSampler(this);
+    }
+
+    private static float checkRate(float rate) {
+      if (rate < 0.0f || rate > 1.0f) {
+        throw new IllegalArgumentException("rate must be between 0.0 and 1.0: " + rate);
+      }
+      return rate;
+    }
+
+    private static int checkLimit(int limit) {
+      if (limit < 0) {
+        throw new IllegalArgumentException("limit must be a positive number of spans per second: " + limit);
+      }
+      return limit;
+    }
+  }
+}
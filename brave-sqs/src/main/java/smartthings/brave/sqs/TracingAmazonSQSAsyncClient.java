@@ -0,0 +1,537 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+import brave.Span;
+import brave.Tracing;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.TraceContext;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.AddPermissionRequest;
+import com.amazonaws.services.sqs.model.AddPermissionResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityResult;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
+import com.amazonaws.services.sqs.model.CreateQueueResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageResult;
+import com.amazonaws.services.sqs.model.DeleteQueueRequest;
+import com.amazonaws.services.sqs.model.DeleteQueueResult;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.model.ListDeadLetterSourceQueuesRequest;
+import com.amazonaws.services.sqs.model.ListDeadLetterSourceQueuesResult;
+import com.amazonaws.services.sqs.model.ListQueuesRequest;
+import com.amazonaws.services.sqs.model.ListQueuesResult;
+import com.amazonaws.services.sqs.model.PurgeQueueRequest;
+import com.amazonaws.services.sqs.model.PurgeQueueResult;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.RemovePermissionRequest;
+import com.amazonaws.services.sqs.model.RemovePermissionResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.SetQueueAttributesResult;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import javax.annotation.Nullable;
+
+/**
+ * {@link TracingAmazonSQSClient} for {@link AmazonSQSAsync}. Spans are started and trace attributes
+ * injected on the calling thread when a request is submitted. They are completed from an
+ * {@link AsyncHandler} passed to the delegate, so no thread blocks on the returned future and no
+ * span is kept in scope while the request is in flight. A handler given by the caller is called
+ * afterwards with the trace context of the submitting thread in scope.
+ */
+public class TracingAmazonSQSAsyncClient extends TracingAmazonSQSClient implements AmazonSQSAsync {
+
+  public static AmazonSQSAsync create(Tracing tracing, AmazonSQSAsync delegate) {
+    return new TracingAmazonSQSAsyncClient(AmazonSQSClientTracing.create(tracing), delegate);
+  }
+
+  public static AmazonSQSAsync create(AmazonSQSClientTracing clientTracing, AmazonSQSAsync delegate) {
+    return new TracingAmazonSQSAsyncClient(clientTracing, delegate);
+  }
+
+  private final AmazonSQSAsync delegate;
+
+  private TracingAmazonSQSAsyncClient(AmazonSQSClientTracing tracing, AmazonSQSAsync delegate) {
+    super(tracing, delegate);
+    this.delegate = delegate;
+  }
+
+  @Override public Future<AddPermissionResult> addPermissionAsync(AddPermissionRequest request) {
+    return delegate.addPermissionAsync(request);
+  }
+
+  @Override public Future<AddPermissionResult> addPermissionAsync(AddPermissionRequest request,
+    AsyncHandler<AddPermissionRequest, AddPermissionResult> asyncHandler) {
+    return delegate.addPermissionAsync(request, asyncHandler);
+  }
+
+  @Override public Future<AddPermissionResult> addPermissionAsync(
+    String queueUrl, String label, List<String> aWSAccountIds, List<String> actions) {
+    return delegate.addPermissionAsync(queueUrl, label, aWSAccountIds, actions);
+  }
+
+  @Override public Future<AddPermissionResult> addPermissionAsync(
+    String queueUrl, String label, List<String> aWSAccountIds, List<String> actions,
+    AsyncHandler<AddPermissionRequest, AddPermissionResult> asyncHandler) {
+    return delegate.addPermissionAsync(queueUrl, label, aWSAccountIds, actions, asyncHandler);
+  }
+
+  @Override public Future<ChangeMessageVisibilityResult> changeMessageVisibilityAsync(
+    ChangeMessageVisibilityRequest request) {
+    return delegate.changeMessageVisibilityAsync(request);
+  }
+
+  @Override public Future<ChangeMessageVisibilityResult> changeMessageVisibilityAsync(
+    ChangeMessageVisibilityRequest request,
+    AsyncHandler<ChangeMessageVisibilityRequest, ChangeMessageVisibilityResult> asyncHandler) {
+    return delegate.changeMessageVisibilityAsync(request, asyncHandler);
+  }
+
+  @Override public Future<ChangeMessageVisibilityResult> changeMessageVisibilityAsync(
+    String queueUrl, String receiptHandle, Integer visibilityTimeout) {
+    return delegate.changeMessageVisibilityAsync(queueUrl, receiptHandle, visibilityTimeout);
+  }
+
+  @Override public Future<ChangeMessageVisibilityResult> changeMessageVisibilityAsync(
+    String queueUrl, String receiptHandle, Integer visibilityTimeout,
+    AsyncHandler<ChangeMessageVisibilityRequest, ChangeMessageVisibilityResult> asyncHandler) {
+    return delegate.changeMessageVisibilityAsync(queueUrl, receiptHandle, visibilityTimeout, asyncHandler);
+  }
+
+  @Override public Future<ChangeMessageVisibilityBatchResult> changeMessageVisibilityBatchAsync(
+    ChangeMessageVisibilityBatchRequest request) {
+    return delegate.changeMessageVisibilityBatchAsync(request);
+  }
+
+  @Override public Future<ChangeMessageVisibilityBatchResult> changeMessageVisibilityBatchAsync(
+    ChangeMessageVisibilityBatchRequest request,
+    AsyncHandler<ChangeMessageVisibilityBatchRequest, ChangeMessageVisibilityBatchResult> asyncHandler) {
+    return delegate.changeMessageVisibilityBatchAsync(request, asyncHandler);
+  }
+
+  @Override public Future<ChangeMessageVisibilityBatchResult> changeMessageVisibilityBatchAsync(
+    String queueUrl, List<ChangeMessageVisibilityBatchRequestEntry> entries) {
+    return delegate.changeMessageVisibilityBatchAsync(queueUrl, entries);
+  }
+
+  @Override public Future<ChangeMessageVisibilityBatchResult> changeMessageVisibilityBatchAsync(
+    String queueUrl, List<ChangeMessageVisibilityBatchRequestEntry> entries,
+    AsyncHandler<ChangeMessageVisibilityBatchRequest, ChangeMessageVisibilityBatchResult> asyncHandler) {
+    return delegate.changeMessageVisibilityBatchAsync(queueUrl, entries, asyncHandler);
+  }
+
+  @Override public Future<CreateQueueResult> createQueueAsync(CreateQueueRequest request) {
+    return delegate.createQueueAsync(request);
+  }
+
+  @Override public Future<CreateQueueResult> createQueueAsync(CreateQueueRequest request,
+    AsyncHandler<CreateQueueRequest, CreateQueueResult> asyncHandler) {
+    return delegate.createQueueAsync(request, asyncHandler);
+  }
+
+  @Override public Future<CreateQueueResult> createQueueAsync(String queueName) {
+    return delegate.createQueueAsync(queueName);
+  }
+
+  @Override public Future<CreateQueueResult> createQueueAsync(String queueName,
+    AsyncHandler<CreateQueueRequest, CreateQueueResult> asyncHandler) {
+    return delegate.createQueueAsync(queueName, asyncHandler);
+  }
+
+  @Override public Future<DeleteMessageResult> deleteMessageAsync(DeleteMessageRequest request) {
+    return this.deleteMessageAsync(request, null);
+  }
+
+  @Override public Future<DeleteMessageResult> deleteMessageAsync(DeleteMessageRequest request,
+    AsyncHandler<DeleteMessageRequest, DeleteMessageResult> asyncHandler) {
+    Span span = startDelete(request);
+    try {
+      return delegate.deleteMessageAsync(request,
+        new TracingHandler<DeleteMessageRequest, DeleteMessageResult>(asyncHandler) {
+          @Override void succeeded(DeleteMessageRequest req, DeleteMessageResult result) {
+            parser.response(result, span);
+            span.finish();
+          }
+
+          @Override void failed(Exception exception) {
+            parser.error(exception, span);
+            span.finish();
+          }
+        });
+    } catch (RuntimeException e) {
+      parser.error(e, span);
+      span.finish();
+      throw e;
+    }
+  }
+
+  @Override public Future<DeleteMessageResult> deleteMessageAsync(
+    String queueUrl, String receiptHandle) {
+    return this.deleteMessageAsync(new DeleteMessageRequest(queueUrl, receiptHandle));
+  }
+
+  @Override public Future<DeleteMessageResult> deleteMessageAsync(
+    String queueUrl, String receiptHandle,
+    AsyncHandler<DeleteMessageRequest, DeleteMessageResult> asyncHandler) {
+    return this.deleteMessageAsync(new DeleteMessageRequest(queueUrl, receiptHandle), asyncHandler);
+  }
+
+  @Override public Future<DeleteMessageBatchResult> deleteMessageBatchAsync(
+    DeleteMessageBatchRequest request) {
+    return this.deleteMessageBatchAsync(request, null);
+  }
+
+  @Override public Future<DeleteMessageBatchResult> deleteMessageBatchAsync(
+    DeleteMessageBatchRequest request,
+    AsyncHandler<DeleteMessageBatchRequest, DeleteMessageBatchResult> asyncHandler) {
+    Span span = startDeleteBatch(request);
+    try {
+      return delegate.deleteMessageBatchAsync(request,
+        new TracingHandler<DeleteMessageBatchRequest, DeleteMessageBatchResult>(asyncHandler) {
+          @Override void succeeded(DeleteMessageBatchRequest req, DeleteMessageBatchResult result) {
+            parser.response(result, span);
+            span.finish();
+          }
+
+          @Override void failed(Exception exception) {
+            parser.error(exception, span);
+            span.finish();
+          }
+        });
+    } catch (RuntimeException e) {
+      parser.error(e, span);
+      span.finish();
+      throw e;
+    }
+  }
+
+  @Override public Future<DeleteMessageBatchResult> deleteMessageBatchAsync(
+    String queueUrl, List<DeleteMessageBatchRequestEntry> entries) {
+    return this.deleteMessageBatchAsync(new DeleteMessageBatchRequest(queueUrl, entries));
+  }
+
+  @Override public Future<DeleteMessageBatchResult> deleteMessageBatchAsync(
+    String queueUrl, List<DeleteMessageBatchRequestEntry> entries,
+    AsyncHandler<DeleteMessageBatchRequest, DeleteMessageBatchResult> asyncHandler) {
+    return this.deleteMessageBatchAsync(new DeleteMessageBatchRequest(queueUrl, entries), asyncHandler);
+  }
+
+  @Override public Future<DeleteQueueResult> deleteQueueAsync(DeleteQueueRequest request) {
+    return delegate.deleteQueueAsync(request);
+  }
+
+  @Override public Future<DeleteQueueResult> deleteQueueAsync(DeleteQueueRequest request,
+    AsyncHandler<DeleteQueueRequest, DeleteQueueResult> asyncHandler) {
+    return delegate.deleteQueueAsync(request, asyncHandler);
+  }
+
+  @Override public Future<DeleteQueueResult> deleteQueueAsync(String queueUrl) {
+    return delegate.deleteQueueAsync(queueUrl);
+  }
+
+  @Override public Future<DeleteQueueResult> deleteQueueAsync(String queueUrl,
+    AsyncHandler<DeleteQueueRequest, DeleteQueueResult> asyncHandler) {
+    return delegate.deleteQueueAsync(queueUrl, asyncHandler);
+  }
+
+  @Override public Future<GetQueueAttributesResult> getQueueAttributesAsync(
+    GetQueueAttributesRequest request) {
+    return delegate.getQueueAttributesAsync(request);
+  }
+
+  @Override public Future<GetQueueAttributesResult> getQueueAttributesAsync(
+    GetQueueAttributesRequest request,
+    AsyncHandler<GetQueueAttributesRequest, GetQueueAttributesResult> asyncHandler) {
+    return delegate.getQueueAttributesAsync(request, asyncHandler);
+  }
+
+  @Override public Future<GetQueueAttributesResult> getQueueAttributesAsync(
+    String queueUrl, List<String> attributeNames) {
+    return delegate.getQueueAttributesAsync(queueUrl, attributeNames);
+  }
+
+  @Override public Future<GetQueueAttributesResult> getQueueAttributesAsync(
+    String queueUrl, List<String> attributeNames,
+    AsyncHandler<GetQueueAttributesRequest, GetQueueAttributesResult> asyncHandler) {
+    return delegate.getQueueAttributesAsync(queueUrl, attributeNames, asyncHandler);
+  }
+
+  @Override public Future<GetQueueUrlResult> getQueueUrlAsync(GetQueueUrlRequest request) {
+    return delegate.getQueueUrlAsync(request);
+  }
+
+  @Override public Future<GetQueueUrlResult> getQueueUrlAsync(GetQueueUrlRequest request,
+    AsyncHandler<GetQueueUrlRequest, GetQueueUrlResult> asyncHandler) {
+    return delegate.getQueueUrlAsync(request, asyncHandler);
+  }
+
+  @Override public Future<GetQueueUrlResult> getQueueUrlAsync(String queueName) {
+    return delegate.getQueueUrlAsync(queueName);
+  }
+
+  @Override public Future<GetQueueUrlResult> getQueueUrlAsync(String queueName,
+    AsyncHandler<GetQueueUrlRequest, GetQueueUrlResult> asyncHandler) {
+    return delegate.getQueueUrlAsync(queueName, asyncHandler);
+  }
+
+  @Override public Future<ListDeadLetterSourceQueuesResult> listDeadLetterSourceQueuesAsync(
+    ListDeadLetterSourceQueuesRequest request) {
+    return delegate.listDeadLetterSourceQueuesAsync(request);
+  }
+
+  @Override public Future<ListDeadLetterSourceQueuesResult> listDeadLetterSourceQueuesAsync(
+    ListDeadLetterSourceQueuesRequest request,
+    AsyncHandler<ListDeadLetterSourceQueuesRequest, ListDeadLetterSourceQueuesResult> asyncHandler) {
+    return delegate.listDeadLetterSourceQueuesAsync(request, asyncHandler);
+  }
+
+  @Override public Future<ListQueuesResult> listQueuesAsync(ListQueuesRequest request) {
+    return delegate.listQueuesAsync(request);
+  }
+
+  @Override public Future<ListQueuesResult> listQueuesAsync(ListQueuesRequest request,
+    AsyncHandler<ListQueuesRequest, ListQueuesResult> asyncHandler) {
+    return delegate.listQueuesAsync(request, asyncHandler);
+  }
+
+  @Override public Future<ListQueuesResult> listQueuesAsync() {
+    return delegate.listQueuesAsync();
+  }
+
+  @Override public Future<ListQueuesResult> listQueuesAsync(
+    AsyncHandler<ListQueuesRequest, ListQueuesResult> asyncHandler) {
+    return delegate.listQueuesAsync(asyncHandler);
+  }
+
+  @Override public Future<ListQueuesResult> listQueuesAsync(String queueNamePrefix) {
+    return delegate.listQueuesAsync(queueNamePrefix);
+  }
+
+  @Override public Future<ListQueuesResult> listQueuesAsync(String queueNamePrefix,
+    AsyncHandler<ListQueuesRequest, ListQueuesResult> asyncHandler) {
+    return delegate.listQueuesAsync(queueNamePrefix, asyncHandler);
+  }
+
+  @Override public Future<PurgeQueueResult> purgeQueueAsync(PurgeQueueRequest request) {
+    return delegate.purgeQueueAsync(request);
+  }
+
+  @Override public Future<PurgeQueueResult> purgeQueueAsync(PurgeQueueRequest request,
+    AsyncHandler<PurgeQueueRequest, PurgeQueueResult> asyncHandler) {
+    return delegate.purgeQueueAsync(request, asyncHandler);
+  }
+
+  @Override public Future<ReceiveMessageResult> receiveMessageAsync(ReceiveMessageRequest request) {
+    return this.receiveMessageAsync(request, null);
+  }
+
+  @Override public Future<ReceiveMessageResult> receiveMessageAsync(ReceiveMessageRequest request,
+    AsyncHandler<ReceiveMessageRequest, ReceiveMessageResult> asyncHandler) {
+    return delegate.receiveMessageAsync(withTraceAttributes(request),
+      new TracingHandler<ReceiveMessageRequest, ReceiveMessageResult>(asyncHandler) {
+        @Override void succeeded(ReceiveMessageRequest req, ReceiveMessageResult result) {
+          received(req, result);
+        }
+
+        @Override void failed(Exception exception) {
+        }
+      });
+  }
+
+  @Override public Future<ReceiveMessageResult> receiveMessageAsync(String queueUrl) {
+    return this.receiveMessageAsync(new ReceiveMessageRequest(queueUrl));
+  }
+
+  @Override public Future<ReceiveMessageResult> receiveMessageAsync(String queueUrl,
+    AsyncHandler<ReceiveMessageRequest, ReceiveMessageResult> asyncHandler) {
+    return this.receiveMessageAsync(new ReceiveMessageRequest(queueUrl), asyncHandler);
+  }
+
+  @Override public Future<RemovePermissionResult> removePermissionAsync(
+    RemovePermissionRequest request) {
+    return delegate.removePermissionAsync(request);
+  }
+
+  @Override public Future<RemovePermissionResult> removePermissionAsync(
+    RemovePermissionRequest request,
+    AsyncHandler<RemovePermissionRequest, RemovePermissionResult> asyncHandler) {
+    return delegate.removePermissionAsync(request, asyncHandler);
+  }
+
+  @Override public Future<RemovePermissionResult> removePermissionAsync(
+    String queueUrl, String label) {
+    return delegate.removePermissionAsync(queueUrl, label);
+  }
+
+  @Override public Future<RemovePermissionResult> removePermissionAsync(
+    String queueUrl, String label,
+    AsyncHandler<RemovePermissionRequest, RemovePermissionResult> asyncHandler) {
+    return delegate.removePermissionAsync(queueUrl, label, asyncHandler);
+  }
+
+  @Override public Future<SendMessageResult> sendMessageAsync(SendMessageRequest request) {
+    return this.sendMessageAsync(request, null);
+  }
+
+  @Override public Future<SendMessageResult> sendMessageAsync(SendMessageRequest request,
+    AsyncHandler<SendMessageRequest, SendMessageResult> asyncHandler) {
+    Span oneWay = startSend(request);
+    try {
+      return delegate.sendMessageAsync(request,
+        new TracingHandler<SendMessageRequest, SendMessageResult>(asyncHandler) {
+          @Override void succeeded(SendMessageRequest req, SendMessageResult result) {
+            // flush after remote call so we don't start one way spans on a request failure
+            oneWay.flush();
+          }
+
+          @Override void failed(Exception exception) {
+            oneWay.abandon();
+          }
+        });
+    } catch (RuntimeException e) {
+      oneWay.abandon();
+      throw e;
+    }
+  }
+
+  @Override public Future<SendMessageResult> sendMessageAsync(String queueUrl, String messageBody) {
+    return this.sendMessageAsync(new SendMessageRequest(queueUrl, messageBody));
+  }
+
+  @Override public Future<SendMessageResult> sendMessageAsync(String queueUrl, String messageBody,
+    AsyncHandler<SendMessageRequest, SendMessageResult> asyncHandler) {
+    return this.sendMessageAsync(new SendMessageRequest(queueUrl, messageBody), asyncHandler);
+  }
+
+  @Override public Future<SendMessageBatchResult> sendMessageBatchAsync(
+    SendMessageBatchRequest request) {
+    return this.sendMessageBatchAsync(request, null);
+  }
+
+  @Override public Future<SendMessageBatchResult> sendMessageBatchAsync(
+    SendMessageBatchRequest request,
+    AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult> asyncHandler) {
+    Map<String, Span> oneWays = startSendBatch(request);
+    try {
+      return delegate.sendMessageBatchAsync(request,
+        new TracingHandler<SendMessageBatchRequest, SendMessageBatchResult>(asyncHandler) {
+          @Override void succeeded(SendMessageBatchRequest req, SendMessageBatchResult result) {
+            sentBatch(oneWays, result);
+          }
+
+          @Override void failed(Exception exception) {
+            abandon(oneWays);
+          }
+        });
+    } catch (RuntimeException e) {
+      abandon(oneWays);
+      throw e;
+    }
+  }
+
+  @Override public Future<SendMessageBatchResult> sendMessageBatchAsync(
+    String queueUrl, List<SendMessageBatchRequestEntry> entries) {
+    return this.sendMessageBatchAsync(new SendMessageBatchRequest(queueUrl, entries));
+  }
+
+  @Override public Future<SendMessageBatchResult> sendMessageBatchAsync(
+    String queueUrl, List<SendMessageBatchRequestEntry> entries,
+    AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult> asyncHandler) {
+    return this.sendMessageBatchAsync(new SendMessageBatchRequest(queueUrl, entries), asyncHandler);
+  }
+
+  @Override public Future<SetQueueAttributesResult> setQueueAttributesAsync(
+    SetQueueAttributesRequest request) {
+    return delegate.setQueueAttributesAsync(request);
+  }
+
+  @Override public Future<SetQueueAttributesResult> setQueueAttributesAsync(
+    SetQueueAttributesRequest request,
+    AsyncHandler<SetQueueAttributesRequest, SetQueueAttributesResult> asyncHandler) {
+    return delegate.setQueueAttributesAsync(request, asyncHandler);
+  }
+
+  @Override public Future<SetQueueAttributesResult> setQueueAttributesAsync(
+    String queueUrl, Map<String, String> attributes) {
+    return delegate.setQueueAttributesAsync(queueUrl, attributes);
+  }
+
+  @Override public Future<SetQueueAttributesResult> setQueueAttributesAsync(
+    String queueUrl, Map<String, String> attributes,
+    AsyncHandler<SetQueueAttributesRequest, SetQueueAttributesResult> asyncHandler) {
+    return delegate.setQueueAttributesAsync(queueUrl, attributes, asyncHandler);
+  }
+
+  private static void abandon(Map<String, Span> oneWays) {
+    for (Span oneWay : oneWays.values()) {
+      oneWay.abandon();
+    }
+  }
+
+  /**
+   * Completes tracing on the thread the SDK calls back on, then passes the outcome to the caller's
+   * handler, if any, with the submitting thread's trace context in scope.
+   */
+  abstract class TracingHandler<REQ extends AmazonWebServiceRequest, RES>
+    implements AsyncHandler<REQ, RES> {
+
+    private final AsyncHandler<REQ, RES> asyncHandler;
+    private final TraceContext invocationContext = tracing.currentTraceContext().get();
+
+    TracingHandler(@Nullable AsyncHandler<REQ, RES> asyncHandler) {
+      this.asyncHandler = asyncHandler;
+    }
+
+    abstract void succeeded(REQ request, RES result);
+
+    abstract void failed(Exception exception);
+
+    @Override public final void onSuccess(REQ request, RES result) {
+      succeeded(request, result);
+      if (asyncHandler == null) return;
+      try (CurrentTraceContext.Scope scope =
+             tracing.currentTraceContext().newScope(invocationContext)) {
+        asyncHandler.onSuccess(request, result);
+      }
+    }
+
+    @Override public final void onError(Exception exception) {
+      failed(exception);
+      if (asyncHandler == null) return;
+      try (CurrentTraceContext.Scope scope =
+             tracing.currentTraceContext().newScope(invocationContext)) {
+        asyncHandler.onError(exception);
+      }
+    }
+  }
+}
@@ -16,6 +16,7 @@ package smartthings.brave.sqs;
 import brave.Span;
 import brave.Tracer;
 import brave.Tracing;
+import brave.propagation.SamplingFlags;
 import brave.propagation.TraceContext;
 import brave.propagation.TraceContextOrSamplingFlags;
 import com.amazonaws.AmazonWebServiceRequest;
@@ -24,6 +25,7 @@ import com.amazonaws.regions.Region;
 import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.model.AddPermissionRequest;
 import com.amazonaws.services.sqs.model.AddPermissionResult;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
 import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequest;
 import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchRequestEntry;
 import com.amazonaws.services.sqs.model.ChangeMessageVisibilityBatchResult;
@@ -57,13 +59,17 @@ import com.amazonaws.services.sqs.model.RemovePermissionResult;
 import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
 import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
 import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
 import com.amazonaws.services.sqs.model.SendMessageResult;
 import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
 import com.amazonaws.services.sqs.model.SetQueueAttributesResult;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import javax.annotation.Nullable;
 import zipkin2.Endpoint;
 
 public class TracingAmazonSQSClient  implements AmazonSQS {
@@ -76,15 +82,23 @@ public class TracingAmazonSQSClient  implements AmazonSQS {
     return new TracingAmazonSQSClient(clientTracing, delegate);
   }
 
+  static final String SENT_TIMESTAMP = "SentTimestamp";
+  static final String APPROXIMATE_FIRST_RECEIVE_TIMESTAMP = "ApproximateFirstReceiveTimestamp";
+  static final String APPROXIMATE_RECEIVE_COUNT = "ApproximateReceiveCount";
+
   private final AmazonSQS delegate;
-  private final Tracing tracing;
-  private final AmazonSQSClientParser parser;
+  final Tracing tracing;
+  final AmazonSQSClientParser parser;
   private final AmazonSQSClientSampler sampler;
   private final String remoteServiceName;
   private final TraceContext.Injector<Map<String, MessageAttributeValue>> injector;
   private final TraceContext.Extractor<Map<String, MessageAttributeValue>> extractor;
+  @Nullable private final TraceContext.Extractor<String> notificationExtractor;
+  private final List<String> messageAttributeNames;
+  private final AmazonSQSTracingMetrics metrics;
+  @Nullable private final List<String> systemAttributeNames;
 
-  private TracingAmazonSQSClient(AmazonSQSClientTracing tracing, AmazonSQS delegate) {
+  TracingAmazonSQSClient(AmazonSQSClientTracing tracing, AmazonSQS delegate) {
     super();
     this.delegate = delegate;
     this.tracing = tracing.tracing();
@@ -95,8 +109,23 @@ public class TracingAmazonSQSClient  implements AmazonSQS {
       ? remoteServiceName
       : "amazon-sqs";
 
-    this.injector = tracing.tracing().propagation().injector(AmazonSQSB3Propagation.INJECTOR);
-    this.extractor = tracing.tracing().propagation().extractor(AmazonSQSB3Propagation.EXTRACTOR);
+    this.injector = AmazonSQSCompactPropagation.injector(tracing.tracing().propagation(),
+      tracing.propagationFormat());
+    this.extractor = AmazonSQSCompactPropagation.extractor(tracing.tracing().propagation());
+    this.notificationExtractor = tracing.snsNotifications()
+      ? AmazonSQSSnsNotificationPropagation.extractor(tracing.tracing().propagation())
+      : null;
+
+    // request every format so messages from clients configured differently are still joined
+    List<String> keys = tracing.tracing().propagation().keys();
+    this.messageAttributeNames = new ArrayList<>(keys.size() + 1);
+    this.messageAttributeNames.addAll(keys);
+    this.messageAttributeNames.add(AmazonSQSCompactPropagation.ATTRIBUTE_NAME);
+
+    this.metrics = tracing.metrics();
+    this.systemAttributeNames = metrics != AmazonSQSTracingMetrics.NOOP
+      ? Arrays.asList(SENT_TIMESTAMP, APPROXIMATE_FIRST_RECEIVE_TIMESTAMP, APPROXIMATE_RECEIVE_COUNT)
+      : null;
   }
 
   @Override public void setEndpoint(String endpoint) {
@@ -147,10 +176,9 @@ public class TracingAmazonSQSClient  implements AmazonSQS {
   }
 
   @Override public DeleteMessageResult deleteMessage(DeleteMessageRequest deleteMessageRequest) {
-    Span span = tracing.tracer().nextSpan().kind(Span.Kind.CLIENT).start();
+    Span span = startDelete(deleteMessageRequest);
 
     try(Tracer.SpanInScope ws = tracing.tracer().withSpanInScope(span)) {
-      parser.request(deleteMessageRequest, span);
       DeleteMessageResult result = delegate.deleteMessage(deleteMessageRequest);
       parser.response(result, span);
       return result;
@@ -168,10 +196,9 @@ public class TracingAmazonSQSClient  implements AmazonSQS {
 
   @Override public DeleteMessageBatchResult deleteMessageBatch(
     DeleteMessageBatchRequest deleteMessageBatchRequest) {
-    Span span = tracing.tracer().nextSpan().kind(Span.Kind.CLIENT).start();
+    Span span = startDeleteBatch(deleteMessageBatchRequest);
 
     try(Tracer.SpanInScope ws = tracing.tracer().withSpanInScope(span)) {
-      parser.request(deleteMessageBatchRequest, span);
       DeleteMessageBatchResult result = delegate.deleteMessageBatch(deleteMessageBatchRequest);
       parser.response(result, span);
       return result;
@@ -237,25 +264,9 @@ public class TracingAmazonSQSClient  implements AmazonSQS {
 
   @Override
   public ReceiveMessageResult receiveMessage(ReceiveMessageRequest receiveMessageRequest) {
-    receiveMessageRequest = receiveMessageRequest
-      .withMessageAttributeNames(tracing.propagation().keys());
-
+    receiveMessageRequest = withTraceAttributes(receiveMessageRequest);
     ReceiveMessageResult result = delegate.receiveMessage(receiveMessageRequest);
-
-    // complete in flight one-way spans for all received messages
-    for(Message message : result.getMessages()) {
-      TraceContextOrSamplingFlags traceContextOrSamplingFlags = extractor.extract(message.getMessageAttributes());
-      TraceContext ctx = traceContextOrSamplingFlags.context();
-      Span oneWay = withEndpoint((ctx != null)
-        ? tracing.tracer().joinSpan(ctx)
-        : tracing.tracer().newTrace(traceContextOrSamplingFlags.samplingFlags()));
-
-      oneWay.kind(Span.Kind.SERVER);
-      parser.response(result, oneWay);
-      oneWay.annotate("receive-"+parser.spanName(receiveMessageRequest.getQueueUrl()));
-      oneWay.start().flush();
-    }
-
+    received(receiveMessageRequest, result);
     return result;
   }
 
@@ -273,13 +284,7 @@ public class TracingAmazonSQSClient  implements AmazonSQS {
   }
 
   @Override public SendMessageResult sendMessage(SendMessageRequest sendMessageRequest) {
-
-    Span oneWay = withEndpoint(tracing.tracer().nextSpan())
-      .kind(Span.Kind.CLIENT)
-      .start();
-
-    injector.inject(oneWay.context(), sendMessageRequest.getMessageAttributes());
-    parser.request(sendMessageRequest, oneWay);
+    Span oneWay = startSend(sendMessageRequest);
     SendMessageResult result = delegate.sendMessage(sendMessageRequest);
 
     // flush after remote call so we don't start one way spans on a request failure
@@ -294,25 +299,9 @@ public class TracingAmazonSQSClient  implements AmazonSQS {
 
   @Override
   public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest sendMessageBatchRequest) {
-
-    List<Span> oneWays = new LinkedList<>();
-    for (SendMessageBatchRequestEntry entry : sendMessageBatchRequest.getEntries()) {
-      Span s = withEndpoint(tracing.tracer().nextSpan())
-        .kind(Span.Kind.CLIENT)
-        .start();
-
-      parser.request(sendMessageBatchRequest, s);
-      injector.inject(s.context(), entry.getMessageAttributes());
-      oneWays.add(s);
-    }
-
+    Map<String, Span> oneWays = startSendBatch(sendMessageBatchRequest);
     SendMessageBatchResult result = delegate.sendMessageBatch(sendMessageBatchRequest);
-
-    // flush after success so we don't start one way spans on a request failure.
-    for(Span oneWay : oneWays) {
-      oneWay.flush();
-    }
-
+    sentBatch(oneWays, result);
     return result;
   }
 
@@ -339,7 +328,209 @@ public class TracingAmazonSQSClient  implements AmazonSQS {
     return delegate.getCachedResponseMetadata(request);
   }
 
-  private Span withEndpoint(Span span) {
+  Span startDelete(DeleteMessageRequest request) {
+    TraceContext parent = tracing.currentTraceContext().get();
+    Span span = (parent != null
+      ? tracing.tracer().newChild(parent)
+      : newTrace(sampler.trySample(request)))
+      .kind(Span.Kind.CLIENT).start();
+    parser.request(request, span);
+    return span;
+  }
+
+  Span startDeleteBatch(DeleteMessageBatchRequest request) {
+    TraceContext parent = tracing.currentTraceContext().get();
+    Span span = (parent != null
+      ? tracing.tracer().newChild(parent)
+      : newTrace(sampler.trySample(request)))
+      .kind(Span.Kind.CLIENT).start();
+    parser.request(request, span);
+    return span;
+  }
+
+  /**
+   * Asks for the trace context attributes, and the system attributes the metrics need. The request
+   * is returned as is when it already asks for them, otherwise a copy asking for the missing names
+   * is: the caller's request may be reused, so it is never modified.
+   */
+  ReceiveMessageRequest withTraceAttributes(ReceiveMessageRequest request) {
+    List<String> messageAttributes = withMissing(request.getMessageAttributeNames(),
+      messageAttributeNames);
+    List<String> systemAttributes = systemAttributeNames != null
+      ? withMissing(request.getAttributeNames(), systemAttributeNames)
+      : null;
+    if (messageAttributes == null && systemAttributes == null) return request;
+
+    // clone is shallow, so the copy gets its own lists
+    ReceiveMessageRequest copy = request.clone();
+    if (messageAttributes != null) copy.setMessageAttributeNames(messageAttributes);
+    if (systemAttributes != null) copy.setAttributeNames(systemAttributes);
+    return copy;
+  }
+
+  /** Returns the requested names followed by the missing ones, or null when none are missing. */
+  @Nullable static List<String> withMissing(List<String> requested, List<String> names) {
+    if (requested.contains("All") || requested.contains(".*")) return null;
+    List<String> result = null;
+    for (String name : names) {
+      if (requested.contains(name)) continue;
+      if (result == null) result = new ArrayList<>(requested);
+      result.add(name);
+    }
+    return result;
+  }
+
+  /** Completes in flight one-way spans for all received messages. */
+  void received(ReceiveMessageRequest request, ReceiveMessageResult result) {
+    QueueMetadata queue = parser.queueMetadata(request.getQueueUrl());
+    List<Message> messages = result.getMessages();
+    countReceive(queue, messages.size());
+    for(Message message : messages) {
+      received(request, queue, message);
+    }
+  }
+
+  void countReceive(QueueMetadata queue, int messages) {
+    if (systemAttributeNames != null) metrics.incrementReceives(queue.queueName(), messages);
+  }
+
+  /** Completes the in flight one-way span of the message and returns its context. */
+  TraceContext received(ReceiveMessageRequest request, QueueMetadata queue, Message message) {
+    if (systemAttributeNames != null) measure(queue, message);
+    TraceContextOrSamplingFlags traceContextOrSamplingFlags = extractor.extract(message.getMessageAttributes());
+    if (traceContextOrSamplingFlags.context() == null && notificationExtractor != null) {
+      TraceContextOrSamplingFlags fromBody = notificationExtractor.extract(message.getBody());
+      if (fromBody.context() != null) traceContextOrSamplingFlags = fromBody;
+    }
+    TraceContext ctx = traceContextOrSamplingFlags.context();
+    Span oneWay;
+    if (ctx != null) {
+      oneWay = tracing.tracer().joinSpan(ctx);
+    } else if (traceContextOrSamplingFlags.samplingFlags().sampled() != null) {
+      oneWay = tracing.tracer().newTrace(traceContextOrSamplingFlags.samplingFlags());
+    } else {
+      // each untraced message starts its own trace, so each gets its own decision
+      oneWay = newTrace(sampler.trySample(request));
+    }
+    withEndpoint(oneWay);
+
+    oneWay.kind(Span.Kind.SERVER);
+    parser.response(message, oneWay);
+    oneWay.annotate(queue.receiveAnnotation());
+    oneWay.start().flush();
+    return oneWay.context();
+  }
+
+  private void measure(QueueMetadata queue, Message message) {
+    Map<String, String> attributes = message.getAttributes();
+    long sent = parseLong(attributes.get(SENT_TIMESTAMP));
+    if (sent > 0) {
+      metrics.recordDwellTime(queue.queueName(), Math.max(0, System.currentTimeMillis() - sent));
+      long firstReceive = parseLong(attributes.get(APPROXIMATE_FIRST_RECEIVE_TIMESTAMP));
+      if (firstReceive >= sent) {
+        metrics.recordFirstReceiveLatency(queue.queueName(), firstReceive - sent);
+      }
+    }
+    long receiveCount = parseLong(attributes.get(APPROXIMATE_RECEIVE_COUNT));
+    if (receiveCount > 0) metrics.recordReceiveCount(queue.queueName(), (int) receiveCount);
+  }
+
+  /** Returns -1 when the attribute is missing or not a number. */
+  static long parseLong(@Nullable String value) {
+    if (value == null || value.isEmpty()) return -1;
+    long result = 0;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9' || i >= 18) return -1;
+      result = result * 10 + (c - '0');
+    }
+    return result;
+  }
+
+  /**
+   * Brave has no span links, so a batch sent on behalf of many traces lists their trace ids in
+   * "sqs.msg_trace_ids" and each of their spans gets the batch's in "sqs.batch_trace_id".
+   */
+  static void tagBatchLinks(Span batch, List<Span> spans) {
+    String batchTraceId = batch.context().traceIdString();
+    StringBuilder traceIds = new StringBuilder(spans.size() * 33);
+    for (Span span : spans) {
+      if (span.isNoop()) continue;
+      span.tag(AmazonSQSTraceKeys.SQS_BATCH_TRACE_ID, batchTraceId);
+      String traceId = span.context().traceIdString();
+      if (traceIds.indexOf(traceId) >= 0) continue;
+      if (traceIds.length() > 0) traceIds.append(',');
+      traceIds.append(traceId);
+    }
+    if (traceIds.length() > 0) {
+      batch.tag(AmazonSQSTraceKeys.SQS_MESSAGE_TRACE_IDS, traceIds.toString());
+    }
+  }
+
+  /** Starts the one-way span of the message and injects it. Flush it once the send succeeds. */
+  Span startSend(SendMessageRequest request) {
+    TraceContext parent = tracing.currentTraceContext().get();
+    Span oneWay = withEndpoint(parent != null
+      ? tracing.tracer().newChild(parent)
+      : newTrace(sampler.trySample(request)))
+      .kind(Span.Kind.CLIENT)
+      .start();
+
+    injector.inject(oneWay.context(), request.getMessageAttributes());
+    parser.request(request, oneWay);
+    return oneWay;
+  }
+
+  /** Starts and injects a one-way span per entry, keyed by entry id. */
+  Map<String, Span> startSendBatch(SendMessageBatchRequest request) {
+    TraceContext parent = tracing.currentTraceContext().get();
+    // one decision for the whole batch, as it is a single request
+    Boolean sampled = parent == null ? sampler.trySample(request) : null;
+
+    List<SendMessageBatchRequestEntry> entries = request.getEntries();
+    Map<String, Span> oneWays = new HashMap<>(entries.size() * 4 / 3 + 1);
+    for (SendMessageBatchRequestEntry entry : entries) {
+      Span s = withEndpoint(parent != null
+        ? tracing.tracer().newChild(parent)
+        : newTrace(sampled))
+        .kind(Span.Kind.CLIENT)
+        .start();
+
+      parser.request(request, s);
+      parser.request(entry, s);
+      injector.inject(s.context(), entry.getMessageAttributes());
+      oneWays.put(entry.getId(), s);
+    }
+    return oneWays;
+  }
+
+  /** Tags each entry's span with its own outcome and flushes them all. */
+  void sentBatch(Map<String, Span> oneWays, SendMessageBatchResult result) {
+    for (SendMessageBatchResultEntry entry : result.getSuccessful()) {
+      Span oneWay = oneWays.get(entry.getId());
+      if (oneWay != null) parser.response(entry, oneWay);
+    }
+    for (BatchResultErrorEntry entry : result.getFailed()) {
+      Span oneWay = oneWays.get(entry.getId());
+      if (oneWay != null) parser.error(entry, oneWay);
+    }
+
+    // flush after success so we don't start one way spans on a request failure.
+    for(Span oneWay : oneWays.values()) {
+      parser.response(result, oneWay);
+      oneWay.flush();
+    }
+  }
+
+  /** Starts a trace with the sampler's decision, or the {@link Tracing} sampler's when null. */
+  private Span newTrace(@Nullable Boolean sampled) {
+    if (sampled == null) {
+      return tracing.tracer().newTrace();
+    }
+    return tracing.tracer().newTrace(sampled ? SamplingFlags.SAMPLED : SamplingFlags.NOT_SAMPLED);
+  }
+
+  Span withEndpoint(Span span) {
     if (!span.isNoop()) {
       span.remoteEndpoint(Endpoint.newBuilder().serviceName(remoteServiceName).build());
     }
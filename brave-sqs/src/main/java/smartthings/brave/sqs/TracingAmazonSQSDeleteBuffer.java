@@ -0,0 +1,332 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import brave.propagation.SamplingFlags;
+import brave.propagation.TraceContext;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.AmazonSQSException;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Receives messages and collects their deletes per queue for a short window, sending them with one
+ * {@code deleteMessageBatch} call of at most ten messages.
+ *
+ * Messages received through {@link #receiveMessage(ReceiveMessageRequest)} are remembered by
+ * receipt handle along with their context and receive time. When such a message is deleted, a
+ * "message_lifecycle" span is reported as a child of the message's trace, starting when it was
+ * received and ending when its delete completed, so it covers all of its processing. Remembered
+ * messages are bounded in number and forgotten after a while, as a message that is never deleted
+ * reappears after its visibility timeout with a new receipt handle anyway.
+ *
+ * The batch call gets a span of its own, linked to the lifecycle spans by tags as described in
+ * {@link TracingAmazonSQSSendBuffer}.
+ *
+ * <pre>
+ * TracingAmazonSQSDeleteBuffer buffer = TracingAmazonSQSDeleteBuffer.newBuilder(clientTracing, sqs)
+ *   .build();
+ * for (Message message : buffer.receiveMessage(request).getMessages()) {
+ *   process(message);
+ *   buffer.deleteMessage(queueUrl, message.getReceiptHandle());
+ * }
+ * </pre>
+ *
+ * The {@link AmazonSQS} given should not itself be traced.
+ */
+public final class TracingAmazonSQSDeleteBuffer
+  extends AbstractTracingAmazonSQSBuffer<TracingAmazonSQSDeleteBuffer.Entry> {
+
+  public static Builder newBuilder(AmazonSQSClientTracing tracing, AmazonSQS delegate) {
+    return new Builder(tracing, delegate);
+  }
+
+  public static final class Builder {
+    private final AmazonSQSClientTracing tracing;
+    private final AmazonSQS delegate;
+    private int maxBatchSize = MAX_BATCH;
+    private long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private int maxReceivedMessages = 10000;
+    private long receivedExpiryNanos = TimeUnit.MINUTES.toNanos(15);
+    private int threads = 2;
+
+    Builder(AmazonSQSClientTracing tracing, AmazonSQS delegate) {
+      this.tracing = tracing;
+      this.delegate = delegate;
+    }
+
+    /** Deletes per batch, 1 to 10, default 10. */
+    public Builder maxBatchSize(int maxBatchSize) {
+      if (maxBatchSize < 1 || maxBatchSize > MAX_BATCH) {
+        throw new IllegalArgumentException("maxBatchSize must be between 1 and 10");
+      }
+      this.maxBatchSize = maxBatchSize;
+      return this;
+    }
+
+    /** Longest a delete waits for its batch to fill, default 100 milliseconds. */
+    public Builder maxDelay(long delay, TimeUnit unit) {
+      this.maxDelayNanos = unit.toNanos(delay);
+      return this;
+    }
+
+    /**
+     * Received messages remembered for their lifecycle span, default 10000. Messages received
+     * beyond that are deleted without one.
+     */
+    public Builder maxReceivedMessages(int maxReceivedMessages) {
+      if (maxReceivedMessages < 0) throw new IllegalArgumentException("maxReceivedMessages < 0");
+      this.maxReceivedMessages = maxReceivedMessages;
+      return this;
+    }
+
+    /**
+     * How long a received message is remembered, default 15 minutes. Should be at least the
+     * visibility timeout of the queues.
+     */
+    public Builder receivedExpiry(long expiry, TimeUnit unit) {
+      if (expiry <= 0) throw new IllegalArgumentException("expiry <= 0");
+      this.receivedExpiryNanos = unit.toNanos(expiry);
+      return this;
+    }
+
+    /** Threads sending batches, default 2. */
+    public Builder threads(int threads) {
+      if (threads < 1) throw new IllegalArgumentException("threads < 1");
+      this.threads = threads;
+      return this;
+    }
+
+    public TracingAmazonSQSDeleteBuffer build() {
+      return new TracingAmazonSQSDeleteBuffer(this);
+    }
+  }
+
+  private final TracingAmazonSQSClient client;
+  private final AmazonSQS delegate;
+  private final Tracing tracing;
+  private final int maxReceivedMessages;
+  private final long receivedExpiryNanos;
+  /** guarded by itself, in receive order so expired messages are found first */
+  private final Map<String, Received> received = new LinkedHashMap<>();
+
+  TracingAmazonSQSDeleteBuffer(Builder builder) {
+    super(builder.maxBatchSize, Integer.MAX_VALUE, builder.maxDelayNanos, builder.threads);
+    this.client = new TracingAmazonSQSClient(builder.tracing, builder.delegate);
+    this.delegate = builder.delegate;
+    this.tracing = builder.tracing.tracing();
+    this.maxReceivedMessages = builder.maxReceivedMessages;
+    this.receivedExpiryNanos = builder.receivedExpiryNanos;
+  }
+
+  public ReceiveMessageResult receiveMessage(String queueUrl) {
+    return receiveMessage(new ReceiveMessageRequest(queueUrl));
+  }
+
+  /**
+   * Receives like {@link TracingAmazonSQSClient#receiveMessage(ReceiveMessageRequest)} and
+   * remembers each message for its lifecycle span.
+   */
+  public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+    request = client.withTraceAttributes(request);
+    ReceiveMessageResult result = delegate.receiveMessage(request);
+    long now = System.nanoTime();
+    QueueMetadata queue = client.parser.queueMetadata(request.getQueueUrl());
+    client.countReceive(queue, result.getMessages().size());
+    for (Message message : result.getMessages()) {
+      TraceContext context = client.received(request, queue, message);
+      remember(message, new Received(queue, message.getMessageId(), context, now));
+    }
+    return result;
+  }
+
+  public Future<DeleteMessageResult> deleteMessage(String queueUrl, String receiptHandle) {
+    return deleteMessage(new DeleteMessageRequest(queueUrl, receiptHandle));
+  }
+
+  /**
+   * Buffers the delete of a message.
+   * @return completed once the batch holding the delete was sent
+   */
+  public Future<DeleteMessageResult> deleteMessage(DeleteMessageRequest request) {
+    Received receipt;
+    synchronized (received) {
+      receipt = received.remove(request.getReceiptHandle());
+    }
+    Entry entry = new Entry(request, receipt);
+    add(request.getQueueUrl(), entry);
+    return entry.future;
+  }
+
+  /** Received messages currently remembered for their lifecycle span. */
+  public int receivedMessages() {
+    synchronized (received) {
+      return received.size();
+    }
+  }
+
+  /** Sends everything buffered, waits for the batches in flight and forgets received messages. */
+  @Override public void close() {
+    super.close();
+    synchronized (received) {
+      received.clear();
+    }
+  }
+
+  /**
+   * Drops the expired messages first, then skips the message when the table is still full. Each
+   * message is dropped at most once, so expiry is amortized over the receives.
+   */
+  private void remember(Message message, Received value) {
+    synchronized (received) {
+      expire(value.nanoTime);
+      if (received.size() >= maxReceivedMessages) return;
+      received.put(message.getReceiptHandle(), value);
+    }
+  }
+
+  /** Drops messages from the oldest, up to the first one not expired. */
+  private void expire(long now) {
+    for (Iterator<Received> i = received.values().iterator(); i.hasNext(); ) {
+      if (now - i.next().nanoTime < receivedExpiryNanos) return;
+      i.remove();
+    }
+  }
+
+  @Override void sendBatch(String queueUrl, List<Entry> entries) {
+    List<DeleteMessageBatchRequestEntry> requestEntries = new ArrayList<>(entries.size());
+    List<Span> lifecycles = new ArrayList<>(entries.size());
+    Tracer tracer = tracing.tracer();
+    long now = System.nanoTime();
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i);
+      requestEntries.add(
+        new DeleteMessageBatchRequestEntry(Integer.toString(i), entry.request.getReceiptHandle()));
+      Received receipt = entry.received;
+      if (receipt != null && now - receipt.nanoTime < receivedExpiryNanos) {
+        Span lifecycle = tracer.newChild(receipt.context);
+        if (!lifecycle.isNoop()) {
+          lifecycle
+            .name(receipt.queue.messageLifecycleSpanName())
+            .tag(AmazonSQSTraceKeys.SQS_QUEUE_URL, receipt.queue.queueUrl())
+            .tag(AmazonSQSTraceKeys.SQS_MESSAGE_ID, receipt.messageId);
+        }
+        if (lifecycle.isNoop()) {
+          lifecycle.start();
+        } else {
+          // backdated from the trace's clock, as the receive time is only known in nanos
+          long micros = tracing.clock(lifecycle.context()).currentTimeMicroseconds();
+          lifecycle.start(micros - (now - receipt.nanoTime) / 1000);
+        }
+        entry.lifecycle = lifecycle;
+        lifecycles.add(lifecycle);
+      }
+    }
+    DeleteMessageBatchRequest request = new DeleteMessageBatchRequest(queueUrl, requestEntries);
+
+    Span span = startBatch(request, lifecycles);
+    DeleteMessageBatchResult result;
+    try {
+      result = delegate.deleteMessageBatch(request);
+    } catch (RuntimeException e) {
+      client.parser.error(e, span);
+      span.finish();
+      for (Entry entry : entries) {
+        if (entry.lifecycle != null) {
+          client.parser.error(e, entry.lifecycle);
+          entry.lifecycle.finish();
+        }
+        entry.future.fail(e);
+      }
+      return;
+    }
+
+    client.parser.response(result, span);
+    span.finish();
+    for (DeleteMessageBatchResultEntry resultEntry : result.getSuccessful()) {
+      Entry entry = entries.get(Integer.parseInt(resultEntry.getId()));
+      if (entry.lifecycle != null) entry.lifecycle.finish();
+      entry.future.succeed(new DeleteMessageResult());
+    }
+    for (BatchResultErrorEntry errorEntry : result.getFailed()) {
+      Entry entry = entries.get(Integer.parseInt(errorEntry.getId()));
+      if (entry.lifecycle != null) {
+        client.parser.error(errorEntry, entry.lifecycle);
+        entry.lifecycle.finish();
+      }
+      AmazonSQSException e = new AmazonSQSException(errorEntry.getMessage());
+      e.setErrorCode(errorEntry.getCode());
+      entry.future.fail(e);
+    }
+  }
+
+  /** Samples the batch when any lifecycle is, otherwise leaves it to the client sampler. */
+  private Span startBatch(DeleteMessageBatchRequest request, List<Span> lifecycles) {
+    boolean sampled = false;
+    for (Span lifecycle : lifecycles) {
+      if (!lifecycle.isNoop()) sampled = true;
+    }
+    if (!sampled) return client.startDeleteBatch(request);
+
+    Span span = client.withEndpoint(tracing.tracer().newTrace(SamplingFlags.SAMPLED))
+      .kind(Span.Kind.CLIENT);
+    client.parser.request(request, span);
+    TracingAmazonSQSClient.tagBatchLinks(span, lifecycles);
+    return span.start();
+  }
+
+  private static final class Received {
+    final QueueMetadata queue;
+    final String messageId;
+    final TraceContext context;
+    final long nanoTime;
+
+    Received(QueueMetadata queue, String messageId, TraceContext context, long nanoTime) {
+      this.queue = queue;
+      this.messageId = messageId;
+      this.context = context;
+      this.nanoTime = nanoTime;
+    }
+  }
+
+  static final class Entry {
+    final DeleteMessageRequest request;
+    final Received received;
+    final BatchEntryFuture<DeleteMessageResult> future = new BatchEntryFuture<>();
+    Span lifecycle;
+
+    Entry(DeleteMessageRequest request, Received received) {
+      this.request = request;
+      this.received = received;
+    }
+  }
+}
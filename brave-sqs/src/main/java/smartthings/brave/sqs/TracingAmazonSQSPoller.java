@@ -0,0 +1,414 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+import brave.Span;
+import brave.Tracer;
+import brave.propagation.TraceContext;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Long polls queues and handles their messages on a worker pool, each handler call running in a
+ * child span of the message's trace context, so processing shows up in the producer's trace.
+ *
+ * Each queue gets its own receive loops. A loop only receives once it can hand every message it may
+ * get to a worker, so no more than {@link Builder#maxInFlight(int)} messages are held at a time and
+ * SQS keeps the rest. Messages whose handler returns are deleted in batches of up to ten. A batch
+ * is sent when it is full, when the queue has no other message in flight, or at the latest once
+ * its oldest entry waited {@link Builder#deleteDelay(long, TimeUnit)}, even while other messages of
+ * the queue are still being handled. Messages whose handler throws are left to
+ * reappear after their visibility timeout, their span tagged with the error.
+ *
+ * <pre>
+ * TracingAmazonSQSPoller poller = TracingAmazonSQSPoller.newBuilder(clientTracing, sqs, handler)
+ *   .queueUrl(queueUrl)
+ *   .build();
+ * poller.start();
+ * </pre>
+ *
+ * The {@link AmazonSQS} given should not itself be traced, the poller completes the one-way spans of
+ * received messages the way {@link TracingAmazonSQSClient} does.
+ */
+public final class TracingAmazonSQSPoller implements Closeable {
+  private final static Logger logger = Logger.getLogger(TracingAmazonSQSPoller.class.getName());
+
+  static final int MAX_BATCH = 10;
+
+  public interface MessageHandler {
+    void handle(Message message) throws Exception;
+  }
+
+  public static Builder newBuilder(AmazonSQSClientTracing tracing, AmazonSQS delegate,
+    MessageHandler handler) {
+    return new Builder(tracing, delegate, handler);
+  }
+
+  public static final class Builder {
+    private final AmazonSQSClientTracing tracing;
+    private final AmazonSQS delegate;
+    private final MessageHandler handler;
+    private final Set<String> queueUrls = new LinkedHashSet<>();
+    private int receiveLoops = 1;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int maxInFlight = -1;
+    private int maxMessages = MAX_BATCH;
+    private int waitTimeSeconds = 20;
+    private long deleteDelayNanos = TimeUnit.SECONDS.toNanos(1);
+    private long shutdownTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
+    private String spanName = "process";
+
+    Builder(AmazonSQSClientTracing tracing, AmazonSQS delegate, MessageHandler handler) {
+      this.tracing = tracing;
+      this.delegate = delegate;
+      this.handler = handler;
+    }
+
+    /** Adds a queue to poll, at least one is required. */
+    public Builder queueUrl(String queueUrl) {
+      queueUrls.add(queueUrl);
+      return this;
+    }
+
+    /** Concurrent long polls per queue, default 1. */
+    public Builder receiveLoops(int receiveLoops) {
+      if (receiveLoops < 1) throw new IllegalArgumentException("receiveLoops < 1");
+      this.receiveLoops = receiveLoops;
+      return this;
+    }
+
+    /** Handler threads shared by all queues, by default one per processor. */
+    public Builder threads(int threads) {
+      if (threads < 1) throw new IllegalArgumentException("threads < 1");
+      this.threads = threads;
+      return this;
+    }
+
+    /** Messages received and not yet handled, across queues, by default twice the threads. */
+    public Builder maxInFlight(int maxInFlight) {
+      if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight < 1");
+      this.maxInFlight = maxInFlight;
+      return this;
+    }
+
+    /** Messages asked for per receive, 1 to 10, default 10. */
+    public Builder maxMessages(int maxMessages) {
+      if (maxMessages < 1 || maxMessages > MAX_BATCH) {
+        throw new IllegalArgumentException("maxMessages must be between 1 and 10");
+      }
+      this.maxMessages = maxMessages;
+      return this;
+    }
+
+    /** Long poll wait, 0 to 20 seconds, default 20. */
+    public Builder waitTimeSeconds(int waitTimeSeconds) {
+      if (waitTimeSeconds < 0 || waitTimeSeconds > 20) {
+        throw new IllegalArgumentException("waitTimeSeconds must be between 0 and 20");
+      }
+      this.waitTimeSeconds = waitTimeSeconds;
+      return this;
+    }
+
+    /**
+     * Longest a handled message waits for its delete to be batched, default 1 second. Should be
+     * well under the visibility timeout of the queues, or handled messages are received again.
+     */
+    public Builder deleteDelay(long delay, TimeUnit unit) {
+      this.deleteDelayNanos = unit.toNanos(delay);
+      return this;
+    }
+
+    /** How long {@link #close()} waits for handlers to finish, default 30 seconds. */
+    public Builder shutdownTimeout(long timeout, TimeUnit unit) {
+      this.shutdownTimeoutMillis = unit.toMillis(timeout);
+      return this;
+    }
+
+    public Builder spanName(String spanName) {
+      this.spanName = spanName;
+      return this;
+    }
+
+    public TracingAmazonSQSPoller build() {
+      if (queueUrls.isEmpty()) throw new IllegalStateException("no queueUrl");
+      return new TracingAmazonSQSPoller(this);
+    }
+  }
+
+  private final TracingAmazonSQSClient client;
+  private final AmazonSQS delegate;
+  private final Tracer tracer;
+  private final MessageHandler handler;
+  private final List<QueueState> queues;
+  private final int receiveLoops;
+  private final int maxMessages;
+  private final int waitTimeSeconds;
+  private final long deleteDelayNanos;
+  private final long shutdownTimeoutMillis;
+  private final String spanName;
+  private final Semaphore inFlight;
+  private final ExecutorService workers;
+  private final ExecutorService receivers;
+  /** sends delete batches whose oldest entry waited the delete delay */
+  private final ScheduledThreadPoolExecutor deleteTimers;
+  private volatile boolean running;
+
+  TracingAmazonSQSPoller(Builder builder) {
+    this.client = new TracingAmazonSQSClient(builder.tracing, builder.delegate);
+    this.delegate = builder.delegate;
+    this.tracer = builder.tracing.tracing().tracer();
+    this.handler = builder.handler;
+    this.receiveLoops = builder.receiveLoops;
+    this.maxMessages = builder.maxMessages;
+    this.waitTimeSeconds = builder.waitTimeSeconds;
+    this.deleteDelayNanos = builder.deleteDelayNanos;
+    this.shutdownTimeoutMillis = builder.shutdownTimeoutMillis;
+    this.spanName = builder.spanName;
+    int maxInFlight = builder.maxInFlight > 0 ? builder.maxInFlight : builder.threads * 2;
+    // a receive holds permits for every message it may get
+    this.inFlight = new Semaphore(Math.max(maxInFlight, maxMessages));
+    this.queues = new ArrayList<>(builder.queueUrls.size());
+    for (String queueUrl : builder.queueUrls) {
+      queues.add(new QueueState(client.parser.queueMetadata(queueUrl)));
+    }
+    this.workers = Executors.newFixedThreadPool(builder.threads);
+    this.receivers = Executors.newFixedThreadPool(queues.size() * receiveLoops);
+    this.deleteTimers = new ScheduledThreadPoolExecutor(1);
+    // close() flushes what is left
+    this.deleteTimers.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+  }
+
+  /** Starts the receive loops. */
+  public void start() {
+    running = true;
+    for (QueueState queue : queues) {
+      for (int i = 0; i < receiveLoops; i++) {
+        receivers.execute(new ReceiveLoop(queue));
+      }
+    }
+  }
+
+  /** Messages received and not yet handled. */
+  public int inFlightMessages() {
+    int count = 0;
+    for (QueueState queue : queues) {
+      count += queue.inFlight();
+    }
+    return count;
+  }
+
+  /**
+   * Stops receiving, waits for the messages in flight to be handled and sends their deletes.
+   */
+  @Override
+  public void close() {
+    running = false;
+    receivers.shutdownNow();
+    workers.shutdown();
+    try {
+      if (!workers.awaitTermination(shutdownTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        logger.warning("Timed out waiting for SQS message handlers to finish");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    deleteTimers.shutdown();
+    for (QueueState queue : queues) {
+      queue.flush(null);
+    }
+  }
+
+  private void handle(QueueState queue, Message message, TraceContext context) {
+    Span span = tracer.newChild(context);
+    if (!span.isNoop()) {
+      span
+        .name(spanName)
+        .tag(AmazonSQSTraceKeys.SQS_QUEUE_URL, queue.metadata.queueUrl())
+        .tag(AmazonSQSTraceKeys.SQS_MESSAGE_ID, message.getMessageId());
+    }
+    span.start();
+    boolean handled = false;
+    try (Tracer.SpanInScope ws = tracer.withSpanInScope(span)) {
+      handler.handle(message);
+      handled = true;
+    } catch (Exception e) {
+      String error = e.getMessage();
+      span.tag("error", error != null ? error : e.getClass().getSimpleName());
+      logger.log(Level.WARNING, "Failed to handle message " + message.getMessageId() + " of "
+        + queue.metadata.queueName(), e);
+    } finally {
+      span.finish();
+    }
+    queue.handled(handled ? message : null);
+  }
+
+  private final class ReceiveLoop implements Runnable {
+    final QueueState queue;
+
+    ReceiveLoop(QueueState queue) {
+      this.queue = queue;
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        try {
+          inFlight.acquire(maxMessages);
+        } catch (InterruptedException e) {
+          return;
+        }
+        int dispatched = 0;
+        try {
+          dispatched = receive();
+        } catch (RuntimeException e) {
+          if (!running) return;
+          logger.log(Level.WARNING, "Failed to receive from " + queue.metadata.queueName(), e);
+          pause();
+        } finally {
+          inFlight.release(maxMessages - dispatched);
+        }
+      }
+    }
+
+    private int receive() {
+      ReceiveMessageRequest request = client.withTraceAttributes(
+        new ReceiveMessageRequest(queue.metadata.queueUrl())
+          .withMaxNumberOfMessages(maxMessages)
+          .withWaitTimeSeconds(waitTimeSeconds));
+      ReceiveMessageResult result = delegate.receiveMessage(request);
+      List<Message> messages = result.getMessages();
+      queue.received(messages.size());
+      client.countReceive(queue.metadata, messages.size());
+      int dispatched = 0;
+      for (int i = 0; i < messages.size(); i++) {
+        Message message = messages.get(i);
+        TraceContext context = client.received(request, queue.metadata, message);
+        try {
+          workers.execute(() -> {
+            try {
+              handle(queue, message, context);
+            } finally {
+              inFlight.release();
+            }
+          });
+          dispatched++;
+        } catch (RejectedExecutionException e) {
+          // closing, the message reappears after its visibility timeout
+          queue.handled(null);
+        }
+      }
+      return dispatched;
+    }
+
+    private void pause() {
+      try {
+        Thread.sleep(1000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Messages in flight of a queue, and deletes of handled ones waiting to be sent in one batch. */
+  private final class QueueState {
+    final QueueMetadata metadata;
+    /** guarded by this */
+    int inFlight;
+    /** guarded by this */
+    List<DeleteMessageBatchRequestEntry> deletes = new ArrayList<>(MAX_BATCH);
+
+    QueueState(QueueMetadata metadata) {
+      this.metadata = metadata;
+    }
+
+    synchronized void received(int count) {
+      inFlight += count;
+    }
+
+    synchronized int inFlight() {
+      return inFlight;
+    }
+
+    /** @param message to delete, or null if it wasn't handled */
+    void handled(Message message) {
+      List<DeleteMessageBatchRequestEntry> batch = null;
+      List<DeleteMessageBatchRequestEntry> started = null;
+      synchronized (this) {
+        inFlight--;
+        if (message != null) {
+          if (deletes.isEmpty()) started = deletes;
+          deletes.add(new DeleteMessageBatchRequestEntry(
+            Integer.toString(deletes.size()), message.getReceiptHandle()));
+        }
+        if (!deletes.isEmpty() && (deletes.size() == MAX_BATCH || inFlight == 0)) {
+          batch = deletes;
+          deletes = new ArrayList<>(MAX_BATCH);
+        }
+      }
+      if (batch != null) {
+        delete(batch);
+      } else if (started != null) {
+        final List<DeleteMessageBatchRequestEntry> timed = started;
+        try {
+          deleteTimers.schedule(() -> flush(timed), deleteDelayNanos, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+          // closing, close() flushes it
+        }
+      }
+    }
+
+    /** @param batch only sent if it is still pending, or null for whatever is */
+    void flush(List<DeleteMessageBatchRequestEntry> batch) {
+      synchronized (this) {
+        if (deletes.isEmpty() || (batch != null && deletes != batch)) return;
+        batch = deletes;
+        deletes = new ArrayList<>(MAX_BATCH);
+      }
+      delete(batch);
+    }
+
+    private void delete(List<DeleteMessageBatchRequestEntry> batch) {
+      try {
+        DeleteMessageBatchResult result =
+          delegate.deleteMessageBatch(new DeleteMessageBatchRequest(metadata.queueUrl(), batch));
+        for (BatchResultErrorEntry failed : result.getFailed()) {
+          logger.warning("Failed to delete a message of " + metadata.queueName() + ": "
+            + failed.getMessage());
+        }
+      } catch (RuntimeException e) {
+        logger.log(Level.WARNING, "Failed to delete " + batch.size() + " messages of "
+          + metadata.queueName(), e);
+      }
+    }
+  }
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+import brave.Span;
+import brave.Tracing;
+import brave.propagation.SamplingFlags;
+import brave.propagation.TraceContext;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.AmazonSQSException;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects messages sent to the same queue for a short window and sends them with one
+ * {@code sendMessageBatch} call, of at most ten messages and 256 KB.
+ *
+ * Each message gets its own one-way span when it is buffered, in the caller's trace, and that
+ * context is injected into the message right away, exactly like
+ * {@link TracingAmazonSQSClient#sendMessage(SendMessageRequest)}. The batch call gets a span of
+ * its own, a new trace sampled when any of its messages is. The two are linked by tags: the batch
+ * span lists the message trace ids in "sqs.msg_trace_ids" and each message span has the batch's
+ * trace id in "sqs.batch_trace_id".
+ *
+ * <pre>
+ * TracingAmazonSQSSendBuffer buffer = TracingAmazonSQSSendBuffer.newBuilder(clientTracing, sqs)
+ *   .maxDelay(20, TimeUnit.MILLISECONDS)
+ *   .build();
+ * Future&lt;SendMessageResult&gt; sent = buffer.send(new SendMessageRequest(queueUrl, body));
+ * </pre>
+ *
+ * Batches of a FIFO queue, whose URL ends with ".fifo", are sent one at a time in the order they
+ * were formed so message groups keep their order; batches of other queues are sent concurrently.
+ *
+ * The {@link AmazonSQS} given should not itself be traced.
+ */
+public final class TracingAmazonSQSSendBuffer
+  extends AbstractTracingAmazonSQSBuffer<TracingAmazonSQSSendBuffer.Entry> {
+
+  static final int MAX_BATCH_BYTES = 256 * 1024;
+
+  public static Builder newBuilder(AmazonSQSClientTracing tracing, AmazonSQS delegate) {
+    return new Builder(tracing, delegate);
+  }
+
+  public static final class Builder {
+    private final AmazonSQSClientTracing tracing;
+    private final AmazonSQS delegate;
+    private int maxBatchSize = MAX_BATCH;
+    private int maxBatchBytes = MAX_BATCH_BYTES;
+    private long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(20);
+    private int threads = 4;
+
+    Builder(AmazonSQSClientTracing tracing, AmazonSQS delegate) {
+      this.tracing = tracing;
+      this.delegate = delegate;
+    }
+
+    /** Messages per batch, 1 to 10, default 10. */
+    public Builder maxBatchSize(int maxBatchSize) {
+      if (maxBatchSize < 1 || maxBatchSize > MAX_BATCH) {
+        throw new IllegalArgumentException("maxBatchSize must be between 1 and 10");
+      }
+      this.maxBatchSize = maxBatchSize;
+      return this;
+    }
+
+    /** Bodies and attributes per batch, up to and by default 256 KB. */
+    public Builder maxBatchBytes(int maxBatchBytes) {
+      if (maxBatchBytes < 1 || maxBatchBytes > MAX_BATCH_BYTES) {
+        throw new IllegalArgumentException("maxBatchBytes must be between 1 and " + MAX_BATCH_BYTES);
+      }
+      this.maxBatchBytes = maxBatchBytes;
+      return this;
+    }
+
+    /** Longest a message waits for its batch to fill, default 20 milliseconds. */
+    public Builder maxDelay(long delay, TimeUnit unit) {
+      this.maxDelayNanos = unit.toNanos(delay);
+      return this;
+    }
+
+    /** Threads sending batches, default 4. */
+    public Builder threads(int threads) {
+      if (threads < 1) throw new IllegalArgumentException("threads < 1");
+      this.threads = threads;
+      return this;
+    }
+
+    public TracingAmazonSQSSendBuffer build() {
+      return new TracingAmazonSQSSendBuffer(this);
+    }
+  }
+
+  private final TracingAmazonSQSClient client;
+  private final AmazonSQS delegate;
+  private final Tracing tracing;
+
+  TracingAmazonSQSSendBuffer(Builder builder) {
+    super(builder.maxBatchSize, builder.maxBatchBytes, builder.maxDelayNanos, builder.threads);
+    this.client = new TracingAmazonSQSClient(builder.tracing, builder.delegate);
+    this.delegate = builder.delegate;
+    this.tracing = builder.tracing.tracing();
+  }
+
+  public Future<SendMessageResult> send(String queueUrl, String messageBody) {
+    return send(new SendMessageRequest(queueUrl, messageBody));
+  }
+
+  /**
+   * Starts the message's span, injects its context and buffers it.
+   * @return completed once the batch holding the message was sent
+   */
+  public Future<SendMessageResult> send(SendMessageRequest request) {
+    Entry entry = new Entry(request, client.startSend(request));
+    add(request.getQueueUrl(), entry);
+    return entry.future;
+  }
+
+  /** FIFO queue names end with ".fifo". */
+  @Override boolean ordered(String queueUrl) {
+    return queueUrl.endsWith(".fifo");
+  }
+
+  @Override int bytes(Entry entry) {
+    return entry.bytes;
+  }
+
+  @Override void sendBatch(String queueUrl, List<Entry> entries) {
+    List<SendMessageBatchRequestEntry> requestEntries = new ArrayList<>(entries.size());
+    boolean sampled = false;
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i);
+      SendMessageRequest request = entry.request;
+      requestEntries.add(new SendMessageBatchRequestEntry(Integer.toString(i), request.getMessageBody())
+        .withMessageAttributes(request.getMessageAttributes())
+        .withDelaySeconds(request.getDelaySeconds())
+        .withMessageDeduplicationId(request.getMessageDeduplicationId())
+        .withMessageGroupId(request.getMessageGroupId()));
+      TraceContext context = entry.span.context();
+      if (Boolean.TRUE.equals(context.sampled()) || context.debug()) sampled = true;
+    }
+    SendMessageBatchRequest request = new SendMessageBatchRequest(queueUrl, requestEntries);
+
+    Span span = client.withEndpoint(tracing.tracer()
+      .newTrace(sampled ? SamplingFlags.SAMPLED : SamplingFlags.EMPTY))
+      .kind(Span.Kind.CLIENT);
+    client.parser.request(request, span);
+    if (!span.isNoop()) {
+      List<Span> spans = new ArrayList<>(entries.size());
+      for (Entry entry : entries) {
+        spans.add(entry.span);
+      }
+      TracingAmazonSQSClient.tagBatchLinks(span, spans);
+    }
+    span.start();
+
+    SendMessageBatchResult result;
+    try {
+      result = delegate.sendMessageBatch(request);
+    } catch (RuntimeException e) {
+      client.parser.error(e, span);
+      span.finish();
+      for (Entry entry : entries) {
+        entry.span.abandon();
+        entry.future.fail(e);
+      }
+      return;
+    }
+
+    client.parser.response(result, span);
+    span.finish();
+    for (SendMessageBatchResultEntry resultEntry : result.getSuccessful()) {
+      Entry entry = entries.get(Integer.parseInt(resultEntry.getId()));
+      client.parser.response(resultEntry, entry.span);
+      entry.span.flush();
+      entry.future.succeed(new SendMessageResult()
+        .withMessageId(resultEntry.getMessageId())
+        .withMD5OfMessageBody(resultEntry.getMD5OfMessageBody())
+        .withMD5OfMessageAttributes(resultEntry.getMD5OfMessageAttributes())
+        .withSequenceNumber(resultEntry.getSequenceNumber()));
+    }
+    for (BatchResultErrorEntry errorEntry : result.getFailed()) {
+      Entry entry = entries.get(Integer.parseInt(errorEntry.getId()));
+      entry.span.abandon();
+      AmazonSQSException e = new AmazonSQSException(errorEntry.getMessage());
+      e.setErrorCode(errorEntry.getCode());
+      entry.future.fail(e);
+    }
+  }
+
+  /** Counts UTF-8 bytes without encoding, as SQS limits the encoded size. */
+  static int utf8Length(CharSequence chars) {
+    if (chars == null) return 0;
+    int length = 0;
+    for (int i = 0; i < chars.length(); i++) {
+      char c = chars.charAt(i);
+      if (c < 0x80) {
+        length++;
+      } else if (c < 0x800) {
+        length += 2;
+      } else if (Character.isHighSurrogate(c)) {
+        length += 4;
+        i++;
+      } else {
+        length += 3;
+      }
+    }
+    return length;
+  }
+
+  static int size(SendMessageRequest request) {
+    int size = utf8Length(request.getMessageBody());
+    for (Map.Entry<String, MessageAttributeValue> attribute : request.getMessageAttributes().entrySet()) {
+      MessageAttributeValue value = attribute.getValue();
+      size += utf8Length(attribute.getKey()) + utf8Length(value.getDataType());
+      if (value.getStringValue() != null) size += utf8Length(value.getStringValue());
+      if (value.getBinaryValue() != null) size += value.getBinaryValue().remaining();
+    }
+    return size;
+  }
+
+  static final class Entry {
+    final SendMessageRequest request;
+    final Span span;
+    final int bytes;
+    final BatchEntryFuture<SendMessageResult> future = new BatchEntryFuture<>();
+
+    Entry(SendMessageRequest request, Span span) {
+      this.request = request;
+      this.span = span;
+      this.bytes = size(request);
+    }
+  }
+}
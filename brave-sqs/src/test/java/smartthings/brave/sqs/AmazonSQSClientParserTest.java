@@ -0,0 +1,90 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AmazonSQSClientParserTest {
+
+  private static final String QUEUE_URL = "https://sqs.us-west-2.amazonaws.com/123456789012/orders";
+
+  private AmazonSQSClientParser parser = new AmazonSQSClientParser();
+
+  @Test
+  public void derivesQueueMetadata() {
+    QueueMetadata metadata = parser.queueMetadata(QUEUE_URL);
+
+    assertThat(metadata.queueName()).isEqualTo("orders");
+    assertThat(metadata.accountId()).isEqualTo("123456789012");
+    assertThat(metadata.region()).isEqualTo("us-west-2");
+    assertThat(metadata.receiveAnnotation()).isEqualTo("receive-orders");
+  }
+
+  @Test
+  public void keepsSpanNames() {
+    assertThat(parser.spanName(new SendMessageRequest(QUEUE_URL, "test")))
+      .isEqualTo("send_message-orders");
+    assertThat(parser.spanName(new SendMessageBatchRequest(QUEUE_URL)))
+      .isEqualTo("send_message_batch-orders");
+    assertThat(parser.spanName(new DeleteMessageRequest(QUEUE_URL, "handle")))
+      .isEqualTo("delete_message-orders");
+    assertThat(parser.spanName(new SendMessageRequest("not a url", "test")))
+      .isEqualTo("send_message-malformed");
+  }
+
+  @Test
+  public void cachesPerQueueUrl() {
+    assertThat(parser.queueMetadata(QUEUE_URL)).isSameAs(parser.queueMetadata(QUEUE_URL));
+    assertThat(parser.spanName(new SendMessageRequest(QUEUE_URL, "test")))
+      .isSameAs(parser.spanName(new SendMessageRequest(QUEUE_URL, "other")));
+  }
+
+  @Test
+  public void derivesAgainBeyondMaximum() {
+    parser = new AmazonSQSClientParser(1);
+    String otherUrl = "http://localhost:9324/queue/test";
+    parser.queueMetadata(QUEUE_URL);
+
+    QueueMetadata metadata = parser.queueMetadata(otherUrl);
+    assertThat(metadata.queueName()).isEqualTo("test");
+    assertThat(metadata.accountId()).isNull();
+    assertThat(metadata.region()).isNull();
+    assertThat(parser.queueMetadata(otherUrl)).isNotSameAs(metadata);
+    assertThat(parser.queueMetadata(QUEUE_URL)).isSameAs(parser.queueMetadata(QUEUE_URL));
+  }
+
+  @Test
+  public void usesOverriddenQueueName() {
+    parser = new AmazonSQSClientParser() {
+      @Override protected String spanName(String queueUrl) {
+        return "custom";
+      }
+    };
+
+    assertThat(parser.spanName(new SendMessageRequest(QUEUE_URL, "test")))
+      .isEqualTo("send_message-custom");
+  }
+
+  @Test
+  public void parsesLegacyRegions() {
+    assertThat(QueueMetadata.region("queue.amazonaws.com")).isEqualTo("us-east-1");
+    assertThat(QueueMetadata.region("eu-west-1.queue.amazonaws.com")).isEqualTo("eu-west-1");
+    assertThat(QueueMetadata.region("localhost")).isNull();
+  }
+}
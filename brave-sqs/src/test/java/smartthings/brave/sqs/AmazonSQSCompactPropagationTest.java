@@ -0,0 +1,122 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+import brave.propagation.B3Propagation;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.Test;
+import smartthings.brave.codec.CompactTraceContextCodec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AmazonSQSCompactPropagationTest {
+
+  private Propagation<String> propagation = B3Propagation.FACTORY.create(Propagation.KeyFactory.STRING);
+
+  private TraceContext.Extractor<Map<String, MessageAttributeValue>> extractor =
+    AmazonSQSCompactPropagation.extractor(propagation);
+
+  private Map<String, MessageAttributeValue> carrier = new LinkedHashMap<>();
+
+  private TraceContext context = TraceContext.newBuilder()
+    .traceIdHigh(1L)
+    .traceId(2L)
+    .spanId(3L)
+    .parentId(4L)
+    .sampled(true)
+    .build();
+
+  @Test
+  public void stringFormatRoundTrips() {
+    inject(AmazonSQSPropagationFormat.COMPACT_STRING, context);
+
+    assertThat(carrier).containsOnlyKeys(AmazonSQSCompactPropagation.ATTRIBUTE_NAME);
+    assertThat(carrier.get(AmazonSQSCompactPropagation.ATTRIBUTE_NAME).getStringValue())
+      .isEqualTo("0000000000000001" + "0000000000000002" + "0000000000000003"
+        + "0000000000000004" + "2");
+    assertThat(extractor.extract(carrier).context()).isEqualTo(context);
+  }
+
+  @Test
+  public void stringFormatWithoutOptionalFields() {
+    TraceContext root = TraceContext.newBuilder().traceId(2L).spanId(3L).build();
+    inject(AmazonSQSPropagationFormat.COMPACT_STRING, root);
+
+    assertThat(carrier.get(AmazonSQSCompactPropagation.ATTRIBUTE_NAME).getStringValue())
+      .isEqualTo("n" + "0000000000000002" + "0000000000000003" + "n" + "n");
+    TraceContext extracted = extractor.extract(carrier).context();
+    assertThat(extracted).isEqualTo(root);
+    assertThat(extracted.sampled()).isNull();
+  }
+
+  @Test
+  public void binaryFormatRoundTrips() {
+    inject(AmazonSQSPropagationFormat.COMPACT_BINARY, context);
+
+    MessageAttributeValue value = carrier.get(AmazonSQSCompactPropagation.ATTRIBUTE_NAME);
+    assertThat(value.getDataType()).isEqualTo("Binary");
+    assertThat(value.getBinaryValue().remaining())
+      .isEqualTo(CompactTraceContextCodec.BINARY_SIZE_128);
+
+    TraceContext extracted = extractor.extract(carrier).context();
+    assertThat(extracted).isEqualTo(context);
+    assertThat(extracted.sampled()).isTrue();
+    // decoding must not consume the buffer
+    assertThat(value.getBinaryValue().remaining())
+      .isEqualTo(CompactTraceContextCodec.BINARY_SIZE_128);
+  }
+
+  @Test
+  public void binaryFormatUses64BitLayout() {
+    TraceContext notSampled = context.toBuilder().traceIdHigh(0L).sampled(false).build();
+    inject(AmazonSQSPropagationFormat.COMPACT_BINARY, notSampled);
+
+    assertThat(carrier.get(AmazonSQSCompactPropagation.ATTRIBUTE_NAME).getBinaryValue().remaining())
+      .isEqualTo(CompactTraceContextCodec.BINARY_SIZE);
+    TraceContext extracted = extractor.extract(carrier).context();
+    assertThat(extracted).isEqualTo(notSampled);
+    assertThat(extracted.sampled()).isFalse();
+  }
+
+  @Test
+  public void extractsB3Attributes() {
+    inject(AmazonSQSPropagationFormat.B3, context);
+
+    assertThat(carrier).doesNotContainKey(AmazonSQSCompactPropagation.ATTRIBUTE_NAME);
+    assertThat(extractor.extract(carrier).context()).isEqualTo(context);
+  }
+
+  @Test
+  public void malformedCompactAttributeFallsBackToB3() {
+    inject(AmazonSQSPropagationFormat.B3, context);
+    carrier.put(AmazonSQSCompactPropagation.ATTRIBUTE_NAME,
+      new MessageAttributeValue().withDataType("String").withStringValue("garbage"));
+
+    assertThat(extractor.extract(carrier).context()).isEqualTo(context);
+
+    carrier.clear();
+    carrier.put(AmazonSQSCompactPropagation.ATTRIBUTE_NAME,
+      new MessageAttributeValue().withDataType("String").withStringValue("n" + "zz"));
+    assertThat(extractor.extract(carrier)).isEqualTo(TraceContextOrSamplingFlags.EMPTY);
+  }
+
+  private void inject(AmazonSQSPropagationFormat format, TraceContext context) {
+    AmazonSQSCompactPropagation.injector(propagation, format).inject(context, carrier);
+  }
+}
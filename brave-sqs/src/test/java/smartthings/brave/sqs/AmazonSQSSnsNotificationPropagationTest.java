@@ -0,0 +1,108 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+import brave.propagation.B3Propagation;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import java.util.Base64;
+import org.junit.Test;
+import smartthings.brave.codec.CompactTraceContextCodec;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class AmazonSQSSnsNotificationPropagationTest {
+
+  private Propagation<String> propagation = B3Propagation.FACTORY.create(Propagation.KeyFactory.STRING);
+
+  private TraceContext.Extractor<String> extractor =
+    AmazonSQSSnsNotificationPropagation.extractor(propagation);
+
+  private TraceContext context = TraceContext.newBuilder()
+    .traceId(0x463ac35c9f6413adL)
+    .spanId(0x48485a3953bb6124L)
+    .sampled(true)
+    .build();
+
+  @Test
+  public void readsB3Attributes() {
+    String body = notification("\"Hello\"", "{"
+      + "\"X-B3-TraceId\" : {\"Type\":\"String\",\"Value\":\"463ac35c9f6413ad\"},"
+      + "\"X-B3-SpanId\" : {\"Type\":\"String\",\"Value\":\"48485a3953bb6124\"},"
+      + "\"X-B3-Sampled\" : {\"Value\":\"1\",\"Type\":\"String\"},"
+      + "\"app\" : {\"Type\":\"Number\",\"Value\":\"42\"}"
+      + "}");
+
+    assertThat(extractor.extract(body).context()).isEqualTo(context);
+  }
+
+  @Test
+  public void readsCompactAttributes() {
+    String string = notification("\"Hello\"", "{\"b3\" : {\"Type\":\"String\",\"Value\":\""
+      + CompactTraceContextCodec.encodeString(context) + "\"}}");
+    String binary = notification("\"Hello\"", "{\"b3\" : {\"Type\":\"Binary\",\"Value\":\""
+      + Base64.getEncoder().encodeToString(CompactTraceContextCodec.encodeBinary(context))
+      + "\"}}");
+
+    assertThat(extractor.extract(string).context()).isEqualTo(context);
+    assertThat(extractor.extract(binary).context()).isEqualTo(context);
+  }
+
+  @Test
+  public void ignoresKeyInsideMessage() {
+    String body = notification(
+      "\"{\\\"MessageAttributes\\\" : {\\\"b3\\\" : {}}}\"", "{\"b3\" : {\"Type\":\"String\",\"Value\":\""
+        + CompactTraceContextCodec.encodeString(context) + "\"}}");
+    String withoutAttributes = "{\"Type\" : \"Notification\", \"Message\" : "
+      + "\"{\\\"MessageAttributes\\\" : {\\\"b3\\\" : {}}}\"}";
+
+    assertThat(extractor.extract(body).context()).isEqualTo(context);
+    assertThat(AmazonSQSSnsNotificationPropagation.attributesStart(withoutAttributes)).isEqualTo(-1);
+  }
+
+  @Test
+  public void emptyWhenNotANotification() {
+    assertThat(extractor.extract("Hello")).isSameAs(TraceContextOrSamplingFlags.EMPTY);
+    assertThat(extractor.extract(null)).isSameAs(TraceContextOrSamplingFlags.EMPTY);
+    assertThat(extractor.extract("{\"MessageAttributes\" : {\"b3\" : {\"Type\":\"String\","))
+      .isSameAs(TraceContextOrSamplingFlags.EMPTY);
+    assertThat(extractor.extract(notification("\"Hello\"", "{}")))
+      .isSameAs(TraceContextOrSamplingFlags.EMPTY);
+  }
+
+  @Test
+  public void emptyWhenAnotherType() {
+    String attributes = "{\"b3\" : {\"Type\":\"String\",\"Value\":\""
+      + CompactTraceContextCodec.encodeString(context) + "\"}}";
+    String confirmation = notification("\"Hello\"", attributes)
+      .replace("\"Notification\"", "\"SubscriptionConfirmation\"");
+    String application = "{\"id\" : 1, \"MessageAttributes\" : " + attributes + "}";
+
+    assertThat(extractor.extract(confirmation)).isSameAs(TraceContextOrSamplingFlags.EMPTY);
+    assertThat(extractor.extract(application)).isSameAs(TraceContextOrSamplingFlags.EMPTY);
+  }
+
+  static String notification(String message, String messageAttributes) {
+    return "{\n"
+      + "  \"Type\" : \"Notification\",\n"
+      + "  \"MessageId\" : \"22b80b92-fdea-4c2c-8f9d-bdfb0c7bf324\",\n"
+      + "  \"TopicArn\" : \"arn:aws:sns:us-west-2:123456789012:MyTopic\",\n"
+      + "  \"Message\" : " + message + ",\n"
+      + "  \"Timestamp\" : \"2012-05-02T00:54:06.655Z\",\n"
+      + "  \"SignatureVersion\" : \"1\",\n"
+      + "  \"MessageAttributes\" : " + messageAttributes + "\n"
+      + "}";
+  }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class QueueRateSamplerTest {
+
+  private static final String QUEUE_URL = "http://localhost:9324/queue/test";
+  private static final String OTHER_QUEUE_URL = "http://localhost:9324/queue/other";
+
+  @Test
+  public void samplesEverythingByDefault() {
+    AmazonSQSClientSampler sampler = QueueRateSampler.newBuilder().build();
+
+    for (int i = 0; i < 100; i++) {
+      assertThat(sampler.trySample(new SendMessageRequest(QUEUE_URL, "test"))).isTrue();
+    }
+  }
+
+  @Test
+  public void appliesRatePerQueue() {
+    AmazonSQSClientSampler sampler = QueueRateSampler.newBuilder()
+      .queueRate("test", 0.0f)
+      .build();
+
+    assertThat(sampler.trySample(new SendMessageRequest(QUEUE_URL, "test"))).isFalse();
+    assertThat(sampler.trySample(new DeleteMessageRequest(QUEUE_URL, "handle"))).isFalse();
+    assertThat(sampler.trySample(new SendMessageRequest(OTHER_QUEUE_URL, "test"))).isTrue();
+  }
+
+  @Test
+  public void limitsSampledSpansPerSecondPerQueue() {
+    AmazonSQSClientSampler sampler = QueueRateSampler.newBuilder()
+      .limit(5)
+      .build();
+
+    int sampled = 0;
+    for (int i = 0; i < 10; i++) {
+      if (sampler.trySample(QUEUE_URL)) sampled++;
+    }
+    // the window may roll over once during the loop
+    assertThat(sampled).isBetween(5, 10);
+    assertThat(sampler.trySample(OTHER_QUEUE_URL)).isTrue();
+  }
+
+  @Test
+  public void zeroLimitNeverSamples() {
+    AmazonSQSClientSampler sampler = QueueRateSampler.newBuilder()
+      .queueLimit("test", 0)
+      .build();
+
+    assertThat(sampler.trySample(QUEUE_URL)).isFalse();
+  }
+
+  @Test
+  public void defersWithoutQueueUrl() {
+    AmazonSQSClientSampler sampler = QueueRateSampler.newBuilder().rate(0.0f).build();
+
+    assertThat(sampler.trySample((String) null)).isNull();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsRateAboveOne() {
+    QueueRateSampler.newBuilder().rate(1.5f);
+  }
+
+  @Test
+  public void parsesQueueName() {
+    assertThat(QueueRateSampler.queueName(QUEUE_URL)).isEqualTo("test");
+    assertThat(QueueRateSampler.queueName(QUEUE_URL + "/")).isEqualTo("test");
+    assertThat(QueueRateSampler.queueName("test")).isEqualTo("test");
+  }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+import brave.Tracer;
+import brave.Tracing;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.StrictCurrentTraceContext;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.AmazonSQSAsyncClientBuilder;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import zipkin2.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.tuple;
+
+public class TracingAmazonSQSAsyncClientTest {
+
+  @Rule
+  public AmazonSQSRule sqsRule = new AmazonSQSRule().start(9324);
+
+  private CurrentTraceContext currentTraceContext = new StrictCurrentTraceContext();
+
+  private ConcurrentLinkedDeque<Span> spans = new ConcurrentLinkedDeque<>();
+
+  private Tracing tracing = Tracing.newBuilder()
+    .spanReporter(s -> {
+      // make sure the context was cleared prior to finish.. no leaks!
+      TraceContext current = currentTraceContext.get();
+      if (current != null) {
+        assertThat(current.spanId())
+          .isNotEqualTo(s.id());
+      }
+      spans.add(s);
+    })
+    .currentTraceContext(currentTraceContext)
+    .sampler(Sampler.ALWAYS_SAMPLE)
+    .build();
+
+  private AmazonSQSAsync client = AmazonSQSAsyncClientBuilder.standard()
+    .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("x", "x")))
+    .withRegion("us-east-1")
+    .build();
+
+  private AmazonSQSAsync tracingClient;
+
+  @Before
+  public void setup() throws Exception {
+    tracingClient = TracingAmazonSQSAsyncClient.create(
+      AmazonSQSClientTracing.newBuilder(tracing).remoteServiceName("test-queue").build(), client);
+  }
+
+  @After
+  public void close() throws Exception {
+    if (client != null) client.shutdown();
+    tracing.close();
+  }
+
+  @Test
+  public void createsOneWaySpanForSendReceive() throws Exception {
+    tracingClient.sendMessageAsync(sqsRule.queueUrl(), "test").get();
+    tracingClient.receiveMessageAsync(sqsRule.queueUrl()).get();
+
+    assertThat(spans)
+      .extracting(Span::kind)
+      .containsExactly(Span.Kind.CLIENT, Span.Kind.SERVER);
+    assertThat(spans)
+      .extracting(s -> tuple(s.traceId(), s.id()))
+      .containsOnly(tuple(spans.getFirst().traceId(), spans.getFirst().id()));
+  }
+
+  @Test
+  public void finishesDeleteSpanFromCallback() throws Exception {
+    tracingClient.sendMessageAsync(sqsRule.queueUrl(), "test").get();
+    ReceiveMessageResult received = tracingClient.receiveMessageAsync(sqsRule.queueUrl()).get();
+    spans.clear();
+
+    tracingClient.deleteMessageAsync(sqsRule.queueUrl(),
+      received.getMessages().get(0).getReceiptHandle()).get();
+
+    assertThat(spans)
+      .extracting(Span::kind, Span::name)
+      .containsExactly(tuple(Span.Kind.CLIENT, "delete_message-test"));
+    assertThat(spans.getFirst().duration()).isNotNull();
+  }
+
+  @Test
+  public void callsHandlerWithSubmittingContext() throws Exception {
+    AtomicReference<TraceContext> callbackContext = new AtomicReference<>();
+    Tracer tracer = tracing.tracer();
+
+    brave.Span parent = tracer.newTrace().name("test").start();
+    try (Tracer.SpanInScope ws = tracer.withSpanInScope(parent)) {
+      tracingClient.sendMessageAsync(new SendMessageRequest(sqsRule.queueUrl(), "test"),
+        new AsyncHandler<SendMessageRequest, SendMessageResult>() {
+          @Override public void onError(Exception exception) {
+          }
+
+          @Override public void onSuccess(SendMessageRequest request, SendMessageResult result) {
+            callbackContext.set(currentTraceContext.get());
+          }
+        }).get();
+    } finally {
+      parent.finish();
+    }
+
+    assertThat(callbackContext.get()).isEqualTo(parent.context());
+    assertThat(spans)
+      .extracting(Span::kind)
+      .containsExactly(Span.Kind.CLIENT, null);
+  }
+}
@@ -23,7 +23,15 @@ import com.amazonaws.auth.AWSStaticCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.codahale.metrics.MetricRegistry;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.stream.Collectors;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -77,6 +85,138 @@ public class TracingAmazonSQSClientTest {
     assertThat(spans.size()).isEqualTo(0);
   }
 
+  @Test
+  public void clientSamplerDecidesNewTraces() throws Exception {
+    tracingClient = TracingAmazonSQSClient.create(
+      clientTracing.toBuilder().sampler(AmazonSQSClientSampler.NEVER_SAMPLE).build(), client);
+
+    tracingClient.sendMessage(sqsRule.queueUrl(), "test");
+    tracingClient.receiveMessage(sqsRule.queueUrl());
+    tracingClient.deleteMessage(sqsRule.queueUrl(), "handle");
+
+    assertThat(spans).isEmpty();
+  }
+
+  @Test
+  public void recordsReceiveMetricsFromSystemAttributes() throws Exception {
+    MetricRegistry registry = new MetricRegistry();
+    tracingClient = TracingAmazonSQSClient.create(clientTracing.toBuilder()
+      .metrics(new DropwizardAmazonSQSTracingMetrics(registry)).build(), client);
+
+    tracingClient.receiveMessage(new ReceiveMessageRequest(sqsRule.queueUrl()));
+    tracingClient.sendMessage(sqsRule.queueUrl(), "test");
+    tracingClient.receiveMessage(sqsRule.queueUrl());
+
+    assertThat(registry.meter("tracing.sqs.test.receives").getCount()).isEqualTo(2);
+    assertThat(registry.meter("tracing.sqs.test.receives.empty").getCount()).isEqualTo(1);
+    assertThat(registry.meter("tracing.sqs.test.messages").getCount()).isEqualTo(1);
+    assertThat(registry.timer("tracing.sqs.test.dwell").getCount()).isEqualTo(1);
+    assertThat(registry.histogram("tracing.sqs.test.receive_count").getSnapshot().getMax())
+      .isEqualTo(1);
+    assertThat(registry.meter("tracing.sqs.test.redelivered").getCount()).isZero();
+  }
+
+  @Test
+  public void doesNotModifyReusedReceiveRequest() throws Exception {
+    tracingClient = TracingAmazonSQSClient.create(clientTracing.toBuilder()
+      .metrics(new DropwizardAmazonSQSTracingMetrics(new MetricRegistry())).build(), client);
+    ReceiveMessageRequest request = new ReceiveMessageRequest(sqsRule.queueUrl())
+      .withMessageAttributeNames("color");
+
+    tracingClient.receiveMessage(request);
+    tracingClient.receiveMessage(request);
+
+    assertThat(request.getMessageAttributeNames()).containsExactly("color");
+    assertThat(request.getAttributeNames()).isEmpty();
+  }
+
+  @Test
+  public void keepsReceiveRequestAskingForTraceAttributes() {
+    TracingAmazonSQSClient tracing = (TracingAmazonSQSClient) tracingClient;
+    ReceiveMessageRequest request = tracing.withTraceAttributes(
+      new ReceiveMessageRequest(sqsRule.queueUrl()).withMessageAttributeNames("color"));
+
+    assertThat(request.getMessageAttributeNames()).startsWith("color").doesNotHaveDuplicates();
+    assertThat(tracing.withTraceAttributes(request)).isSameAs(request);
+    assertThat(tracing.withTraceAttributes(new ReceiveMessageRequest(sqsRule.queueUrl())
+      .withMessageAttributeNames("All"))
+      .getMessageAttributeNames()).containsExactly("All");
+  }
+
+  @Test
+  public void joinsTraceInSnsNotificationBody() throws Exception {
+    tracingClient = TracingAmazonSQSClient.create(
+      clientTracing.toBuilder().snsNotifications(true).build(), client);
+
+    client.sendMessage(sqsRule.queueUrl(), AmazonSQSSnsNotificationPropagationTest.notification(
+      "\"test\"", "{\"X-B3-TraceId\" : {\"Type\":\"String\",\"Value\":\"463ac35c9f6413ad\"},"
+        + "\"X-B3-SpanId\" : {\"Type\":\"String\",\"Value\":\"48485a3953bb6124\"}}"));
+    tracingClient.receiveMessage(sqsRule.queueUrl());
+
+    assertThat(spans)
+      .extracting(s -> tuple(s.traceId(), s.id(), s.kind()))
+      .containsExactly(tuple("463ac35c9f6413ad", "48485a3953bb6124", Span.Kind.SERVER));
+  }
+
+  @Test
+  public void parsesSystemAttributeNumbers() {
+    assertThat(TracingAmazonSQSClient.parseLong("1513287000123")).isEqualTo(1513287000123L);
+    assertThat(TracingAmazonSQSClient.parseLong(null)).isEqualTo(-1);
+    assertThat(TracingAmazonSQSClient.parseLong("")).isEqualTo(-1);
+    assertThat(TracingAmazonSQSClient.parseLong("12a")).isEqualTo(-1);
+  }
+
+  @Test
+  public void clientSamplerDoesNotOverrideCurrentSpan() throws Exception {
+    tracingClient = TracingAmazonSQSClient.create(
+      clientTracing.toBuilder().sampler(AmazonSQSClientSampler.NEVER_SAMPLE).build(), client);
+    Tracer tracer = clientTracing.tracing().tracer();
+
+    brave.Span parent = tracer.newTrace().name("test").start();
+    try (Tracer.SpanInScope ws = tracer.withSpanInScope(parent)) {
+      tracingClient.sendMessage(sqsRule.queueUrl(), "test");
+    } finally {
+      parent.finish();
+    }
+    // the message carries a sampled context, so it is joined despite the sampler
+    tracingClient.receiveMessage(sqsRule.queueUrl());
+
+    assertThat(spans)
+      .extracting(Span::kind)
+      .containsExactly(Span.Kind.CLIENT, null, Span.Kind.SERVER);
+  }
+
+  @Test
+  public void tagsEachBatchEntryWithItsOwnMessage() throws Exception {
+    SendMessageBatchResult sent = tracingClient.sendMessageBatch(sqsRule.queueUrl(), Arrays.asList(
+      new SendMessageBatchRequestEntry("a", "one"),
+      new SendMessageBatchRequestEntry("b", "two")));
+    tracingClient.receiveMessage(new ReceiveMessageRequest(sqsRule.queueUrl()).withMaxNumberOfMessages(10));
+
+    List<String> messageIds = sent.getSuccessful().stream()
+      .map(SendMessageBatchResultEntry::getMessageId)
+      .collect(Collectors.toList());
+    assertThat(spans)
+      .filteredOn(s -> s.kind() == Span.Kind.CLIENT)
+      .extracting(s -> s.tags().get(AmazonSQSTraceKeys.SQS_MESSAGE_ID))
+      .containsOnlyElementsOf(messageIds)
+      .doesNotHaveDuplicates()
+      .hasSize(2);
+    assertThat(spans)
+      .filteredOn(s -> s.kind() == Span.Kind.CLIENT)
+      .extracting(s -> tuple(
+        s.tags().get(AmazonSQSTraceKeys.SQS_BATCH_SIZE),
+        s.tags().get(AmazonSQSTraceKeys.SQS_BATCH_SUCCESSFUL),
+        s.tags().get(AmazonSQSTraceKeys.SQS_BATCH_FAILED)))
+      .containsOnly(tuple("2", "2", "0"));
+    assertThat(spans)
+      .filteredOn(s -> s.kind() == Span.Kind.SERVER)
+      .extracting(s -> s.tags().get(AmazonSQSTraceKeys.SQS_MESSAGE_ID))
+      .containsOnlyElementsOf(messageIds)
+      .doesNotHaveDuplicates()
+      .hasSize(2);
+  }
+
   @Test
   public void makesChildOfCurrentSpan() throws Exception {
     Tracer tracer = clientTracing.tracing().tracer();
@@ -124,6 +264,26 @@ public class TracingAmazonSQSClientTest {
       .contains("send_message-test");
   }
 
+  @Test
+  public void compactFormatsJoinSenderTrace() throws Exception {
+    for (AmazonSQSPropagationFormat format : AmazonSQSPropagationFormat.values()) {
+      spans.clear();
+      AmazonSQS sender = TracingAmazonSQSClient.create(
+        clientTracing.toBuilder().propagationFormat(format).build(), client);
+
+      sender.sendMessage(sqsRule.queueUrl(), "test");
+      // the receiver always writes B3 but must read every format
+      tracingClient.receiveMessage(sqsRule.queueUrl());
+
+      assertThat(spans)
+        .extracting(Span::kind)
+        .containsExactly(Span.Kind.CLIENT, Span.Kind.SERVER);
+      assertThat(spans)
+        .extracting(s -> tuple(s.traceId(), s.id()))
+        .containsOnly(tuple(spans.getFirst().traceId(), spans.getFirst().id()));
+    }
+  }
+
   private Tracing.Builder tracingBuilder(Sampler sampler) {
     return Tracing.newBuilder()
       .spanReporter(s -> {
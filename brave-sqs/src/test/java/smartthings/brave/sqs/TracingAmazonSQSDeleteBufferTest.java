@@ -0,0 +1,187 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+import brave.Tracer;
+import brave.Tracing;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.StrictCurrentTraceContext;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.DeleteMessageResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import zipkin2.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TracingAmazonSQSDeleteBufferTest {
+
+  @Rule
+  public AmazonSQSRule sqsRule = new AmazonSQSRule().start(9324);
+
+  private CurrentTraceContext currentTraceContext = new StrictCurrentTraceContext();
+
+  private ConcurrentLinkedDeque<Span> spans = new ConcurrentLinkedDeque<>();
+
+  private Tracing tracing = Tracing.newBuilder()
+    .spanReporter(s -> {
+      // make sure the context was cleared prior to finish.. no leaks!
+      TraceContext current = currentTraceContext.get();
+      if (current != null) {
+        assertThat(current.spanId())
+          .isNotEqualTo(s.id());
+      }
+      spans.add(s);
+    })
+    .currentTraceContext(currentTraceContext)
+    .sampler(Sampler.ALWAYS_SAMPLE)
+    .build();
+
+  private AmazonSQSClientTracing clientTracing = AmazonSQSClientTracing.create(tracing);
+
+  private AmazonSQS client = AmazonSQSClient.builder()
+    .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("x", "x")))
+    .withRegion("us-east-1")
+    .build();
+
+  private TracingAmazonSQSDeleteBuffer buffer;
+
+  @After
+  public void close() throws Exception {
+    if (buffer != null) buffer.close();
+    client.shutdown();
+    tracing.close();
+  }
+
+  @Test
+  public void coalescesDeletesAndReportsLifecycleFromReceive() throws Exception {
+    buffer = TracingAmazonSQSDeleteBuffer.newBuilder(clientTracing, client)
+      .maxBatchSize(3)
+      .maxDelay(1, TimeUnit.MINUTES)
+      .build();
+    List<String> traceIds = send(3);
+
+    List<Message> messages = receive(3);
+    assertThat(buffer.receivedMessages()).isEqualTo(3);
+    List<Future<DeleteMessageResult>> deleted = new ArrayList<>();
+    for (Message message : messages) {
+      deleted.add(buffer.deleteMessage(sqsRule.queueUrl(), message.getReceiptHandle()));
+    }
+    for (Future<DeleteMessageResult> future : deleted) {
+      future.get(10, TimeUnit.SECONDS);
+    }
+    assertThat(buffer.receivedMessages()).isZero();
+
+    List<Span> lifecycles = new ArrayList<>();
+    List<Span> batches = new ArrayList<>();
+    for (Span span : spans) {
+      if ("message_lifecycle-test".equals(span.name())) lifecycles.add(span);
+      if ("delete_message_batch-test".equals(span.name())) batches.add(span);
+    }
+    assertThat(batches).hasSize(1);
+    assertThat(batches.get(0).tags().get(AmazonSQSTraceKeys.SQS_MESSAGE_TRACE_IDS).split(","))
+      .containsOnlyElementsOf(traceIds)
+      .hasSize(3);
+    assertThat(lifecycles)
+      .extracting(Span::traceId)
+      .containsOnlyElementsOf(traceIds)
+      .hasSize(3);
+    for (Span lifecycle : lifecycles) {
+      assertThat(lifecycle.parentId()).isNotNull();
+      assertThat(lifecycle.tags())
+        .containsEntry(AmazonSQSTraceKeys.SQS_BATCH_TRACE_ID, batches.get(0).traceId())
+        .containsKey(AmazonSQSTraceKeys.SQS_MESSAGE_ID);
+    }
+  }
+
+  @Test
+  public void deletesWithoutLifecycleBeyondMaxReceived() throws Exception {
+    buffer = TracingAmazonSQSDeleteBuffer.newBuilder(clientTracing, client)
+      .maxReceivedMessages(1)
+      .maxDelay(10, TimeUnit.MILLISECONDS)
+      .build();
+    send(2);
+
+    List<Message> messages = receive(2);
+    assertThat(buffer.receivedMessages()).isEqualTo(1);
+    for (Message message : messages) {
+      buffer.deleteMessage(sqsRule.queueUrl(), message.getReceiptHandle())
+        .get(10, TimeUnit.SECONDS);
+    }
+
+    assertThat(spans)
+      .extracting(Span::name)
+      .containsOnlyOnce("message_lifecycle-test");
+  }
+
+  @Test
+  public void expiresReceivedMessagesToMakeRoom() throws Exception {
+    buffer = TracingAmazonSQSDeleteBuffer.newBuilder(clientTracing, client)
+      .maxReceivedMessages(1)
+      .receivedExpiry(1, TimeUnit.SECONDS)
+      .maxDelay(10, TimeUnit.MILLISECONDS)
+      .build();
+    send(2);
+
+    Message expired = receive(1).get(0);
+    Thread.sleep(1100);
+    Message remembered = receive(1).get(0);
+    assertThat(buffer.receivedMessages()).isEqualTo(1);
+    buffer.deleteMessage(sqsRule.queueUrl(), expired.getReceiptHandle()).get(10, TimeUnit.SECONDS);
+    buffer.deleteMessage(sqsRule.queueUrl(), remembered.getReceiptHandle()).get(10, TimeUnit.SECONDS);
+
+    assertThat(spans)
+      .filteredOn(span -> "message_lifecycle-test".equals(span.name()))
+      .extracting(span -> span.tags().get(AmazonSQSTraceKeys.SQS_MESSAGE_ID))
+      .containsExactly(remembered.getMessageId());
+  }
+
+  private List<String> send(int count) {
+    Tracer tracer = tracing.tracer();
+    AmazonSQS sender = TracingAmazonSQSClient.create(clientTracing, client);
+    List<String> traceIds = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      brave.Span parent = tracer.newTrace().name("test").start();
+      traceIds.add(parent.context().traceIdString());
+      try (Tracer.SpanInScope ws = tracer.withSpanInScope(parent)) {
+        sender.sendMessage(sqsRule.queueUrl(), "test" + i);
+      } finally {
+        parent.finish();
+      }
+    }
+    return traceIds;
+  }
+
+  private List<Message> receive(int count) {
+    List<Message> messages = new ArrayList<>();
+    while (messages.size() < count) {
+      messages.addAll(buffer.receiveMessage(new ReceiveMessageRequest(sqsRule.queueUrl())
+        .withMaxNumberOfMessages(count - messages.size())).getMessages());
+    }
+    return messages;
+  }
+}
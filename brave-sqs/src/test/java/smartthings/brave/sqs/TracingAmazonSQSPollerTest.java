@@ -0,0 +1,222 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+import brave.Tracer;
+import brave.Tracing;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.StrictCurrentTraceContext;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import zipkin2.Span;
+
+import static brave.internal.HexCodec.toLowerHex;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TracingAmazonSQSPollerTest {
+
+  @Rule
+  public AmazonSQSRule sqsRule = new AmazonSQSRule().start(9324);
+
+  private CurrentTraceContext currentTraceContext = new StrictCurrentTraceContext();
+
+  private ConcurrentLinkedDeque<Span> spans = new ConcurrentLinkedDeque<>();
+
+  private Tracing tracing = Tracing.newBuilder()
+    .spanReporter(s -> {
+      // make sure the context was cleared prior to finish.. no leaks!
+      TraceContext current = currentTraceContext.get();
+      if (current != null) {
+        assertThat(current.spanId())
+          .isNotEqualTo(s.id());
+      }
+      spans.add(s);
+    })
+    .currentTraceContext(currentTraceContext)
+    .sampler(Sampler.ALWAYS_SAMPLE)
+    .build();
+
+  private AmazonSQSClientTracing clientTracing = AmazonSQSClientTracing.create(tracing);
+
+  private AmazonSQS client = AmazonSQSClient.builder()
+    .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("x", "x")))
+    .withRegion("us-east-1")
+    .build();
+
+  private TracingAmazonSQSPoller poller;
+
+  @After
+  public void close() throws Exception {
+    if (poller != null) poller.close();
+    client.shutdown();
+    tracing.close();
+  }
+
+  @Test
+  public void handlesMessagesInChildOfSenderTrace() throws Exception {
+    Tracer tracer = tracing.tracer();
+    AmazonSQS sender = TracingAmazonSQSClient.create(clientTracing, client);
+    brave.Span parent = tracer.newTrace().name("test").start();
+    try (Tracer.SpanInScope ws = tracer.withSpanInScope(parent)) {
+      for (int i = 0; i < 3; i++) {
+        sender.sendMessage(sqsRule.queueUrl(), "test" + i);
+      }
+    } finally {
+      parent.finish();
+    }
+
+    CountDownLatch handled = new CountDownLatch(3);
+    poller = newPoller(message -> {
+      assertThat(currentTraceContext.get().traceId()).isEqualTo(parent.context().traceId());
+      handled.countDown();
+    });
+    poller.start();
+
+    assertThat(handled.await(10, TimeUnit.SECONDS)).isTrue();
+    poller.close();
+
+    assertThat(spans)
+      .filteredOn(s -> "process".equals(s.name()))
+      .hasSize(3)
+      .allSatisfy(s -> {
+        assertThat(s.traceId()).isEqualTo(parent.context().traceIdString());
+        assertThat(s.parentId()).isNotEqualTo(toLowerHex(parent.context().spanId()));
+        assertThat(s.duration()).isNotNull();
+      });
+    assertThat(messagesNotVisible()).isZero();
+  }
+
+  @Test
+  public void leavesFailedMessagesOnTheQueue() throws Exception {
+    TracingAmazonSQSClient.create(clientTracing, client).sendMessage(sqsRule.queueUrl(), "test");
+
+    CountDownLatch handled = new CountDownLatch(1);
+    poller = newPoller(message -> {
+      handled.countDown();
+      throw new IllegalStateException("boom");
+    });
+    poller.start();
+
+    assertThat(handled.await(10, TimeUnit.SECONDS)).isTrue();
+    poller.close();
+
+    assertThat(spans)
+      .filteredOn(s -> "process".equals(s.name()))
+      .extracting(s -> s.tags().get("error"))
+      .containsExactly("boom");
+    assertThat(messagesNotVisible()).isEqualTo(1);
+  }
+
+  @Test
+  public void deletesHandledMessagesWhileAnotherIsStillHandled() throws Exception {
+    AmazonSQS sender = TracingAmazonSQSClient.create(clientTracing, client);
+    sender.sendMessage(sqsRule.queueUrl(), "fast");
+    sender.sendMessage(sqsRule.queueUrl(), "slow");
+
+    CountDownLatch fastHandled = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    poller = TracingAmazonSQSPoller.newBuilder(clientTracing, client, message -> {
+      if ("slow".equals(message.getBody())) {
+        release.await();
+      } else {
+        fastHandled.countDown();
+      }
+    }).queueUrl(sqsRule.queueUrl())
+      .threads(2)
+      .waitTimeSeconds(1)
+      .deleteDelay(100, TimeUnit.MILLISECONDS)
+      .build();
+    poller.start();
+
+    try {
+      assertThat(fastHandled.await(10, TimeUnit.SECONDS)).isTrue();
+      // the fast message is deleted within the delete delay, though the slow one is in flight
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (messagesNotVisible() > 1 && System.nanoTime() < deadline) {
+        Thread.sleep(50);
+      }
+      assertThat(messagesNotVisible()).isEqualTo(1);
+      assertThat(poller.inFlightMessages()).isEqualTo(1);
+    } finally {
+      release.countDown();
+    }
+    poller.close();
+    assertThat(messagesNotVisible()).isZero();
+  }
+
+  @Test
+  public void receivesNoMoreThanMaxInFlight() throws Exception {
+    AmazonSQS sender = TracingAmazonSQSClient.create(clientTracing, client);
+    for (int i = 0; i < 5; i++) {
+      sender.sendMessage(sqsRule.queueUrl(), "test" + i);
+    }
+
+    AtomicInteger started = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch handled = new CountDownLatch(5);
+    poller = TracingAmazonSQSPoller.newBuilder(clientTracing, client, message -> {
+      started.incrementAndGet();
+      release.await();
+      handled.countDown();
+    }).queueUrl(sqsRule.queueUrl())
+      .threads(4)
+      .maxInFlight(2)
+      .maxMessages(1)
+      .waitTimeSeconds(1)
+      .build();
+    poller.start();
+
+    try {
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (started.get() < 2 && System.nanoTime() < deadline) {
+        Thread.sleep(50);
+      }
+      // gives a third receive the chance to happen, were it not held back
+      Thread.sleep(500);
+      assertThat(started.get()).isEqualTo(2);
+      assertThat(poller.inFlightMessages()).isEqualTo(2);
+    } finally {
+      release.countDown();
+    }
+    assertThat(handled.await(10, TimeUnit.SECONDS)).isTrue();
+  }
+
+  private TracingAmazonSQSPoller newPoller(TracingAmazonSQSPoller.MessageHandler handler) {
+    return TracingAmazonSQSPoller.newBuilder(clientTracing, client, handler)
+      .queueUrl(sqsRule.queueUrl())
+      .threads(2)
+      .waitTimeSeconds(1)
+      .build();
+  }
+
+  private int messagesNotVisible() {
+    String count = client.getQueueAttributes(sqsRule.queueUrl(),
+      Collections.singletonList("ApproximateNumberOfMessagesNotVisible"))
+      .getAttributes()
+      .get("ApproximateNumberOfMessagesNotVisible");
+    return Integer.parseInt(count);
+  }
+}
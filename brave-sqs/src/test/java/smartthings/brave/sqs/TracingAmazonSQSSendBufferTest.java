@@ -0,0 +1,204 @@
+/**
+ * Copyright 2016-2017 SmartThings
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package smartthings.brave.sqs;
+
+import brave.Tracer;
+import brave.Tracing;
+import brave.propagation.CurrentTraceContext;
+import brave.propagation.StrictCurrentTraceContext;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import com.amazonaws.auth.AWSStaticCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sqs.AbstractAmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import zipkin2.Span;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TracingAmazonSQSSendBufferTest {
+
+  @Rule
+  public AmazonSQSRule sqsRule = new AmazonSQSRule().start(9324);
+
+  private CurrentTraceContext currentTraceContext = new StrictCurrentTraceContext();
+
+  private ConcurrentLinkedDeque<Span> spans = new ConcurrentLinkedDeque<>();
+
+  private Tracing tracing = Tracing.newBuilder()
+    .spanReporter(s -> {
+      // make sure the context was cleared prior to finish.. no leaks!
+      TraceContext current = currentTraceContext.get();
+      if (current != null) {
+        assertThat(current.spanId())
+          .isNotEqualTo(s.id());
+      }
+      spans.add(s);
+    })
+    .currentTraceContext(currentTraceContext)
+    .sampler(Sampler.ALWAYS_SAMPLE)
+    .build();
+
+  private AmazonSQSClientTracing clientTracing = AmazonSQSClientTracing.create(tracing);
+
+  private AmazonSQS client = AmazonSQSClient.builder()
+    .withCredentials(new AWSStaticCredentialsProvider(new BasicAWSCredentials("x", "x")))
+    .withRegion("us-east-1")
+    .build();
+
+  private TracingAmazonSQSSendBuffer buffer;
+
+  @After
+  public void close() throws Exception {
+    if (buffer != null) buffer.close();
+    client.shutdown();
+    tracing.close();
+  }
+
+  @Test
+  public void batchesMessagesKeepingTheirOwnContext() throws Exception {
+    buffer = TracingAmazonSQSSendBuffer.newBuilder(clientTracing, client)
+      .maxDelay(1, TimeUnit.MINUTES)
+      .build();
+
+    Tracer tracer = tracing.tracer();
+    List<Future<SendMessageResult>> sent = new ArrayList<>();
+    List<String> traceIds = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      brave.Span parent = tracer.newTrace().name("test").start();
+      traceIds.add(parent.context().traceIdString());
+      try (Tracer.SpanInScope ws = tracer.withSpanInScope(parent)) {
+        sent.add(buffer.send(sqsRule.queueUrl(), "test" + i));
+      } finally {
+        parent.finish();
+      }
+    }
+    for (Future<SendMessageResult> future : sent) {
+      assertThat(future.get(10, TimeUnit.SECONDS).getMessageId()).isNotEmpty();
+    }
+
+    List<Message> messages = new ArrayList<>();
+    while (messages.size() < 10) {
+      messages.addAll(client.receiveMessage(new ReceiveMessageRequest(sqsRule.queueUrl())
+        .withMaxNumberOfMessages(10)
+        .withMessageAttributeNames("All")).getMessages());
+    }
+    for (Message message : messages) {
+      String traceId = message.getMessageAttributes().get("X-B3-TraceId").getStringValue();
+      int i = Integer.parseInt(message.getBody().substring(4));
+      assertThat(traceId).isEqualTo(traceIds.get(i));
+    }
+
+    Span batch = null;
+    for (Span span : spans) {
+      if ("send_message_batch-test".equals(span.name())) batch = span;
+    }
+    assertThat(batch).isNotNull();
+    assertThat(batch.kind()).isEqualTo(Span.Kind.CLIENT);
+    assertThat(batch.tags().get(AmazonSQSTraceKeys.SQS_MESSAGE_TRACE_IDS).split(","))
+      .containsExactlyElementsOf(traceIds);
+    for (Span span : spans) {
+      if ("send_message-test".equals(span.name())) {
+        assertThat(span.tags())
+          .containsEntry(AmazonSQSTraceKeys.SQS_BATCH_TRACE_ID, batch.traceId())
+          .containsKey(AmazonSQSTraceKeys.SQS_MESSAGE_ID);
+      }
+    }
+  }
+
+  @Test
+  public void flushesAfterMaxDelay() throws Exception {
+    buffer = TracingAmazonSQSSendBuffer.newBuilder(clientTracing, client)
+      .maxDelay(10, TimeUnit.MILLISECONDS)
+      .build();
+
+    Future<SendMessageResult> sent = buffer.send(sqsRule.queueUrl(), "test");
+
+    assertThat(sent.get(10, TimeUnit.SECONDS).getMessageId()).isNotEmpty();
+  }
+
+  @Test
+  public void splitsBatchesAtMaxBytes() throws Exception {
+    buffer = TracingAmazonSQSSendBuffer.newBuilder(clientTracing, client)
+      .maxBatchBytes(8)
+      .maxDelay(1, TimeUnit.MINUTES)
+      .build();
+
+    Future<SendMessageResult> first = buffer.send(sqsRule.queueUrl(), "test1");
+    Future<SendMessageResult> second = buffer.send(sqsRule.queueUrl(), "test2");
+
+    assertThat(first.get(10, TimeUnit.SECONDS).getMessageId()).isNotEmpty();
+    assertThat(second.isDone()).isFalse();
+  }
+
+  @Test
+  public void sendsBatchesOfFifoQueuesInOrder() throws Exception {
+    List<String> sent = new ArrayList<>();
+    AmazonSQS fifo = new AbstractAmazonSQS() {
+      @Override public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+        SendMessageBatchRequestEntry entry = request.getEntries().get(0);
+        // the first batch is the slowest, the others would overtake it on other threads
+        if ("0".equals(entry.getMessageBody())) {
+          try {
+            Thread.sleep(100);
+          } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+          }
+        }
+        synchronized (sent) {
+          sent.add(entry.getMessageBody());
+        }
+        return new SendMessageBatchResult().withSuccessful(
+          new SendMessageBatchResultEntry().withId(entry.getId()).withMessageId(entry.getMessageBody()));
+      }
+    };
+    buffer = TracingAmazonSQSSendBuffer.newBuilder(clientTracing, fifo)
+      .maxBatchSize(1)
+      .threads(4)
+      .build();
+
+    List<Future<SendMessageResult>> futures = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      futures.add(buffer.send(new SendMessageRequest("http://localhost:9324/queue/test.fifo", Integer.toString(i))
+        .withMessageGroupId("group")));
+    }
+    for (Future<SendMessageResult> future : futures) {
+      future.get(10, TimeUnit.SECONDS);
+    }
+
+    assertThat(sent).containsExactly("0", "1", "2", "3", "4");
+  }
+
+  @Test
+  public void countsUtf8Bytes() {
+    assertThat(TracingAmazonSQSSendBuffer.utf8Length("aé€😀")).isEqualTo(10);
+  }
+}